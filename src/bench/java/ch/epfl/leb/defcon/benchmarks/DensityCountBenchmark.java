@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.benchmarks;
+
+import ch.epfl.leb.defcon.ij.DensityCount;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures whole-stack runs of the density count plugin without a user
+ * interface.
+ *
+ * The score is in frames per second. The plugin is set up before every run,
+ * outside of the measurement, because it releases its model at the end of a
+ * run; the model itself stays loaded in the model registry.
+ *
+ * @author Kyle M. Douglass
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class DensityCountBenchmark {
+
+    /**
+     * The number of frames in the stack.
+     */
+    private static final int FRAMES = 64;
+
+    @Param({"64", "256"})
+    public int size;
+
+    @Param({"1", "8"})
+    public int batchSize;
+
+    @Param({"1", "2", "4"})
+    public int numWorkers;
+
+    private ImagePlus imp;
+
+    private DensityCount dc;
+
+    @Setup(Level.Trial)
+    public void createStack() {
+        ImageStack stack = new ImageStack(size, size);
+        for (int i = 0; i < FRAMES; i++) {
+            stack.addSlice(SyntheticData.frame(size, size, 16, i));
+        }
+        imp = new ImagePlus("Benchmark", stack);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        dc = new DensityCount();
+        dc.setBatchSize(batchSize);
+        dc.setNumWorkers(numWorkers);
+        dc.setKeepDensityMaps(false);
+        dc.setup(SyntheticData.MODEL, imp);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        dc.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public ResultsTable count() throws Exception {
+        return dc.count();
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.benchmarks;
+
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+
+import ij.process.FloatProcessor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the maximum local count of a density map.
+ *
+ * A new result is created for every operation so that the summed-area table
+ * is built every time, as it is for every frame of a stack.
+ *
+ * @author Kyle M. Douglass
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LocalCountBenchmark {
+
+    @Param({"64", "256", "512", "1024"})
+    public int size;
+
+    @Param({"3", "7", "15"})
+    public int boxSize;
+
+    private FloatProcessor densityMap;
+
+    @Setup
+    public void setUp() {
+        densityMap = SyntheticData.densityMap(size, size);
+    }
+
+    @Benchmark
+    public double getMaximumLocalCount() {
+        return new PredictionResult(0, densityMap)
+                .getMaximumLocalCount(boxSize);
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.benchmarks;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.internal.DefaultPredictor;
+
+import ij.process.ImageProcessor;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures density map predictions with the TensorFlow session on the CPU.
+ *
+ * The batch benchmark predicts one batch per operation; divide its score by
+ * the batch size to compare it with the single-frame benchmark.
+ *
+ * @author Kyle M. Douglass
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PredictorBenchmark {
+
+    /**
+     * A predictor that is shared by all benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Model {
+
+        DefaultPredictor predictor;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            predictor = new DefaultPredictor();
+            predictor.setup(SyntheticData.MODEL);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            predictor.close();
+        }
+    }
+
+    /**
+     * A single frame.
+     */
+    @State(Scope.Thread)
+    public static class Frame {
+
+        @Param({"64", "256", "512"})
+        public int size;
+
+        @Param({"8", "16"})
+        public int bitDepth;
+
+        ImageProcessor ip;
+
+        @Setup
+        public void setUp() {
+            ip = SyntheticData.frame(size, size, bitDepth, 0);
+        }
+    }
+
+    /**
+     * A batch of 16-bit frames.
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+
+        @Param({"64", "256"})
+        public int size;
+
+        @Param({"1", "4", "8"})
+        public int batchSize;
+
+        List<ImageProcessor> frames;
+
+        @Setup
+        public void setUp() {
+            frames = SyntheticData.frames(size, size, 16, batchSize);
+        }
+    }
+
+    @Benchmark
+    public double predict(Model model, Frame frame)
+            throws ImageBitDepthException, SessionClosedException {
+        return model.predictor.predictResult(frame.ip).getCount();
+    }
+
+    @Benchmark
+    public double predictBatch(Model model, Batch batch)
+            throws ImageBitDepthException, SessionClosedException {
+        double total = 0;
+        for (PredictionResult result : model.predictor.predictBatchResults(
+                batch.frames, batch.batchSize)) {
+            total += result.getCount();
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.benchmarks;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic images for the benchmarks.
+ *
+ * The frames are a noisy background with Gaussian spots, so that they look
+ * like the fluorescence images DEFCoN is meant for without any data files.
+ * Every frame is generated from a fixed seed.
+ *
+ * @author Kyle M. Douglass
+ */
+final class SyntheticData {
+
+    /**
+     * The path to the model, set with -Ddefcon.model=/path/to/model on the
+     * benchmark JVMs.
+     */
+    static final String MODEL = System.getProperty(
+            "defcon.model", "src/test/resources/tf_density_count");
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Creates a frame of fluorescent spots.
+     *
+     * @param width The width of the frame.
+     * @param height The height of the frame.
+     * @param bitDepth 8 or 16.
+     * @param seed The seed of the noise and of the spot positions.
+     * @return The frame.
+     */
+    static ImageProcessor frame(int width, int height, int bitDepth,
+                                long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 10f + 2f * (float) random.nextGaussian();
+        }
+
+        // About one spot per 32 x 32 pixels with a width of 1.5 pixels.
+        int numSpots = Math.max(1, width * height / 1024);
+        for (int s = 0; s < numSpots; s++) {
+            float x0 = random.nextFloat() * width;
+            float y0 = random.nextFloat() * height;
+            for (int y = Math.max(0, (int) y0 - 5);
+                     y < Math.min(height, (int) y0 + 6); y++) {
+                for (int x = Math.max(0, (int) x0 - 5);
+                         x < Math.min(width, (int) x0 + 6); x++) {
+                    float r2 = (x - x0) * (x - x0) + (y - y0) * (y - y0);
+                    pixels[y * width + x] += 100f * Math.exp(-r2 / 4.5f);
+                }
+            }
+        }
+
+        ImageProcessor ip;
+        if (bitDepth == 8) {
+            ip = new ByteProcessor(width, height);
+        } else if (bitDepth == 16) {
+            ip = new ShortProcessor(width, height);
+        } else {
+            throw new IllegalArgumentException("Unsupported bit depth: "
+                                               + bitDepth);
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            ip.setf(i, Math.min(pixels[i], bitDepth == 8 ? 255f : 65535f));
+        }
+        return ip;
+    }
+
+    /**
+     * Creates several frames of fluorescent spots.
+     *
+     * @param width The width of the frames.
+     * @param height The height of the frames.
+     * @param bitDepth 8 or 16.
+     * @param count The number of frames.
+     * @return The frames.
+     */
+    static List<ImageProcessor> frames(int width, int height, int bitDepth,
+                                       int count) {
+        List<ImageProcessor> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            frames.add(frame(width, height, bitDepth, i));
+        }
+        return frames;
+    }
+
+    /**
+     * Creates a density map with a few peaks.
+     *
+     * @param width The width of the density map.
+     * @param height The height of the density map.
+     * @return The density map.
+     */
+    static FloatProcessor densityMap(int width, int height) {
+        Random random = new Random(width * 31 + height);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(50) == 0 ? random.nextFloat() : 0f;
+        }
+        return new FloatProcessor(width, height, pixels);
+    }
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.benchmarks;
+
+import ch.epfl.leb.defcon.utils.TensorFactory;
+
+import ij.process.ImageProcessor;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.Tensor;
+
+/**
+ * Measures the conversion of images to input tensors.
+ *
+ * AbstractPredictor.imageToTensor() delegates to
+ * TensorFactory.imageToTensor(). The tensors are closed in the benchmark so
+ * that native memory does not accumulate.
+ *
+ * @author Kyle M. Douglass
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TensorFactoryBenchmark {
+
+    /**
+     * A single frame.
+     */
+    @State(Scope.Thread)
+    public static class Frame {
+
+        @Param({"64", "256", "512", "1024"})
+        public int size;
+
+        @Param({"8", "16"})
+        public int bitDepth;
+
+        ImageProcessor ip;
+
+        @Setup
+        public void setUp() {
+            ip = SyntheticData.frame(size, size, bitDepth, 0);
+        }
+    }
+
+    /**
+     * A batch of frames.
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+
+        @Param({"64", "256", "512"})
+        public int size;
+
+        @Param({"8", "16"})
+        public int bitDepth;
+
+        @Param({"4", "16"})
+        public int batchSize;
+
+        List<ImageProcessor> frames;
+
+        @Setup
+        public void setUp() {
+            frames = SyntheticData.frames(size, size, bitDepth, batchSize);
+        }
+    }
+
+    @Benchmark
+    public long imageToTensor(Frame frame) {
+        try (Tensor<Float> tensor = TensorFactory.imageToTensor(frame.ip)) {
+            return tensor.numBytes();
+        }
+    }
+
+    @Benchmark
+    public long imagesToTensor(Batch batch) {
+        try (Tensor<Float> tensor = TensorFactory.imagesToTensor(
+                batch.frames)) {
+            return tensor.numBytes();
+        }
+    }
+
+}
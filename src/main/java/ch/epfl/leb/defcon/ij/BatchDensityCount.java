@@ -0,0 +1,508 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.ij;
+
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+import ch.epfl.leb.defcon.predictors.internal.ModelHandle;
+import ch.epfl.leb.defcon.predictors.internal.ModelRegistry;
+import ch.epfl.leb.defcon.predictors.internal.ResultCache;
+import ch.epfl.leb.defcon.predictors.internal.TensorMemoryBudget;
+import ch.epfl.leb.defcon.predictors.internal.TiledPredictor;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Counts the objects in many TIFF stacks without a graphical user interface.
+ *
+ * The stacks are counted in parallel by a number of workers, one stack per
+ * worker at a time. All the workers share one loaded model, which is kept
+ * loaded for the whole batch. The counts of each stack are written to a CSV
+ * file in the output directory, named after the stack, and the density maps
+ * can be streamed to a directory next to it. A summary with the number of
+ * frames, the duration and the throughput of every stack is written to
+ * {@value #SUMMARY_FILE} in the same directory.
+ *
+ * The stacks are read lazily, so stacks of any size may be counted.
+ *
+ * @author Kyle M. Douglass
+ */
+public class BatchDensityCount {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            BatchDensityCount.class.getName());
+
+    /**
+     * The name of the summary file in the output directory.
+     */
+    public static final String SUMMARY_FILE = "summary.csv";
+
+    private final String pathToModel;
+
+    private int numWorkers = 1;
+
+    private int batchSize = DensityCount.DEFAULT_BATCH_SIZE;
+
+    private int tileSize = 0;
+
+    private String normalizedInput = TiledPredictor.DEFAULT_NORMALIZED_INPUT;
+
+    private boolean writeDensityMaps = false;
+
+    private boolean compressDensityMaps = false;
+
+    private SessionOptions sessionOptions = new SessionOptions();
+
+    private ResultCache resultCache = null;
+
+    /**
+     * Creates a batch runner for a model.
+     *
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     */
+    public BatchDensityCount(String pathToModel) {
+        this.pathToModel = pathToModel;
+    }
+
+    /**
+     * Finds the TIFF stacks in a directory or that match a glob pattern.
+     *
+     * A directory yields the .tif and .tiff files directly inside it. Any
+     * other path is a glob pattern, e.g. {@code /data/*}{@code /cell_*.tif},
+     * that is matched against the files below the part of the path that
+     * contains no wildcard.
+     *
+     * @param pattern A directory or a glob pattern.
+     * @return The matching files, sorted by path.
+     * @throws IOException If the directories cannot be read.
+     */
+    public static List<File> findStacks(String pattern) throws IOException {
+        Path path = Paths.get(pattern);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(Files::isRegularFile)
+                            .filter(file -> file.getFileName().toString()
+                                    .matches("(?i).*\\.tiff?"))
+                            .sorted()
+                            .map(Path::toFile)
+                            .collect(Collectors.toList());
+            }
+        }
+
+        // Walks the directory tree below the first name with a wildcard.
+        Path root = path.isAbsolute() ? path.getRoot() : Paths.get("");
+        for (Path name : path) {
+            if (name.toString().matches(".*[*?\\[{].*")) {
+                break;
+            }
+            root = root.resolve(name);
+        }
+        if (!Files.isDirectory(root)) {
+            return Collections.singletonList(path.toFile());
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+                "glob:" + pattern);
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                        .filter(matcher::matches)
+                        .sorted()
+                        .map(Path::toFile)
+                        .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Counts the objects in every frame of a list of stacks.
+     *
+     * A stack that cannot be counted is reported in the summary and does not
+     * stop the other stacks.
+     *
+     * @param stacks The TIFF stacks to count.
+     * @param outputDirectory The directory of the counts, the density maps and
+     *                        the summary. It is created if needed.
+     * @return The summary, with one row per stack in the order of the input.
+     * @throws IOException If the output directory or the summary cannot be
+     *                     written.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     *                              for the workers.
+     */
+    public ResultsTable run(List<File> stacks, File outputDirectory)
+            throws IOException, InterruptedException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + outputDirectory);
+        }
+        List<String> names = outputNames(stacks);
+
+        // Keeps the model loaded between stacks.
+        ModelHandle model = ModelRegistry.getInstance().acquire(pathToModel,
+                                                                sessionOptions);
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+        long start = System.nanoTime();
+        List<Future<FileTiming>> pending = new ArrayList<>();
+        try {
+            for (int i = 0; i < stacks.size(); i++) {
+                final File stack = stacks.get(i);
+                final String name = names.get(i);
+                pending.add(workers.submit(
+                        () -> count(stack, outputDirectory, name)));
+            }
+
+            ResultsTable summary = new ResultsTable();
+            long frames = 0;
+            int failed = 0;
+            for (int i = 0; i < pending.size(); i++) {
+                FileTiming timing;
+                try {
+                    timing = pending.get(i).get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.SEVERE, "Cannot count " + stacks.get(i),
+                               ex.getCause());
+                    timing = new FileTiming(0, 0, ex.getCause().toString());
+                    failed++;
+                }
+                frames += timing.frames;
+                addSummaryRow(summary, stacks.get(i), timing);
+                LOGGER.log(Level.INFO, String.format(Locale.ROOT,
+                        "%s: %d frames in %.2f s (%.1f frames/s)%s",
+                        stacks.get(i), timing.frames, timing.seconds,
+                        timing.getFramesPerSecond(),
+                        timing.error == null ? "" : " FAILED: " + timing.error));
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            LOGGER.log(Level.INFO, String.format(Locale.ROOT,
+                    "Counted %d frames of %d stacks in %.2f s (%.1f frames/s)"
+                    + " with %d workers; %d stacks failed.",
+                    frames, stacks.size() - failed, seconds, frames / seconds,
+                    numWorkers, failed));
+            summary.saveAs(new File(outputDirectory, SUMMARY_FILE).getPath());
+            return summary;
+        } finally {
+            workers.shutdownNow();
+            for (Future<FileTiming> future : pending) {
+                future.cancel(true);
+            }
+            model.close();
+        }
+    }
+
+    /**
+     * Counts one stack and writes its results.
+     *
+     * The stacks share the session of the model that is loaded by run(), so
+     * it is not warmed up again for every stack.
+     */
+    private FileTiming count(File stack, File outputDirectory, String name)
+            throws Exception {
+        long start = System.nanoTime();
+        ImagePlus imp = DensityCount.openVirtual(stack.getPath());
+
+        DensityCount dc = new DensityCount();
+        dc.setBatchSize(batchSize);
+        dc.setTileSize(tileSize);
+        dc.setNormalizedInput(normalizedInput);
+        dc.setSessionOptions(sessionOptions);
+        dc.setResultCache(resultCache);
+        if (writeDensityMaps) {
+            dc.setDensityMapOutput(
+                    new File(outputDirectory, name + ".density"),
+                    compressDensityMaps);
+        } else {
+            dc.setKeepDensityMaps(false);
+        }
+        dc.setWarmUp(false);
+        try {
+            dc.setup(pathToModel, imp);
+            ResultsTable rt = dc.count();
+            rt.saveAs(new File(outputDirectory, name + ".csv").getPath());
+            return new FileTiming(rt.size(),
+                                  (System.nanoTime() - start) / 1e9, null);
+        } finally {
+            dc.close();
+        }
+    }
+
+    /**
+     * Returns the base name of the outputs of each stack.
+     *
+     * Stacks with the same file name in different directories are numbered.
+     */
+    private static List<String> outputNames(List<File> stacks) {
+        Set<String> used = new HashSet<>();
+        List<String> names = new ArrayList<>(stacks.size());
+        for (File stack : stacks) {
+            String base = stack.getName().replaceFirst("\\.[^.]*$", "");
+            String name = base;
+            for (int n = 2; !used.add(name); n++) {
+                name = base + "-" + n;
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    private static void addSummaryRow(ResultsTable summary, File stack,
+                                      FileTiming timing) {
+        summary.incrementCounter();
+        summary.addValue("File", stack.getPath());
+        summary.addValue("Frames", timing.frames);
+        summary.addValue("Seconds", timing.seconds);
+        summary.addValue("Frames per second", timing.getFramesPerSecond());
+        summary.addValue("Error", timing.error == null ? "" : timing.error);
+    }
+
+    /**
+     * Counts the objects in TIFF stacks from the command line.
+     *
+     * Usage: {@code BatchDensityCount [options] <model> <directory or glob>
+     * <output directory>}
+     *
+     * Options: {@code --workers N} (default: the number of processors),
+     * {@code --batch-size N}, {@code --tile-size N},
+     * {@code --normalized-input OP} to name the rescaling operation that
+     * tiles are fed to ({@code none} to rescale them independently),
+     * {@code --maps} to write
+     * the density maps, {@code --compress} to compress them and
+     * {@code --cache DIR} to keep the counts in a result cache, so that
+     * unchanged frames are not predicted again by later runs, and
+     * {@code --tensor-budget MB} to bound the native memory of the tensors
+     * of all the workers.
+     *
+     * The process exits with status 2 if any stack could not be counted.
+     *
+     * @param args The command line arguments.
+     * @throws Exception If the batch cannot be run.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        int workers = Runtime.getRuntime().availableProcessors();
+        int batchSize = DensityCount.DEFAULT_BATCH_SIZE;
+        int tileSize = 0;
+        String normalizedInput = TiledPredictor.DEFAULT_NORMALIZED_INPUT;
+        boolean maps = false;
+        boolean compress = false;
+        String cacheDirectory = null;
+        long tensorBudget = TensorMemoryBudget.DEFAULT_LIMIT;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--workers":
+                        workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--batch-size":
+                        batchSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--tile-size":
+                        tileSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--normalized-input":
+                        normalizedInput = args[++i];
+                        if (normalizedInput.equals("none")) {
+                            normalizedInput = null;
+                        }
+                        break;
+                    case "--maps":
+                        maps = true;
+                        break;
+                    case "--compress":
+                        compress = true;
+                        break;
+                    case "--cache":
+                        cacheDirectory = args[++i];
+                        break;
+                    case "--tensor-budget":
+                        tensorBudget = Long.parseLong(args[++i]) << 20;
+                        break;
+                    default:
+                        positional.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            positional.clear();
+        }
+        if (positional.size() != 3) {
+            System.err.println("Usage: BatchDensityCount [--workers N] "
+                    + "[--batch-size N] [--tile-size N] "
+                    + "[--normalized-input OP] [--maps] [--compress] "
+                    + "[--cache DIR] [--tensor-budget MB] <model> "
+                    + "<directory or glob> <output directory>");
+            System.exit(1);
+        }
+
+        TensorMemoryBudget.getInstance().setLimit(tensorBudget);
+        List<File> stacks = findStacks(positional.get(1));
+        BatchDensityCount batch = new BatchDensityCount(positional.get(0));
+        batch.setNumWorkers(workers);
+        batch.setBatchSize(batchSize);
+        batch.setTileSize(tileSize);
+        batch.setNormalizedInput(normalizedInput);
+        batch.setDensityMapOutput(maps, compress);
+        ResultsTable summary;
+        if (cacheDirectory == null) {
+            summary = batch.run(stacks, new File(positional.get(2)));
+        } else {
+            try (ResultCache cache = new ResultCache(
+                    new File(cacheDirectory),
+                    ResultCache.DEFAULT_MEMORY_BUDGET)) {
+                batch.setResultCache(cache);
+                summary = batch.run(stacks, new File(positional.get(2)));
+                System.out.println(cache);
+            }
+        }
+        System.out.println(TensorMemoryBudget.getInstance());
+        for (int i = 0; i < summary.size(); i++) {
+            if (!summary.getStringValue("Error", i).isEmpty()) {
+                System.exit(2);
+            }
+        }
+    }
+
+    /**
+     * Sets the number of stacks that are counted at the same time.
+     *
+     * @param numWorkers The number of worker threads.
+     */
+    public void setNumWorkers(int numWorkers) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException(
+                    "At least one worker is required.");
+        }
+        this.numWorkers = numWorkers;
+    }
+
+    /**
+     * Sets the number of frames that are sent to the network at once.
+     *
+     * @param batchSize The number of frames per batch.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Predicts each frame in tiles of a given size.
+     *
+     * @param tileSize The width of a tile, a multiple of four, or 0 to predict
+     *                 whole frames.
+     * @see DensityCount#setTileSize(int)
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize < 0 || tileSize % 4 != 0) {
+            throw new IllegalArgumentException(
+                    "The tile size must be a multiple of four.");
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Sets the operation of the graph to which tiles are fed after they are
+     * rescaled as a whole frame.
+     *
+     * @param normalizedInput The name of the operation, or null to rescale
+     *                        the tiles independently.
+     * @see DensityCount#setNormalizedInput(String)
+     */
+    public void setNormalizedInput(String normalizedInput) {
+        this.normalizedInput = normalizedInput;
+    }
+
+    /**
+     * Sets whether the density maps are written next to the counts.
+     *
+     * The density maps of a stack are written to a directory named after the
+     * stack with the extension .density.
+     *
+     * @param write Whether to write the density maps.
+     * @param compress Whether to compress each density map.
+     * @see DensityCount#setDensityMapOutput(File, boolean)
+     */
+    public void setDensityMapOutput(boolean write, boolean compress) {
+        this.writeDensityMaps = write;
+        this.compressDensityMaps = compress;
+    }
+
+    /**
+     * Looks up the results of the frames in a cache before predicting them.
+     *
+     * @param resultCache The cache, or null to predict every frame.
+     * @see DensityCount#setResultCache(ResultCache)
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Sets the options of the TensorFlow session.
+     *
+     * @param sessionOptions The options of the TensorFlow session.
+     */
+    public void setSessionOptions(SessionOptions sessionOptions) {
+        this.sessionOptions = sessionOptions;
+    }
+
+    /**
+     * The number of frames and the duration of the count of one stack.
+     */
+    private static final class FileTiming {
+
+        final int frames;
+
+        final double seconds;
+
+        final String error;
+
+        FileTiming(int frames, double seconds, String error) {
+            this.frames = frames;
+            this.seconds = seconds;
+            this.error = error;
+        }
+
+        double getFramesPerSecond() {
+            return seconds > 0 ? frames / seconds : 0.0;
+        }
+    }
+
+}
@@ -19,10 +19,24 @@
 package ch.epfl.leb.defcon.ij;
 
 import ch.epfl.leb.defcon.predictors.Predictor;
+import ch.epfl.leb.defcon.predictors.PredictorMetrics;
+import ch.epfl.leb.defcon.predictors.PredictorMetrics.Stage;
+import ch.epfl.leb.defcon.predictors.internal.AutoTuner;
+import ch.epfl.leb.defcon.predictors.internal.CachingPredictor;
 import ch.epfl.leb.defcon.predictors.internal.DefaultPredictor;
+import ch.epfl.leb.defcon.predictors.internal.FramePipeline;
+import ch.epfl.leb.defcon.predictors.internal.HyperstackPipeline;
+import ch.epfl.leb.defcon.predictors.internal.PredictorPool;
+import ch.epfl.leb.defcon.predictors.internal.ResultCache;
+import ch.epfl.leb.defcon.predictors.internal.TensorMemoryBudget;
+import ch.epfl.leb.defcon.predictors.internal.TiledPredictor;
 import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.HyperstackCounts;
 import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
-import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
+import ch.epfl.leb.defcon.predictors.InputShape;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+import ch.epfl.leb.defcon.utils.DensityMapStack;
+import ch.epfl.leb.defcon.utils.DensityMapWriter;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -30,9 +44,17 @@ import ij.gui.Roi;
 import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
-import ij.WindowManager;
 import ij.ImageStack;
 
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Computes a density map estimate for counting objects within an image.
  * 
@@ -44,6 +66,43 @@ public class DensityCount implements PlugInFilter {
     private Predictor predictor = new DefaultPredictor();
     private Roi roi;
     private ImageStack densityStack;
+    
+    /**
+     * The default number of frames that are sent to the network at once.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 8;
+    
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    
+    private int numWorkers = 1;
+    
+    private int queueCapacity = FramePipeline.DEFAULT_QUEUE_CAPACITY;
+    
+    private SessionOptions sessionOptions = new SessionOptions();
+    
+    private File densityMapDirectory = null;
+    
+    private boolean compressDensityMaps = false;
+    
+    private boolean keepDensityMaps = true;
+    
+    private int tileSize = 0;
+    
+    private String normalizedInput = TiledPredictor.DEFAULT_NORMALIZED_INPUT;
+    
+    private boolean warmUp = true;
+    
+    private boolean metricsColumns = false;
+    
+    private ResultCache resultCache = null;
+    
+    private int[] channels = null;
+    
+    private int zParallelism = 0;
+    
+    private int tParallelism = 0;
+    
+    private AutoTuner autoTuner = null;
 
     /**
      * Computes a density map from the selected image stack.
@@ -54,45 +113,500 @@ public class DensityCount implements PlugInFilter {
      * @param ip The input image processor.
      */
     public void run(ImageProcessor ip) {
-        int stackSize = image.getImageStackSize();
-        roi = WindowManager.getCurrentImage().getRoi();
-        Roi reshapedRoi = initRoiAndStack();
-        double count;
- 
-        for (int i=1; i <= stackSize; i++ ) {
-            ImageProcessor proc = image.getImageStack().getProcessor(i);
-            ImagePlus slice = new ImagePlus("DEFCoN", proc);
-            
-            // Crop the image to the ROI
-            slice.setRoi(reshapedRoi);
-
-            rt.incrementCounter();
-            
-            // Make the density map prediction.
-            try {
-                predictor.predict(slice.crop().getProcessor());
-                densityStack.addSlice(predictor.getDensityMap());
-                count = predictor.getCount();
-            } catch (ImageBitDepthException 
-                     | UninitializedPredictorException
-                     | SessionClosedException ex) {
-                IJ.log(ex.getMessage());
-                predictor.close();
-                return;
+        ResultsTable table;
+        try {
+            if (isCountedPerPlane()) {
+                if (keepDensityMaps || densityMapDirectory != null) {
+                    IJ.log("Density maps are not produced when a "
+                           + "hyperstack is counted plane by plane; only the "
+                           + "counts are reported.");
+                }
+                table = countHyperstack().toResultsTable();
+            } else {
+                table = count();
             }
-                        
-            // Build the results table.
-            rt.addValue("Rounded count", Math.round(count));
-            rt.addValue("Exact count", count);
-            IJ.showProgress(i, stackSize);
+        } catch (ImageBitDepthException | SessionClosedException ex) {
+            IJ.log(ex.getMessage());
+            return;
+        } catch (IOException ex) {
+            IJ.log("Cannot write the results: " + ex.getMessage());
+            return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            predictor.close();
         }
-        predictor.close();
 
         // Display the stack of density maps with viridis colormap
-        ImagePlus densityImage = new ImagePlus("Density map", densityStack);
-        IJ.run(densityImage, "mpl-viridis", "");
-        densityImage.show();
-        rt.show("Fluorophore count");
+        if (densityStack.getSize() > 0) {
+            ImagePlus densityImage = new ImagePlus("Density map", densityStack);
+            IJ.run(densityImage, "mpl-viridis", "");
+            densityImage.show();
+        }
+        table.show("Fluorophore count");
+    }
+    
+    /**
+     * Returns whether run() counts the image plane by plane with
+     * countHyperstack() instead of slice by slice with count().
+     * 
+     * Hyperstacks are counted plane by plane only if they have several
+     * channels or slices or if channels were selected. Hyperstacks that only
+     * have a time axis are counted like any other stack, which keeps their
+     * density maps.
+     * 
+     * @return True if the image is counted plane by plane.
+     */
+    boolean isCountedPerPlane() {
+        return image.isHyperStack()
+               && (image.getNChannels() > 1 || image.getNSlices() > 1
+                   || channels != null);
+    }
+    
+    /**
+     * Counts the objects in every slice of the image without displaying
+     * anything.
+     * 
+     * The slices are read one batch at a time by the pipeline, which reads
+     * ahead of the network by at most the queue capacity. Images that are
+     * backed by a virtual stack, for example those returned by
+     * {@link #openVirtual(String)}, are therefore never loaded into memory as
+     * a whole. This method does not require a graphical user interface.
+     * 
+     * @return The results table with the count of every slice.
+     * @throws ImageBitDepthException
+     * @throws SessionClosedException
+     * @throws IOException If the density maps cannot be written to disk.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     *                              for results.
+     */
+    public ResultsTable count() throws ImageBitDepthException,
+                                       SessionClosedException, IOException,
+                                       InterruptedException {
+        final int stackSize = image.getImageStackSize();
+        roi = image.getRoi();
+        Rectangle bounds = initRoiAndStack().getBounds();
+        
+        // Streams the density maps to disk instead of keeping them in memory.
+        final DensityMapWriter output = densityMapDirectory == null ? null
+                : new DensityMapWriter(densityMapDirectory, bounds.width,
+                                       bounds.height, compressDensityMaps);
+ 
+        // The metrics can be followed with a JMX client during the count.
+        final PredictorMetrics metrics = predictor.getMetrics();
+        metrics.registerMBean(image.getTitle());
+        
+        // Read, infer and post-process the slices in overlapping stages and
+        // build the results table in the order of the slices.
+        try (PredictorPool pool = new PredictorPool(predictor, numWorkers)) {
+            FramePipeline pipeline = new FramePipeline(pool, batchSize,
+                                                       queueCapacity);
+            pipeline.setCountsOnly(output == null && !keepDensityMaps);
+            pipeline.run(image.getImageStack(), bounds, (slice, result) -> {
+                if (output == null) {
+                    if (keepDensityMaps) {
+                        densityStack.addSlice(result.getDensityMap());
+                    }
+                } else {
+                    try {
+                        output.append(result.getDensityMap());
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                
+                double count = result.getCount();
+                rt.incrementCounter();
+                rt.addValue("Rounded count", Math.round(count));
+                rt.addValue("Exact count", count);
+                if (metricsColumns) {
+                    addMetricsColumns(metrics);
+                }
+                IJ.showProgress(slice, stackSize);
+            });
+            IJ.log(pipeline.getReport());
+            IJ.log(metrics.toString());
+            IJ.log(TensorMemoryBudget.getInstance().toString());
+            if (resultCache != null) {
+                resultCache.flush();
+                IJ.log(resultCache.toString());
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            metrics.unregisterMBean();
+            if (output != null) {
+                output.close();
+            }
+        }
+        
+        if (output != null) {
+            densityStack = DensityMapStack.open(densityMapDirectory);
+        }
+        return rt;
+    }
+    
+    /**
+     * Counts the objects in every plane of the selected channels of a
+     * hyperstack without displaying anything.
+     * 
+     * The time series of each channel and slice are counted in batches of
+     * consecutive frames, with the parallelism of each axis set by
+     * {@link #setAxisParallelism(int, int)}. Only the counts are predicted:
+     * no density maps are kept or written in this mode.
+     * 
+     * @return The counts indexed by channel, slice and frame.
+     * @throws ImageBitDepthException
+     * @throws SessionClosedException
+     * @throws IOException If the result cache cannot be written.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     *                              for results.
+     * @see #setChannels(int...)
+     */
+    public HyperstackCounts countHyperstack() throws ImageBitDepthException,
+                                                     SessionClosedException,
+                                                     IOException,
+                                                     InterruptedException {
+        roi = image.getRoi();
+        Rectangle bounds = initRoiAndStack().getBounds();
+        int numChannels = channels == null ? image.getNChannels()
+                                           : channels.length;
+        final int numPlanes = numChannels * image.getNSlices()
+                            * image.getNFrames();
+        
+        // By default, one series at a time is spread over all the workers.
+        int zWorkers = zParallelism > 0 ? zParallelism : 1;
+        int tWorkers = tParallelism > 0 ? tParallelism : numWorkers;
+        
+        final PredictorMetrics metrics = predictor.getMetrics();
+        metrics.registerMBean(image.getTitle());
+        HyperstackCounts counts;
+        try (PredictorPool pool = new PredictorPool(predictor,
+                                                    zWorkers * tWorkers)) {
+            HyperstackPipeline pipeline = new HyperstackPipeline(
+                    pool, batchSize, zWorkers, tWorkers);
+            counts = pipeline.run(image, channels, bounds,
+                                  done -> IJ.showProgress(done, numPlanes));
+            IJ.log(metrics.toString());
+            IJ.log(TensorMemoryBudget.getInstance().toString());
+            if (resultCache != null) {
+                resultCache.flush();
+                IJ.log(resultCache.toString());
+            }
+        } finally {
+            metrics.unregisterMBean();
+        }
+        return counts;
+    }
+    
+    /**
+     * Adds the current values of the metrics to the last row of the results
+     * table.
+     * 
+     * The values are running values over all the slices counted so far.
+     */
+    private void addMetricsColumns(PredictorMetrics metrics) {
+        rt.addValue("Frames per second", metrics.getFramesPerSecond());
+        rt.addValue("Crop p50 (ms)", metrics.getPercentileMillis(Stage.CROP,
+                                                                 50));
+        rt.addValue("Tensor p50 (ms)",
+                    metrics.getPercentileMillis(Stage.TENSOR, 50));
+        rt.addValue("Session p50 (ms)",
+                    metrics.getPercentileMillis(Stage.SESSION, 50));
+        rt.addValue("Session p99 (ms)",
+                    metrics.getPercentileMillis(Stage.SESSION, 99));
+        rt.addValue("Copy p50 (ms)", metrics.getPercentileMillis(Stage.COPY,
+                                                                 50));
+        rt.addValue("Tensor memory (MB)",
+                    metrics.getTensorBytes() / (double) (1 << 20));
+    }
+    
+    /**
+     * Returns the density maps of the last count.
+     * 
+     * @return The density maps, or null if nothing was counted yet.
+     */
+    public ImageStack getDensityStack() {
+        return densityStack;
+    }
+    
+    /**
+     * Releases the model of this plugin.
+     */
+    public void close() {
+        predictor.close();
+    }
+    
+    /**
+     * Opens a TIFF stack as a virtual stack.
+     * 
+     * Only the file header is read. The frames are read from disk when they
+     * are requested, so the stack may be larger than the available memory.
+     * 
+     * @param path The path to a TIFF file.
+     * @return The image, backed by a virtual stack.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static ImagePlus openVirtual(String path) throws IOException {
+        ImagePlus imp = IJ.openVirtual(path);
+        if (imp == null) {
+            throw new IOException("Cannot open " + path + " as a virtual "
+                                  + "stack.");
+        }
+        return imp;
+    }
+    
+    /**
+     * Counts the objects in a TIFF stack without a graphical user interface.
+     * 
+     * Usage: {@code DensityCount <model> <stack.tif> <counts.csv>
+     * [<density map directory>]}
+     * 
+     * The stack is read lazily. The density maps are only written if a
+     * directory is given.
+     * 
+     * @param args The command line arguments.
+     * @throws Exception If the stack cannot be counted.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: DensityCount <model> <stack.tif> "
+                               + "<counts.csv> [<density map directory>]");
+            System.exit(1);
+        }
+        
+        ImagePlus imp = openVirtual(args[1]);
+        DensityCount dc = new DensityCount();
+        dc.setNumWorkers(Runtime.getRuntime().availableProcessors());
+        if (args.length == 4) {
+            dc.setDensityMapOutput(new File(args[3]), true);
+        } else {
+            dc.setKeepDensityMaps(false);
+        }
+        dc.setup(args[0], imp);
+        try {
+            dc.count().saveAs(args[2]);
+        } finally {
+            dc.close();
+        }
+    }
+    
+    /**
+     * Sets whether the density maps are kept in memory.
+     * 
+     * When they are not kept and no density map output is set, only the
+     * counts are predicted and the density maps are never created, which
+     * is the fastest way to count a stack. This has no effect when the
+     * density maps are streamed to disk.
+     * 
+     * @param keepDensityMaps Whether to keep the density maps in memory.
+     * @see #setDensityMapOutput(File, boolean)
+     */
+    public void setKeepDensityMaps(boolean keepDensityMaps) {
+        this.keepDensityMaps = keepDensityMaps;
+    }
+    
+    /**
+     * Looks up the results of the frames in a cache before predicting them.
+     * 
+     * Frames whose model, ROI and pixels are unchanged since they were last
+     * counted are not sent to the network again. When the density maps are
+     * neither kept nor written, cached counts without a density map are
+     * enough. The cache is not closed by this plugin. This must be called
+     * before setup() to have an effect.
+     * 
+     * @param resultCache The cache, or null to predict every frame.
+     * @see ResultCache
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+    
+    /**
+     * Sets the channels of a hyperstack that are counted.
+     * 
+     * Selecting channels makes run() count a hyperstack plane by plane, even
+     * if it has a single channel and slice.
+     * 
+     * @param channels The channels, numbered from 1. None counts all the
+     *                 channels, which is the default.
+     * @see #countHyperstack()
+     */
+    public void setChannels(int... channels) {
+        this.channels = channels.length == 0 ? null : channels.clone();
+    }
+    
+    /**
+     * Sets the parallelism of each axis of a hyperstack.
+     * 
+     * The workers that share the model are split between the time series of
+     * different channels and slices, which are read at the same time, and the
+     * batches of each series, which are predicted at the same time. The
+     * number of workers is the product of both. By default, the series are
+     * counted one at a time and the number of workers set by
+     * {@link #setNumWorkers(int)} is used for the batches.
+     * 
+     * @param zParallelism The number of channel and slice series that are
+     *                     counted at once.
+     * @param tParallelism The number of batches of each series that are
+     *                     predicted at once.
+     * @see #countHyperstack()
+     */
+    public void setAxisParallelism(int zParallelism, int tParallelism) {
+        if (zParallelism < 1 || tParallelism < 1) {
+            throw new IllegalArgumentException(
+                    "The parallelism of each axis must be at least 1.");
+        }
+        this.zParallelism = zParallelism;
+        this.tParallelism = tParallelism;
+    }
+    
+    /**
+     * Sets whether the predictor metrics are added to the results table.
+     * 
+     * Each row then also reports the throughput, the median and 99th
+     * percentile durations of the prediction stages and the native memory
+     * allocated for tensors, all accumulated up to that slice.
+     * 
+     * @param metricsColumns Whether to add the metrics columns.
+     * @see PredictorMetrics
+     */
+    public void setMetricsColumns(boolean metricsColumns) {
+        this.metricsColumns = metricsColumns;
+    }
+    
+    /**
+     * Streams the density maps to a directory on disk.
+     * 
+     * Each density map is written as soon as it is predicted, so that the
+     * memory use does not grow with the length of the stack. The maps are
+     * displayed as a virtual stack that reads them back from disk. Passing
+     * null keeps the density maps in memory, which is the default.
+     * 
+     * @param directory The directory of the density maps, or null.
+     * @param compress Whether to compress each density map.
+     * @see DensityMapWriter
+     */
+    public void setDensityMapOutput(File directory, boolean compress) {
+        this.densityMapDirectory = directory;
+        this.compressDensityMaps = compress;
+    }
+    
+    /**
+     * Sets the number of worker threads that share the model.
+     * 
+     * @param numWorkers The number of worker threads.
+     */
+    public void setNumWorkers(int numWorkers) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException(
+                    "At least one worker is required.");
+        }
+        this.numWorkers = numWorkers;
+    }
+    
+    /**
+     * Sets the capacity of the queues between the pipeline stages.
+     * 
+     * This bounds how far the reading of frames may run ahead of the network.
+     * 
+     * @param queueCapacity The capacity of each queue, in batches.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "The queue capacity must be at least 1.");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+    
+    /**
+     * Predicts each frame in tiles of a given size.
+     * 
+     * Tiling bounds the memory used by the network for very large frames. The
+     * tiles overlap by {@link TiledPredictor#DEFAULT_HALO} pixels and are
+     * predicted in parallel by the workers, so the density maps and counts are
+     * the same as without tiling. This must be called before setup() to have
+     * an effect.
+     * 
+     * @param tileSize The width of a tile, a multiple of four, or 0 to predict
+     *                 whole frames.
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize < 0 || tileSize % 4 != 0) {
+            throw new IllegalArgumentException(
+                    "The tile size must be a multiple of four.");
+        }
+        this.tileSize = tileSize;
+    }
+    
+    /**
+     * Sets whether the predictor is warmed up for the shapes of the batches
+     * during setup().
+     * 
+     * The warm-up moves the one-time allocations and optimizations of
+     * TensorFlow out of the measured run, at the cost of extra inferences.
+     * One-shot runs may skip it.
+     * 
+     * @param warmUp Whether to warm up the predictor.
+     */
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+    
+    /**
+     * Sets the operation of the graph to which tiles are fed after they are
+     * rescaled as a whole frame.
+     * 
+     * This must be called before setup() to have an effect.
+     * 
+     * @param normalizedInput The name of the operation, or null to rescale
+     *                        the tiles independently.
+     * @see TiledPredictor#setNormalizedInput(String)
+     */
+    public void setNormalizedInput(String normalizedInput) {
+        this.normalizedInput = normalizedInput;
+    }
+    
+    /**
+     * Sets the options of the TensorFlow session.
+     * 
+     * This must be called before setup() to have an effect.
+     * 
+     * @param sessionOptions The options of the TensorFlow session.
+     */
+    public void setSessionOptions(SessionOptions sessionOptions) {
+        this.sessionOptions = sessionOptions;
+    }
+    
+    /**
+     * Sets the number of frames that are sent to the network at once.
+     * 
+     * Larger batches reduce the number of TensorFlow session calls at the cost
+     * of more memory per call.
+     * 
+     * @param batchSize The number of frames per batch.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * Sets the tuner that chooses the batch size, the number of workers and
+     * the number of intra-op threads.
+     * 
+     * The tuned values replace those that were set by hand when setup() is
+     * called. Tiled predictions are not tuned.
+     * 
+     * @param autoTuner The tuner, or null to use the values set by hand.
+     */
+    public void setAutoTuner(AutoTuner autoTuner) {
+        this.autoTuner = autoTuner;
     }
 
     /**
@@ -107,13 +621,108 @@ public class DensityCount implements PlugInFilter {
         // Unlocks the image.
         if (imp.isLocked()) {imp.unlock();}
         image = imp;
-        predictor.setup(pathToModel);
+        if (autoTuner != null && tileSize == 0) {
+            tune(pathToModel);
+        }
+        if (tileSize > 0) {
+            TiledPredictor tiled = new TiledPredictor(
+                    tileSize, TiledPredictor.DEFAULT_HALO);
+            tiled.setNumThreads(numWorkers);
+            tiled.setNormalizedInput(normalizedInput);
+            predictor = tiled;
+        }
+        if (resultCache != null) {
+            CachingPredictor caching = new CachingPredictor(predictor,
+                                                            resultCache);
+            caching.setRequireDensityMaps(keepDensityMaps
+                                          || densityMapDirectory != null);
+            predictor = caching;
+        }
+        if (warmUp) {
+            predictor.setup(pathToModel, sessionOptions, getWarmUpShapes());
+        } else {
+            predictor.setup(pathToModel, sessionOptions);
+        }
+        for (Map.Entry<InputShape, Long> warmUp
+                : predictor.getWarmUpTimes().entrySet()) {
+            IJ.log(String.format("DEFCoN warm-up for %s: %d ms",
+                   warmUp.getKey(),
+                   TimeUnit.NANOSECONDS.toMillis(warmUp.getValue())));
+        }
         
         // Create the results table
         rt = new ResultsTable();
 
-        // Only accepts 8-bit and 16-bit images.
-        return DOES_8G | DOES_16;
+        // Only accepts 8-bit, 16-bit and 32-bit grayscale images.
+        return DOES_8G | DOES_16 | DOES_32;
+    }
+
+    /**
+     * Applies the configuration of the auto-tuner.
+     * 
+     * The values set by hand are kept if the tuning fails.
+     * 
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     */
+    private void tune(String pathToModel) {
+        Rectangle bounds = image.getRoi() == null
+                ? null : image.getRoi().getBounds();
+        AutoTuner.Configuration configuration;
+        autoTuner.setSessionOptions(sessionOptions);
+        autoTuner.setCountsOnly(!keepDensityMaps
+                                && densityMapDirectory == null);
+        try {
+            configuration = autoTuner.tune(pathToModel, image.getImageStack(),
+                                           bounds);
+        } catch (ImageBitDepthException | SessionClosedException
+                 | IOException ex) {
+            IJ.log("Auto-tuning failed, using the configured batch size and "
+                   + "workers: " + ex.getMessage());
+            return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        batchSize = configuration.getBatchSize();
+        numWorkers = configuration.getNumWorkers();
+        sessionOptions = new SessionOptions(sessionOptions);
+        sessionOptions.setIntraOpThreads(configuration.getIntraOpThreads());
+        IJ.log("DEFCoN auto-tuned configuration: " + configuration);
+    }
+
+    /**
+     * Returns the shapes of the batches that the pipeline will send to the
+     * network: full batches and the final, partial batch.
+     * 
+     * Tiled predictors batch tiles instead of frames, so a single frame is
+     * enough for them to warm up with the shape of their tiles.
+     * 
+     * @return The expected input shapes.
+     */
+    private List<InputShape> getWarmUpShapes() {
+        Rectangle bounds = image.getRoi() == null
+                ? new Rectangle(image.getWidth(), image.getHeight())
+                : image.getRoi().getBounds();
+        int width = bounds.width - bounds.width % 4;
+        int height = bounds.height - bounds.height % 4;
+        // Hyperstacks are batched along the time axis.
+        int stackSize = isCountedPerPlane() ? image.getNFrames()
+                                            : image.getImageStackSize();
+        
+        List<InputShape> shapes = new ArrayList<>();
+        if (width < 4 || height < 4) {
+            return shapes;
+        }
+        if (tileSize > 0) {
+            shapes.add(new InputShape(width, height, 1));
+            return shapes;
+        }
+        shapes.add(new InputShape(width, height,
+                                  Math.min(batchSize, stackSize)));
+        if (stackSize > batchSize && stackSize % batchSize != 0) {
+            shapes.add(new InputShape(width, height, stackSize % batchSize));
+        }
+        return shapes;
     }
 
     /**
@@ -135,7 +744,7 @@ public class DensityCount implements PlugInFilter {
                 roi.getBounds().width - roi.getBounds().width % 4,
                 roi.getBounds().height - roi.getBounds().height % 4);
 
-        WindowManager.getCurrentImage().setRoi(reshapedRoi);
+        image.setRoi(reshapedRoi);
         densityStack = new ImageStack(reshapedRoi.getBounds().width,
                                       reshapedRoi.getBounds().height);
         return reshapedRoi;
@@ -18,7 +18,11 @@
  */
 package ch.epfl.leb.defcon.ij;
 
-import ch.epfl.leb.defcon.predictors.internal.AbstractPredictor;
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.internal.FramePipeline;
+import ch.epfl.leb.defcon.predictors.internal.MaxCountPredictor;
+import ch.epfl.leb.defcon.predictors.internal.PredictorPool;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -26,40 +30,112 @@ import ij.gui.Roi;
 import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
-import ij.WindowManager;
 
-import net.imglib2.type.numeric.RealType;
-import org.tensorflow.*;
+import java.awt.Rectangle;
 
-
-public class MaxCountFCN extends AbstractPredictor implements PlugInFilter {
+/**
+ * Computes the maximum local count of every slice of an image.
+ * 
+ * The slices are predicted in batches by a {@link MaxCountPredictor} that is
+ * shared by a pool of workers, like in {@link DensityCount}.
+ * 
+ * @author Kyle M. Douglass
+ */
+public class MaxCountFCN implements PlugInFilter {
     private ImagePlus image;
     private ResultsTable rt;
-    private Session tfSession;
+    private final MaxCountPredictor predictor = new MaxCountPredictor();
     private Roi roi;
+    
+    private int batchSize = DensityCount.DEFAULT_BATCH_SIZE;
+    
+    private int numWorkers = 1;
 
-    // Runs DEFCoN on the selected image stack. It ouputs a results table with the maximum local count
+    // Runs DEFCoN on the selected image stack. It ouputs a results table with the maximum local count.
     public void run(ImageProcessor ip) {
-        int stack_size = image.getImageStackSize();
-        roi = WindowManager.getCurrentImage().getRoi();
-        Roi reshapedRoi = initRoi();
-
-        for (int i=1; i <= stack_size; i++ ) {
-            ImageProcessor proc = image.getImageStack().getProcessor(i);
-            ImagePlus slice = new ImagePlus("DEFCoN", proc);
-
-            rt.incrementCounter();
-            // Make the prediction
-            float prediction = predict(slice, reshapedRoi);
-            // Build the results table.
-            // TODO Make the (7x7) label more general. It currently depends
-            // on the network using 7x7 subregions.
-            rt.addValue("Max local count (7x7)", prediction);
-            IJ.showProgress(i, stack_size);
+        try {
+            count();
+        } catch (ImageBitDepthException | SessionClosedException ex) {
+            IJ.log(ex.getMessage());
+            return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            predictor.close();
         }
 
         rt.show("Maximum local count");
     }
+    
+    /**
+     * Computes the maximum local count of every slice of the image without
+     * displaying anything.
+     * 
+     * Slices are read one batch at a time, so virtual stacks are never loaded
+     * as a whole.
+     * 
+     * @return The results table with the maximum local count of every slice.
+     * @throws ImageBitDepthException
+     * @throws SessionClosedException
+     * @throws InterruptedException If the thread is interrupted while waiting
+     *                              for results.
+     */
+    public ResultsTable count() throws ImageBitDepthException,
+                                       SessionClosedException,
+                                       InterruptedException {
+        final int stackSize = image.getImageStackSize();
+        roi = image.getRoi();
+        Rectangle bounds = initRoi().getBounds();
+        
+        try (PredictorPool pool = new PredictorPool(predictor, numWorkers)) {
+            FramePipeline pipeline = new FramePipeline(
+                    pool, batchSize, FramePipeline.DEFAULT_QUEUE_CAPACITY);
+            pipeline.setCountsOnly(true);
+            pipeline.run(image.getImageStack(), bounds, (slice, result) -> {
+                rt.incrementCounter();
+                rt.addValue("Max local count (" + MaxCountPredictor.BOX_SIZE
+                            + "x" + MaxCountPredictor.BOX_SIZE + ")",
+                            result.getCount());
+                IJ.showProgress(slice, stackSize);
+            });
+        }
+        IJ.log(predictor.getMetrics().toString());
+        return rt;
+    }
+    
+    /**
+     * Releases the model of this plugin.
+     */
+    public void close() {
+        predictor.close();
+    }
+    
+    /**
+     * Sets the number of worker threads that share the model.
+     * 
+     * @param numWorkers The number of worker threads.
+     */
+    public void setNumWorkers(int numWorkers) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException(
+                    "At least one worker is required.");
+        }
+        this.numWorkers = numWorkers;
+    }
+    
+    /**
+     * Sets the number of frames that are sent to the network at once.
+     * 
+     * @param batchSize The number of frames per batch.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
 
     /**
      * Sets up the PlugInFilter.
@@ -78,15 +154,14 @@ public class MaxCountFCN extends AbstractPredictor implements PlugInFilter {
         if (imp.isLocked()) {imp.unlock();}
         image = imp;
 
-        // Loading DEFCoN tensorflow model
-        SavedModelBundle smb = SavedModelBundle.load(pathToModel, "serve");
-        tfSession = smb.session();
+        // Loading DEFCoN tensorflow model from the shared model registry
+        predictor.setup(pathToModel);
 
         // Create the results table
         rt = new ResultsTable();
 
-        // Only accepts 8bit and 16bit images.
-        return DOES_8G | DOES_16;
+        // Only accepts 8bit, 16bit and 32bit grayscale images.
+        return DOES_8G | DOES_16 | DOES_32;
     }
 
     // Gets the current ROI in ImageJ and crops it so that each dimension is divisible by 4
@@ -102,28 +177,7 @@ public class MaxCountFCN extends AbstractPredictor implements PlugInFilter {
                 roi.getBounds().width - roi.getBounds().width % 4,
                 roi.getBounds().height - roi.getBounds().height % 4);
 
-        WindowManager.getCurrentImage().setRoi(reshapedRoi);
+        image.setRoi(reshapedRoi);
         return reshapedRoi;
     }
-
-    // Makes a DEFCoN max local count prediction on an ImagePlus
-    private <T extends RealType<T>> float predict(final ImagePlus imp, Roi reshapedRoi) {
-
-        // Crop the image to the ROI
-        imp.setRoi(reshapedRoi);
-        ImagePlus impRoi = imp.crop();
-
-        // Converts the ImagePlus input to a tensorflow tensor
-        Tensor<Float> inputTensor = imageToTensor(impRoi);
-
-        // Make the prediction with DEFCoN
-        Tensor<Float> outputTensor = tfSession.runner()
-                .feed("input_tensor", inputTensor)
-                .fetch("output_tensor")
-                .run().get(0).expect(Float.class);
-
-        // Transforms the predicted tensor to a float scalar
-        float[][] pred = outputTensor.copyTo(new float[1][1]);
-        return pred[0][0];
-    }
 }
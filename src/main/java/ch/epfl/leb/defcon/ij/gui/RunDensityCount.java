@@ -20,6 +20,8 @@ package ch.epfl.leb.defcon.ij.gui;
  */
 
 import ch.epfl.leb.defcon.ij.DensityCount;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+import ch.epfl.leb.defcon.predictors.internal.AutoTuner;
 import ij.IJ;
 import ij.Prefs;
 import ij.ImagePlus;
@@ -27,6 +29,9 @@ import ij.plugin.PlugIn;
 import ij.gui.GenericDialog;
 import ij.process.ImageProcessor;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Launches the density count DEFCoN plugin.
  * 
@@ -44,6 +49,66 @@ public class RunDensityCount implements PlugIn {
      */
     private static final String DEFAULTPATH = "/path/to/tf_density_count";
     
+    /**
+     * The name of the key for the number of worker threads.
+     */
+    private static final String WORKERSKEY = "defcon.density.workers";
+    
+    /**
+     * The name of the key for the directory of the density map output.
+     */
+    private static final String OUTPUTKEY = "defcon.density.output";
+    
+    /**
+     * The name of the key for the compression of the density map output.
+     */
+    private static final String COMPRESSKEY = "defcon.density.compress";
+    
+    /**
+     * The name of the key for the tile size.
+     */
+    private static final String TILEKEY = "defcon.density.tileSize";
+    
+    /**
+     * The name of the key for the channels of a hyperstack that are counted.
+     */
+    private static final String CHANNELSKEY = "defcon.density.channels";
+    
+    /**
+     * The name of the key for the auto-tuning of the batch size and threads.
+     */
+    private static final String AUTOTUNEKEY = "defcon.density.autoTune";
+    
+    /**
+     * The name of the key for the warm-up before counting.
+     */
+    private static final String WARMUPKEY = "defcon.density.warmUp";
+    
+    /**
+     * The name of the key for the number of TensorFlow intra-op threads.
+     */
+    private static final String INTRAOPKEY = "defcon.density.intraOp";
+    
+    /**
+     * The name of the key for the number of TensorFlow inter-op threads.
+     */
+    private static final String INTEROPKEY = "defcon.density.interOp";
+    
+    /**
+     * The name of the key for the level of the graph optimizations.
+     */
+    private static final String OPTIMIZERKEY = "defcon.density.optimizer";
+    
+    /**
+     * The name of the key for the growth of the GPU memory.
+     */
+    private static final String GPUGROWTHKEY = "defcon.density.gpuGrowth";
+    
+    /**
+     * The name of the key for the fraction of the GPU memory.
+     */
+    private static final String GPUFRACTIONKEY = "defcon.density.gpuFraction";
+    
     public void run(String arg) {
         GenericDialog gd = new GenericDialog("DEFCoN Setup: Density Count");
         gd.addMessage("Please specify the path to the saved DEFCoN density " +
@@ -54,20 +119,129 @@ public class RunDensityCount implements PlugIn {
         
         // Display the GUI dialog requesting the model path.
         gd.addStringField( "path", pathPref, 64);
+        gd.addNumericField("workers", Prefs.get(WORKERSKEY, 1), 0);
+        gd.addCheckbox("auto-tune batch size and threads",
+                       Prefs.get(AUTOTUNEKEY, false));
+        gd.addCheckbox("warm up before counting",
+                       Prefs.get(WARMUPKEY, false));
+        gd.addMessage("TensorFlow session options (0 for the TensorFlow " +
+                      "default):");
+        gd.addNumericField("intra-op threads", Prefs.get(INTRAOPKEY, 0), 0);
+        gd.addNumericField("inter-op threads", Prefs.get(INTEROPKEY, 0), 0);
+        String[] levels = new String[SessionOptions.OptimizerLevel.values()
+                                                                  .length];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = SessionOptions.OptimizerLevel.values()[i].name();
+        }
+        gd.addChoice("graph optimizer", levels,
+                     Prefs.get(OPTIMIZERKEY, levels[0]));
+        gd.addCheckbox("allow GPU memory growth",
+                       Prefs.get(GPUGROWTHKEY, false));
+        gd.addNumericField("GPU memory fraction",
+                           Prefs.get(GPUFRACTIONKEY, 0), 2);
+        gd.addNumericField("tile size (0 for whole frames)",
+                           Prefs.get(TILEKEY, 0), 0);
+        gd.addStringField("hyperstack channels (e.g. 1,3; empty for all)",
+                          Prefs.get(CHANNELSKEY, ""), 16);
+        gd.addMessage("Leave the output directory empty to keep the density " +
+                      "maps in memory.");
+        gd.addStringField("output directory", Prefs.get(OUTPUTKEY, ""), 64);
+        gd.addCheckbox("compress output", Prefs.get(COMPRESSKEY, false));
+        gd.addMessage("Leave the input stack empty to count the current " +
+                      "image. A TIFF file is read lazily from disk.");
+        gd.addStringField("input stack", "", 64);
         gd.showDialog();
         if (gd.wasCanceled()) return;
 
         // Computes this path for later.
         String path = gd.getNextString();
         Prefs.set(PATHKEY, path);
+        int workers = Math.max(1, (int) gd.getNextNumber());
+        Prefs.set(WORKERSKEY, workers);
+        boolean autoTune = gd.getNextBoolean();
+        Prefs.set(AUTOTUNEKEY, autoTune);
+        boolean warmUp = gd.getNextBoolean();
+        Prefs.set(WARMUPKEY, warmUp);
+        SessionOptions options = new SessionOptions();
+        options.setIntraOpThreads(Math.max(0, (int) gd.getNextNumber()));
+        Prefs.set(INTRAOPKEY, options.getIntraOpThreads());
+        options.setInterOpThreads(Math.max(0, (int) gd.getNextNumber()));
+        Prefs.set(INTEROPKEY, options.getInterOpThreads());
+        options.setOptimizerLevel(
+                SessionOptions.OptimizerLevel.valueOf(gd.getNextChoice()));
+        Prefs.set(OPTIMIZERKEY, options.getOptimizerLevel().name());
+        options.setAllowGpuMemoryGrowth(gd.getNextBoolean());
+        Prefs.set(GPUGROWTHKEY, options.getAllowGpuMemoryGrowth());
+        double fraction = gd.getNextNumber();
+        if (Double.isNaN(fraction)) {
+            fraction = 0;
+        }
+        options.setGpuMemoryFraction(Math.min(1, Math.max(0, fraction)));
+        Prefs.set(GPUFRACTIONKEY, options.getGpuMemoryFraction());
+        int tileSize = Math.max(0, (int) gd.getNextNumber());
+        tileSize -= tileSize % 4;
+        Prefs.set(TILEKEY, tileSize);
+        String channelList = gd.getNextString().trim();
+        Prefs.set(CHANNELSKEY, channelList);
+        int[] channels;
+        try {
+            channels = parseChannels(channelList);
+        } catch (NumberFormatException ex) {
+            IJ.error("DEFCoN", "Invalid channels: " + channelList);
+            return;
+        }
+        String output = gd.getNextString().trim();
+        Prefs.set(OUTPUTKEY, output);
+        boolean compress = gd.getNextBoolean();
+        Prefs.set(COMPRESSKEY, compress);
+        String input = gd.getNextString().trim();
 
         // Run the density count.
-        ImagePlus imp = IJ.getImage();
+        ImagePlus imp;
+        if (input.isEmpty()) {
+            imp = IJ.getImage();
+        } else {
+            try {
+                imp = DensityCount.openVirtual(input);
+            } catch (IOException ex) {
+                IJ.error("DEFCoN", ex.getMessage());
+                return;
+            }
+        }
         DensityCount dc = new DensityCount();
+        dc.setNumWorkers(workers);
+        dc.setSessionOptions(options);
+        dc.setWarmUp(warmUp);
+        dc.setTileSize(tileSize);
+        dc.setChannels(channels);
+        if (autoTune) {
+            dc.setAutoTuner(new AutoTuner(AutoTuner.getDefaultStore()));
+        }
+        if (!output.isEmpty()) {
+            dc.setDensityMapOutput(new File(output), compress);
+        }
         dc.setup(path, imp);
 
         ImageProcessor ip = imp.getProcessor();
         dc.run(ip);
     }
     
+    /**
+     * Parses a comma-separated list of channels.
+     * 
+     * @param list The list, which may be empty.
+     * @return The channels, numbered from 1.
+     */
+    private static int[] parseChannels(String list) {
+        if (list.isEmpty()) {
+            return new int[0];
+        }
+        String[] items = list.split(",");
+        int[] channels = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            channels[i] = Integer.parseInt(items[i].trim());
+        }
+        return channels;
+    }
+    
 }
@@ -19,6 +19,7 @@ package ch.epfl.leb.defcon.ij.gui;
  * <http://www.gnu.org/licenses/>.
  */
 
+import ch.epfl.leb.defcon.ij.DensityCount;
 import ch.epfl.leb.defcon.ij.MaxCountFCN;
 import ij.IJ;
 import ij.Prefs;
@@ -27,6 +28,8 @@ import ij.plugin.PlugIn;
 import ij.gui.GenericDialog;
 import ij.process.ImageProcessor;
 
+import java.io.IOException;
+
 /**
  * Launches the maximum local count DEFCoN plugin.
  * 
@@ -44,6 +47,11 @@ public class RunMaxCountFCN implements PlugIn {
      */
     private static final String DEFAULTPATH = "/path/to/tf_max_count";
     
+    /**
+     * The name of the key for the number of worker threads.
+     */
+    private static final String WORKERSKEY = "defcon.maxCount.workers";
+    
     public void run(String arg) {
         GenericDialog gd = new GenericDialog("DEFCoN Setup: Density Count");
         gd.addMessage("Please specify the path to the saved DEFCoN maximum " +
@@ -54,16 +62,34 @@ public class RunMaxCountFCN implements PlugIn {
         
         // Displays the GUI dialog requesting the model path.
         gd.addStringField( "path", pathPref, 64);
+        gd.addNumericField("workers", Prefs.get(WORKERSKEY, 1), 0);
+        gd.addMessage("Leave the input stack empty to count the current " +
+                      "image. A TIFF file is read lazily from disk.");
+        gd.addStringField("input stack", "", 64);
         gd.showDialog();
         if (gd.wasCanceled()) return;
 
         // Remembers this path for later.
         String path = gd.getNextString();
         Prefs.set(PATHKEY, path);
+        int workers = Math.max(1, (int) gd.getNextNumber());
+        Prefs.set(WORKERSKEY, workers);
+        String input = gd.getNextString().trim();
 
         // Computes the maximum local count.
-        ImagePlus imp = IJ.getImage();
+        ImagePlus imp;
+        if (input.isEmpty()) {
+            imp = IJ.getImage();
+        } else {
+            try {
+                imp = DensityCount.openVirtual(input);
+            } catch (IOException ex) {
+                IJ.error("DEFCoN", ex.getMessage());
+                return;
+            }
+        }
         MaxCountFCN mc = new MaxCountFCN();
+        mc.setNumWorkers(workers);
         mc.setup(path, imp);
 
         ImageProcessor ip = imp.getProcessor();
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors;
+
+import ij.measure.ResultsTable;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The counts of the planes of a hyperstack, indexed by channel, slice (Z)
+ * and frame (T).
+ *
+ * The counts are kept in a single array in which time varies fastest, so a
+ * time series of one channel and slice is a contiguous block. Channels,
+ * slices and frames are numbered from 1 like in ImageJ. Only the channels
+ * that were counted are stored.
+ *
+ * The counts are written by the threads that predict them; every (c, z, t)
+ * must be written by exactly one thread.
+ *
+ * @author Kyle M. Douglass
+ */
+public final class HyperstackCounts {
+
+    private final int[] channels;
+
+    private final int numSlices;
+
+    private final int numFrames;
+
+    private final double[] counts;
+
+    /**
+     * Creates counts for a hyperstack, all equal to NaN.
+     *
+     * @param channels The channels that are counted, numbered from 1.
+     * @param numSlices The number of slices (Z).
+     * @param numFrames The number of frames (T).
+     */
+    public HyperstackCounts(int[] channels, int numSlices, int numFrames) {
+        if (channels.length == 0 || numSlices < 1 || numFrames < 1) {
+            throw new IllegalArgumentException(
+                    "At least one channel, slice and frame is required.");
+        }
+        this.channels = channels.clone();
+        this.numSlices = numSlices;
+        this.numFrames = numFrames;
+        this.counts = new double[channels.length * numSlices * numFrames];
+        Arrays.fill(counts, Double.NaN);
+    }
+
+    private int indexOf(int c, int z, int t) {
+        if (z < 1 || z > numSlices || t < 1 || t > numFrames) {
+            throw new IndexOutOfBoundsException(
+                    "No slice " + z + " or frame " + t + ".");
+        }
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == c) {
+                return ((i * numSlices) + z - 1) * numFrames + t - 1;
+            }
+        }
+        throw new IllegalArgumentException("Channel " + c
+                                           + " was not counted.");
+    }
+
+    /**
+     * Returns the count of one plane.
+     *
+     * @param c The channel.
+     * @param z The slice.
+     * @param t The frame.
+     * @return The count, or NaN if the plane was not counted.
+     */
+    public double getCount(int c, int z, int t) {
+        return counts[indexOf(c, z, t)];
+    }
+
+    /**
+     * Sets the count of one plane.
+     *
+     * @param c The channel.
+     * @param z The slice.
+     * @param t The frame.
+     * @param count The count.
+     */
+    public void setCount(int c, int z, int t, double count) {
+        counts[indexOf(c, z, t)] = count;
+    }
+
+    /**
+     * Returns the counts of one channel and slice over time.
+     *
+     * @param c The channel.
+     * @param z The slice.
+     * @return A copy of the counts, one per frame.
+     */
+    public double[] getTimeSeries(int c, int z) {
+        int start = indexOf(c, z, 1);
+        return Arrays.copyOfRange(counts, start, start + numFrames);
+    }
+
+    /**
+     * Returns the channels that were counted.
+     *
+     * @return The channels, numbered from 1.
+     */
+    public int[] getChannels() {
+        return channels.clone();
+    }
+
+    /**
+     * Returns the number of slices (Z).
+     *
+     * @return The number of slices.
+     */
+    public int getNumSlices() {
+        return numSlices;
+    }
+
+    /**
+     * Returns the number of frames (T).
+     *
+     * @return The number of frames.
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Returns the counts as a table with one row per frame and one column
+     * per channel and slice, named for example "C1 Z2".
+     *
+     * @return The results table.
+     */
+    public ResultsTable toResultsTable() {
+        ResultsTable rt = new ResultsTable();
+        for (int t = 1; t <= numFrames; t++) {
+            rt.incrementCounter();
+            rt.addValue("T", t);
+            for (int c : channels) {
+                for (int z = 1; z <= numSlices; z++) {
+                    rt.addValue("C" + c + " Z" + z, getCount(c, z, t));
+                }
+            }
+        }
+        return rt;
+    }
+
+    /**
+     * Saves the counts as a CSV file in the layout of toResultsTable().
+     *
+     * @param path The path of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(String path) throws IOException {
+        toResultsTable().saveAs(path);
+    }
+
+}
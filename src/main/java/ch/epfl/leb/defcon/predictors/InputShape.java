@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors;
+
+/**
+ * The shape of the frames that a predictor is expected to receive.
+ *
+ * The width and height are those of the frames after cropping, so they must
+ * be multiples of four. The batch size is the number of frames that are sent
+ * to the network at once.
+ *
+ * @author Kyle M. Douglass
+ */
+public final class InputShape {
+
+    private final int width;
+
+    private final int height;
+
+    private final int batchSize;
+
+    /**
+     * Creates a new input shape.
+     *
+     * @param width The width of the frames, a multiple of four.
+     * @param height The height of the frames, a multiple of four.
+     * @param batchSize The number of frames per batch.
+     */
+    public InputShape(int width, int height, int batchSize) {
+        if (width < 4 || height < 4 || width % 4 != 0 || height % 4 != 0) {
+            throw new IllegalArgumentException(
+                    "The width and height must be multiples of four.");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
+        this.width = width;
+        this.height = height;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the width of the frames.
+     *
+     * @return The width of the frames.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the frames.
+     *
+     * @return The height of the frames.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of frames per batch.
+     *
+     * @return The batch size.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof InputShape)) {
+            return false;
+        }
+        InputShape other = (InputShape) obj;
+        return width == other.width && height == other.height
+               && batchSize == other.batchSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * width + height) * 31 + batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "x" + batchSize;
+    }
+
+}
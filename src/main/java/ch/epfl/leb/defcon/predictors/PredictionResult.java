@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors;
+
+import ch.epfl.leb.defcon.utils.SummedAreaTable;
+
+import ij.process.FloatProcessor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * The result of a single density map prediction.
+ *
+ * Instances are immutable and may be shared between threads. Local counts are
+ * computed from a summed-area table of the density map that is built the first
+ * time a local count is requested. Local count maps are only created when they
+ * are requested for a given box size and are then cached.
+ *
+ * The density map and the local count maps are shared by all callers and
+ * must not be modified.
+ *
+ * The density map may be built lazily, the first time that it is requested,
+ * so that callers that only need the count never pay for it. A result may
+ * also have no density map at all, in which case only the count is
+ * available and the local counts raise an IllegalStateException.
+ *
+ * @author Kyle M. Douglass
+ */
+public final class PredictionResult {
+
+    /**
+     * The count, i.e. the sum of the density map.
+     */
+    private final double count;
+
+    /**
+     * The predicted density map, once it has been built.
+     */
+    private volatile FloatProcessor densityMap;
+
+    /**
+     * Builds the density map on first use, or null once it is built.
+     */
+    private Supplier<FloatProcessor> densityMapSupplier;
+
+    /**
+     * The summed-area table of the density map, built on first use.
+     */
+    private volatile SummedAreaTable summedAreaTable;
+
+    /**
+     * The local count maps computed so far, indexed by box size.
+     */
+    private final ConcurrentMap<Integer, FloatProcessor> localCountMaps =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new prediction result.
+     *
+     * @param count The predicted count.
+     * @param densityMap The predicted density map.
+     */
+    public PredictionResult(double count, FloatProcessor densityMap) {
+        this.count = count;
+        this.densityMap = densityMap;
+    }
+
+    /**
+     * Creates a new prediction result whose density map is built on first
+     * use.
+     *
+     * @param count The predicted count.
+     * @param densityMap Builds the predicted density map. It is called at
+     *                   most once.
+     */
+    public PredictionResult(double count,
+                            Supplier<FloatProcessor> densityMap) {
+        this.count = count;
+        this.densityMapSupplier = densityMap;
+    }
+
+    /**
+     * Creates a new prediction result without a density map.
+     *
+     * @param count The predicted count.
+     */
+    public PredictionResult(double count) {
+        this.count = count;
+    }
+
+    /**
+     * Returns the predicted count.
+     *
+     * @return The predicted count from the density map.
+     */
+    public double getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the predicted density map, building it if needed.
+     *
+     * @return The predicted density map, or null if the result has only a
+     *         count.
+     */
+    public FloatProcessor getDensityMap() {
+        FloatProcessor map = densityMap;
+        if (map == null) {
+            synchronized (this) {
+                map = densityMap;
+                if (map == null && densityMapSupplier != null) {
+                    map = densityMapSupplier.get();
+                    densityMap = map;
+                    densityMapSupplier = null;
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns whether the result has a density map, built or not.
+     *
+     * @return False if the result has only a count.
+     */
+    public synchronized boolean hasDensityMap() {
+        return densityMap != null || densityMapSupplier != null;
+    }
+
+    /**
+     * Returns the local count map for a given box size.
+     *
+     * Each pixel of the local count map is the sum of the density map over a
+     * boxSize x boxSize square. Only the squares that lie entirely inside the
+     * density map are kept, so the map is boxSize - 1 pixels smaller than the
+     * density map in each dimension.
+     *
+     * @param boxSize The width of the square kernel.
+     * @return The local count map.
+     * @throws IllegalStateException If the result has no density map.
+     */
+    public FloatProcessor getLocalCountMap(int boxSize) {
+        return localCountMaps.computeIfAbsent(
+                boxSize, size -> getSummedAreaTable().localCountMap(size));
+    }
+
+    /**
+     * Returns the maximum local count value.
+     *
+     * This value is the highest sum of the density map over any square box of
+     * the given size that lies inside the map. It is equal to the maximum of
+     * the density map convolved with a square kernel of ones, but no local
+     * count map is created.
+     *
+     * @param boxSize The width of the square kernel.
+     * @return The maximum local count from the density map.
+     * @throws IllegalStateException If the result has no density map.
+     */
+    public double getMaximumLocalCount(int boxSize) {
+        return getLocalCountMaximum(boxSize).getValue();
+    }
+
+    /**
+     * Returns the maximum local count value and the position of its box.
+     *
+     * @param boxSize The width of the square kernel.
+     * @return The maximum local count and the top-left corner of its box.
+     * @throws IllegalStateException If the result has no density map.
+     */
+    public SummedAreaTable.Maximum getLocalCountMaximum(int boxSize) {
+        return getSummedAreaTable().findMaximum(boxSize);
+    }
+
+    /**
+     * Returns the summed-area table of the density map, building it if needed.
+     *
+     * @return The summed-area table.
+     * @throws IllegalStateException If the result has no density map.
+     */
+    public SummedAreaTable getSummedAreaTable() {
+        SummedAreaTable table = summedAreaTable;
+        if (table == null) {
+            synchronized (this) {
+                table = summedAreaTable;
+                if (table == null) {
+                    FloatProcessor map = getDensityMap();
+                    if (map == null) {
+                        throw new IllegalStateException(
+                                "The result has no density map, so local "
+                                + "counts are not available.");
+                    }
+                    table = new SummedAreaTable(map);
+                    summedAreaTable = table;
+                }
+            }
+        }
+        return table;
+    }
+
+}
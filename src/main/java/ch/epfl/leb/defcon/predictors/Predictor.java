@@ -19,19 +19,27 @@
 package ch.epfl.leb.defcon.predictors;
 
 
+import ij.ImageStack;
 import ij.process.ImageProcessor;
 import ij.process.FloatProcessor;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * Makes density map predictions from images.
  * 
+ * A predictor holds native TensorFlow memory that is not managed by the
+ * garbage collector and must be closed once it is no longer needed.
+ * 
  * @author Kyle M. Douglass
  */
-public interface Predictor {
+public interface Predictor extends AutoCloseable {
     
     /**
      * Closes resources associated with this predictor.
      */
+    @Override
     public void close();
     
     /**
@@ -45,7 +53,11 @@ public interface Predictor {
     /**
      * Returns the most recently calculated density map prediction.
      * 
-     * @return The predicted density map.
+     * Predictors whose model outputs only counts, such as the maximum local
+     * count model, return null.
+     * 
+     * @return The predicted density map, or null if the model does not
+     *         predict density maps.
      * @throws ch.epfl.leb.defcon.predictors.UninitializedPredictorException
      */
     public FloatProcessor getDensityMap() throws UninitializedPredictorException;
@@ -81,6 +93,71 @@ public interface Predictor {
     public void predict(final ImageProcessor ip) throws ImageBitDepthException,
                                                       SessionClosedException;
     
+    /**
+     * Makes a density map prediction from a 2D image and returns the result.
+     * 
+     * Unlike predict(), this method does not modify the state of the predictor.
+     * It may be called concurrently from several threads that share the same
+     * predictor.
+     * 
+     * @param ip The image to perform a prediction on.
+     * @return The result of the prediction.
+     */
+    public PredictionResult predictResult(final ImageProcessor ip)
+                                          throws ImageBitDepthException,
+                                                 SessionClosedException;
+    
+    /**
+     * Makes density map predictions from a list of same-sized 2D images and
+     * returns the results.
+     * 
+     * Like predictResult(), this method does not modify the state of the
+     * predictor.
+     * 
+     * @param ips The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the network at once.
+     * @return The results of the predictions in the order of the input.
+     */
+    public List<PredictionResult> predictBatchResults(
+            final List<? extends ImageProcessor> ips, int batchSize)
+            throws ImageBitDepthException, SessionClosedException;
+    
+    /**
+     * Makes density map predictions from a list of same-sized 2D images.
+     * 
+     * The images are sent to the network in batches of up to batchSize frames.
+     * This does not change the values returned by getCount() and
+     * getDensityMap().
+     * 
+     * @param ips The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the network at once.
+     * @param densityMaps If not null, the density maps are appended to this
+     *                    stack in the order of the input. It is left
+     *                    unchanged if the model does not predict density
+     *                    maps.
+     * @return The predicted counts, one per image.
+     */
+    public double[] predictBatch(final List<? extends ImageProcessor> ips,
+                                 int batchSize, ImageStack densityMaps)
+                                 throws ImageBitDepthException,
+                                        SessionClosedException;
+    
+    /**
+     * Makes density map predictions from all the slices of an image stack.
+     * 
+     * @param stack The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the network at once.
+     * @param densityMaps If not null, the density maps are appended to this
+     *                    stack in the order of the input. It is left
+     *                    unchanged if the model does not predict density
+     *                    maps.
+     * @return The predicted counts, one per slice.
+     */
+    public double[] predictBatch(final ImageStack stack, int batchSize,
+                                 ImageStack densityMaps)
+                                 throws ImageBitDepthException,
+                                        SessionClosedException;
+    
     /**
      * Initializes the predictor with a saved TensorFlow model bundle.
      * 
@@ -88,4 +165,47 @@ public interface Predictor {
      */
     public void setup(String pathToModel);
     
+    /**
+     * Initializes the predictor with custom TensorFlow session options.
+     * 
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param options The options of the TensorFlow session.
+     */
+    public void setup(String pathToModel, SessionOptions options);
+    
+    /**
+     * Initializes the predictor and warms it up for the expected input shapes.
+     * 
+     * TensorFlow allocates and optimizes its kernels the first time that it
+     * sees a new input shape, which makes the first prediction for every
+     * shape much slower than the following ones. This method makes one
+     * prediction on synthetic data for each shape so that this cost is paid
+     * during setup instead of on the first frames.
+     * 
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param options The options of the TensorFlow session.
+     * @param shapes The expected input shapes.
+     * @see #getWarmUpTimes()
+     */
+    public void setup(String pathToModel, SessionOptions options,
+                      List<InputShape> shapes);
+    
+    /**
+     * Returns the duration of each warm-up of the most recent setup.
+     * 
+     * @return The warm-up durations in nanoseconds, in the order of the
+     *         shapes. The map is empty if no warm-up was requested.
+     */
+    public Map<InputShape, Long> getWarmUpTimes();
+    
+    /**
+     * Returns the timing and throughput metrics of this predictor.
+     * 
+     * The metrics cover the predictions made since the most recent setup,
+     * excluding the warm-up.
+     * 
+     * @return The metrics of this predictor.
+     */
+    public PredictorMetrics getMetrics();
+    
 }
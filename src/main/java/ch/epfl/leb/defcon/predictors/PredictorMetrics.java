@@ -0,0 +1,348 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors;
+
+import ch.epfl.leb.defcon.utils.LatencyHistogram;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timing and throughput metrics of a predictor.
+ *
+ * The duration of every call to each stage of the prediction is recorded in
+ * a latency histogram. A call processes one batch of frames, so the
+ * durations are per batch. The metrics also count the predicted frames and
+ * the native memory that is held by input and output tensors.
+ *
+ * Metrics are recorded from the prediction threads and may be read at any
+ * time from any thread, either through this class or through JMX once
+ * {@link #registerMBean(String)} has been called.
+ *
+ * @author Kyle M. Douglass
+ */
+public class PredictorMetrics implements PredictorMetricsMBean {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            PredictorMetrics.class.getName());
+
+    /**
+     * The JMX domain of the metrics.
+     */
+    public static final String JMX_DOMAIN = "ch.epfl.leb.defcon";
+
+    private static final AtomicInteger MBEAN_NUMBER = new AtomicInteger(1);
+
+    /**
+     * The stages of a prediction.
+     */
+    public enum Stage {
+        /**
+         * Validating the ImageJ images and trimming their regions of
+         * interest.
+         */
+        CROP,
+        /**
+         * Converting the images to an input tensor.
+         */
+        TENSOR,
+        /**
+         * Running the TensorFlow session.
+         */
+        SESSION,
+        /**
+         * Copying the density maps out of the output tensor and counting.
+         */
+        COPY
+    }
+
+    private final Map<Stage, LatencyHistogram> histograms =
+            new EnumMap<>(Stage.class);
+
+    private final AtomicLong frames = new AtomicLong();
+
+    private final AtomicLong firstStart = new AtomicLong();
+
+    private final AtomicLong lastEnd = new AtomicLong();
+
+    private final AtomicLong tensorBytes = new AtomicLong();
+
+    private final AtomicLong liveTensorBytes = new AtomicLong();
+
+    private final AtomicLong peakLiveTensorBytes = new AtomicLong();
+
+    private volatile ObjectName mbeanName;
+
+    /**
+     * Creates empty metrics.
+     */
+    public PredictorMetrics() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records the duration of one call to a stage.
+     *
+     * @param stage The stage.
+     * @param startNanos The value of System.nanoTime() when the stage started.
+     * @return The current value of System.nanoTime(), to time the next stage.
+     */
+    public long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        histograms.get(stage).record(now - startNanos);
+        return now;
+    }
+
+    /**
+     * Records the prediction of a number of frames.
+     *
+     * @param count The number of frames.
+     * @param startNanos The value of System.nanoTime() when their prediction
+     *                   started.
+     */
+    public void recordFrames(int count, long startNanos) {
+        firstStart.compareAndSet(0, startNanos);
+        lastEnd.accumulateAndGet(System.nanoTime(), Math::max);
+        frames.addAndGet(count);
+    }
+
+    /**
+     * Records the allocation of native memory by a tensor.
+     *
+     * @param bytes The size of the tensor.
+     */
+    public void tensorAllocated(long bytes) {
+        tensorBytes.addAndGet(bytes);
+        long live = liveTensorBytes.addAndGet(bytes);
+        peakLiveTensorBytes.accumulateAndGet(live, Math::max);
+    }
+
+    /**
+     * Records the release of native memory by a tensor.
+     *
+     * @param bytes The size of the tensor.
+     */
+    public void tensorReleased(long bytes) {
+        liveTensorBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Returns the latency histogram of a stage.
+     *
+     * @param stage The stage.
+     * @return The durations of the calls to the stage, in nanoseconds.
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    /**
+     * Returns a percentile of the durations of a stage.
+     *
+     * @param stage The stage.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The duration in milliseconds.
+     */
+    public double getPercentileMillis(Stage stage, double percentile) {
+        return histograms.get(stage).getPercentile(percentile) / 1e6;
+    }
+
+    @Override
+    public long getFrames() {
+        return frames.get();
+    }
+
+    /**
+     * Returns the number of frames predicted per second, from the start of the
+     * first prediction to the end of the last one.
+     *
+     * @return The throughput in frames per second.
+     */
+    @Override
+    public double getFramesPerSecond() {
+        long elapsed = lastEnd.get() - firstStart.get();
+        return elapsed <= 0 ? 0.0 : frames.get() * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns the total size of all the tensors that were created.
+     *
+     * @return The native memory allocated for tensors, in bytes.
+     */
+    @Override
+    public long getTensorBytes() {
+        return tensorBytes.get();
+    }
+
+    /**
+     * Returns the native memory of the tensors that are currently open.
+     *
+     * This is zero between predictions.
+     *
+     * @return The native memory of the open tensors, in bytes.
+     */
+    @Override
+    public long getLiveTensorBytes() {
+        return liveTensorBytes.get();
+    }
+
+    /**
+     * Returns the largest amount of native memory that was held by tensors at
+     * the same time.
+     *
+     * @return The peak native memory of the tensors, in bytes.
+     */
+    @Override
+    public long getPeakLiveTensorBytes() {
+        return peakLiveTensorBytes.get();
+    }
+
+    @Override
+    public double getCropP50Millis() {
+        return getPercentileMillis(Stage.CROP, 50);
+    }
+
+    @Override
+    public double getCropP99Millis() {
+        return getPercentileMillis(Stage.CROP, 99);
+    }
+
+    @Override
+    public double getTensorP50Millis() {
+        return getPercentileMillis(Stage.TENSOR, 50);
+    }
+
+    @Override
+    public double getTensorP99Millis() {
+        return getPercentileMillis(Stage.TENSOR, 99);
+    }
+
+    @Override
+    public double getSessionP50Millis() {
+        return getPercentileMillis(Stage.SESSION, 50);
+    }
+
+    @Override
+    public double getSessionP99Millis() {
+        return getPercentileMillis(Stage.SESSION, 99);
+    }
+
+    @Override
+    public double getCopyP50Millis() {
+        return getPercentileMillis(Stage.COPY, 50);
+    }
+
+    @Override
+    public double getCopyP99Millis() {
+        return getPercentileMillis(Stage.COPY, 99);
+    }
+
+    /**
+     * Discards all the recorded metrics except the tensors that are still
+     * alive.
+     */
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        frames.set(0);
+        firstStart.set(0);
+        lastEnd.set(0);
+        tensorBytes.set(0);
+        peakLiveTensorBytes.set(liveTensorBytes.get());
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * The object name is {@value #JMX_DOMAIN}:type=PredictorMetrics,name=
+     * followed by the given name and a unique number.
+     *
+     * @param name A name that identifies the predictor, e.g. the plugin.
+     * @return The object name, or null if the registration failed.
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        unregisterMBean();
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN
+                    + ":type=PredictorMetrics,name="
+                    + ObjectName.quote(name + "-"
+                                       + MBEAN_NUMBER.getAndIncrement()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName);
+            mbeanName = objectName;
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, "Cannot register the predictor metrics.",
+                       ex);
+        }
+        return mbeanName;
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                             .unregisterMBean(mbeanName);
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING,
+                       "Cannot unregister the predictor metrics.", ex);
+        }
+        mbeanName = null;
+    }
+
+    /**
+     * Returns a human-readable summary of the metrics.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(
+                "DEFCoN metrics: %d frames, %.1f frames/s", getFrames(),
+                getFramesPerSecond()));
+        for (Stage stage : Stage.values()) {
+            sb.append(String.format("; %s p50 %.2f ms, p99 %.2f ms",
+                                    stage.name().toLowerCase(),
+                                    getPercentileMillis(stage, 50),
+                                    getPercentileMillis(stage, 99)));
+        }
+        sb.append(String.format("; tensors %d MB, peak live %d MB",
+                                getTensorBytes() / (1 << 20),
+                                getPeakLiveTensorBytes() / (1 << 20)));
+        return sb.toString();
+    }
+
+}
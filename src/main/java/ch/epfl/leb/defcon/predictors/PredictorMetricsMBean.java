@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors;
+
+/**
+ * The JMX view of the metrics of a predictor.
+ *
+ * Durations are in milliseconds.
+ *
+ * @author Kyle M. Douglass
+ * @see PredictorMetrics#registerMBean(String)
+ */
+public interface PredictorMetricsMBean {
+
+    long getFrames();
+
+    double getFramesPerSecond();
+
+    long getTensorBytes();
+
+    long getLiveTensorBytes();
+
+    long getPeakLiveTensorBytes();
+
+    double getCropP50Millis();
+
+    double getCropP99Millis();
+
+    double getTensorP50Millis();
+
+    double getTensorP99Millis();
+
+    double getSessionP50Millis();
+
+    double getSessionP99Millis();
+
+    double getCopyP50Millis();
+
+    double getCopyP99Millis();
+
+    /**
+     * Discards all the recorded metrics.
+     */
+    void reset();
+
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors;
+
+import org.tensorflow.framework.ConfigProto;
+import org.tensorflow.framework.GPUOptions;
+import org.tensorflow.framework.GraphOptions;
+import org.tensorflow.framework.OptimizerOptions;
+
+/**
+ * Options for the TensorFlow session that runs a DEFCoN model.
+ *
+ * A value of zero for a thread count lets TensorFlow choose it, which usually
+ * means one thread per available core. The GPU options have no effect when
+ * the model runs on the CPU.
+ *
+ * @author Kyle M. Douglass
+ * @see <a href="https://www.tensorflow.org/api_docs/python/tf/ConfigProto">ConfigProto | TensorFlow</a>
+ */
+public class SessionOptions {
+
+    /**
+     * The number of threads used to parallelize the execution of single ops.
+     */
+    private int intraOpThreads = 0;
+
+    /**
+     * The number of threads used to run independent ops concurrently.
+     */
+    private int interOpThreads = 0;
+
+    /**
+     * The level of the optimizations applied to the graph.
+     */
+    private OptimizerLevel optimizerLevel = OptimizerLevel.DEFAULT;
+
+    /**
+     * Whether GPU memory is allocated as needed instead of all at once.
+     */
+    private boolean allowGpuMemoryGrowth = false;
+
+    /**
+     * The fraction of the GPU memory that the process may allocate.
+     */
+    private double gpuMemoryFraction = 0;
+
+    /**
+     * Creates options that let TensorFlow choose everything.
+     */
+    public SessionOptions() {
+    }
+
+    /**
+     * Creates a copy of other options.
+     *
+     * @param other The options to copy.
+     */
+    public SessionOptions(SessionOptions other) {
+        this.intraOpThreads = other.intraOpThreads;
+        this.interOpThreads = other.interOpThreads;
+        this.optimizerLevel = other.optimizerLevel;
+        this.allowGpuMemoryGrowth = other.allowGpuMemoryGrowth;
+        this.gpuMemoryFraction = other.gpuMemoryFraction;
+    }
+
+    /**
+     * Returns the number of threads used to parallelize single ops.
+     *
+     * @return The number of intra-op threads, or 0 for the TensorFlow default.
+     */
+    public int getIntraOpThreads() {
+        return intraOpThreads;
+    }
+
+    /**
+     * Sets the number of threads used to parallelize single ops.
+     *
+     * @param intraOpThreads The number of intra-op threads, or 0 for the
+     *                       TensorFlow default.
+     */
+    public void setIntraOpThreads(int intraOpThreads) {
+        if (intraOpThreads < 0) {
+            throw new IllegalArgumentException(
+                    "The number of threads cannot be negative.");
+        }
+        this.intraOpThreads = intraOpThreads;
+    }
+
+    /**
+     * Returns the number of threads used to run independent ops concurrently.
+     *
+     * @return The number of inter-op threads, or 0 for the TensorFlow default.
+     */
+    public int getInterOpThreads() {
+        return interOpThreads;
+    }
+
+    /**
+     * Sets the number of threads used to run independent ops concurrently.
+     *
+     * @param interOpThreads The number of inter-op threads, or 0 for the
+     *                       TensorFlow default.
+     */
+    public void setInterOpThreads(int interOpThreads) {
+        if (interOpThreads < 0) {
+            throw new IllegalArgumentException(
+                    "The number of threads cannot be negative.");
+        }
+        this.interOpThreads = interOpThreads;
+    }
+
+    /**
+     * Returns the level of the optimizations applied to the graph.
+     *
+     * @return The optimizer level.
+     */
+    public OptimizerLevel getOptimizerLevel() {
+        return optimizerLevel;
+    }
+
+    /**
+     * Sets the level of the optimizations applied to the graph.
+     *
+     * @param optimizerLevel The optimizer level.
+     */
+    public void setOptimizerLevel(OptimizerLevel optimizerLevel) {
+        if (optimizerLevel == null) {
+            throw new IllegalArgumentException(
+                    "The optimizer level cannot be null.");
+        }
+        this.optimizerLevel = optimizerLevel;
+    }
+
+    /**
+     * Returns whether GPU memory is allocated as needed.
+     *
+     * @return True if the GPU memory grows as needed.
+     */
+    public boolean getAllowGpuMemoryGrowth() {
+        return allowGpuMemoryGrowth;
+    }
+
+    /**
+     * Sets whether GPU memory is allocated as needed.
+     *
+     * By default, TensorFlow allocates almost all the GPU memory when the
+     * session starts.
+     *
+     * @param allowGpuMemoryGrowth True to allocate GPU memory as needed.
+     */
+    public void setAllowGpuMemoryGrowth(boolean allowGpuMemoryGrowth) {
+        this.allowGpuMemoryGrowth = allowGpuMemoryGrowth;
+    }
+
+    /**
+     * Returns the fraction of the GPU memory that the process may allocate.
+     *
+     * @return The fraction of the GPU memory, or 0 for the TensorFlow default.
+     */
+    public double getGpuMemoryFraction() {
+        return gpuMemoryFraction;
+    }
+
+    /**
+     * Sets the fraction of the GPU memory that the process may allocate.
+     *
+     * @param gpuMemoryFraction The fraction of the GPU memory, between 0 and
+     *                          1, or 0 for the TensorFlow default.
+     */
+    public void setGpuMemoryFraction(double gpuMemoryFraction) {
+        if (!(gpuMemoryFraction >= 0 && gpuMemoryFraction <= 1)) {
+            throw new IllegalArgumentException(
+                    "The GPU memory fraction must be between 0 and 1.");
+        }
+        this.gpuMemoryFraction = gpuMemoryFraction;
+    }
+
+    /**
+     * Serializes these options into a TensorFlow ConfigProto message.
+     *
+     * @return The serialized ConfigProto.
+     */
+    public byte[] toConfigProto() {
+        ConfigProto.Builder config = ConfigProto.newBuilder();
+        if (intraOpThreads > 0) {
+            config.setIntraOpParallelismThreads(intraOpThreads);
+        }
+        if (interOpThreads > 0) {
+            config.setInterOpParallelismThreads(interOpThreads);
+        }
+        if (optimizerLevel != OptimizerLevel.DEFAULT) {
+            config.setGraphOptions(GraphOptions.newBuilder()
+                    .setOptimizerOptions(OptimizerOptions.newBuilder()
+                            .setOptLevel(optimizerLevel.level)));
+        }
+        if (allowGpuMemoryGrowth || gpuMemoryFraction > 0) {
+            GPUOptions.Builder gpu = GPUOptions.newBuilder();
+            gpu.setAllowGrowth(allowGpuMemoryGrowth);
+            if (gpuMemoryFraction > 0) {
+                gpu.setPerProcessGpuMemoryFraction(gpuMemoryFraction);
+            }
+            config.setGpuOptions(gpu);
+        }
+        return config.build().toByteArray();
+    }
+
+    /**
+     * The levels of the graph optimizations.
+     */
+    public enum OptimizerLevel {
+        /**
+         * The TensorFlow default, currently the same as L1.
+         */
+        DEFAULT(OptimizerOptions.Level.L1),
+
+        /**
+         * No optimizations.
+         */
+        L0(OptimizerOptions.Level.L0),
+
+        /**
+         * Common subexpression elimination and constant folding.
+         */
+        L1(OptimizerOptions.Level.L1);
+
+        private final OptimizerOptions.Level level;
+
+        private OptimizerLevel(OptimizerOptions.Level level) {
+            this.level = level;
+        }
+    }
+
+}
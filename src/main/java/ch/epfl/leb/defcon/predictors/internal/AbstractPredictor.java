@@ -18,16 +18,25 @@
  */
 package ch.epfl.leb.defcon.predictors.internal;
 
-import ch.epfl.leb.defcon.utils.GraphBuilder;
+import ch.epfl.leb.defcon.predictors.InputShape;
+import ch.epfl.leb.defcon.predictors.PredictorMetrics;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+import ch.epfl.leb.defcon.utils.TensorFactory;
 
 import ij.ImagePlus;
-import net.imagej.tensorflow.Tensors;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.type.numeric.real.FloatType;
-import org.tensorflow.Graph;
-import org.tensorflow.Output;
-import org.tensorflow.SavedModelBundle;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import org.tensorflow.Session;
 import org.tensorflow.Tensor;
 
@@ -41,90 +50,205 @@ import org.tensorflow.Tensor;
  */
 public abstract class AbstractPredictor {
     
+    private final static Logger LOGGER = Logger.getLogger(
+            AbstractPredictor.class.getName());
+    
+    /**
+     * The reference to the model in the shared model registry.
+     */
+    protected ModelHandle model;
+    
     /**
      * A copy of the current TensorFlow session.
+     * 
+     * The session belongs to the model registry and may be shared with other
+     * predictors; it must not be closed directly.
      */
     protected Session tfSession;
     
     /**
      * Has the TensorFlow session been closed?
      */
-    protected boolean isClosed = false;
+    protected volatile boolean isClosed = false;
+    
+    /**
+     * The duration of each warm-up of the most recent setup, in nanoseconds.
+     */
+    private volatile Map<InputShape, Long> warmUpTimes =
+            Collections.emptyMap();
+    
+    /**
+     * The timing and throughput metrics of the predictions.
+     */
+    protected final PredictorMetrics metrics = new PredictorMetrics();
+    
+    /**
+     * The budget from which the memory of the input and output tensors is
+     * reserved.
+     */
+    protected volatile TensorMemoryBudget tensorBudget =
+            TensorMemoryBudget.getInstance();
     
     /**
      * Closes resources associated with this predictor.
+     * 
+     * This releases the predictor's reference to the model. The model itself
+     * is closed by the registry once it is no longer used. Predictors hold no
+     * other native memory between predictions, and nothing is released by
+     * the garbage collector: a predictor that is not closed keeps its model
+     * loaded.
      */
     public void close() {
-        tfSession.close();
+        ModelHandle handle = model;
+        model = null;
+        if (handle != null) {
+            handle.close();
+        }
         isClosed = true;
     }
     
+    /**
+     * Sets the budget from which the memory of the tensors is reserved.
+     * 
+     * By default, all the predictors share the process-wide budget.
+     * 
+     * @param tensorBudget The tensor memory budget.
+     * @see TensorMemoryBudget#getInstance()
+     */
+    public void setTensorMemoryBudget(TensorMemoryBudget tensorBudget) {
+        this.tensorBudget = tensorBudget;
+    }
+    
     /**
      * Initializes the predictor.
      * 
      * @param pathToModel The path to a saved TensorFlow model bundle.
      */
     public void setup(String pathToModel) {
-        // Loads a DEFCoN tensorflow model.
-        SavedModelBundle smb = SavedModelBundle.load(pathToModel, "serve");
-        tfSession = smb.session();
-
+        setup(pathToModel, new SessionOptions());
     }
     
     /**
-     * Converts an ImageJ image to a TensorFlow tensor.
+     * Initializes the predictor with custom TensorFlow session options.
      * 
-     * The original image is preserved.
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param options The options of the TensorFlow session.
+     */
+    public void setup(String pathToModel, SessionOptions options) {
+        // Loads a DEFCoN tensorflow model or reuses an already loaded one.
+        ModelHandle previous = model;
+        model = ModelRegistry.getInstance().acquire(pathToModel, options);
+        tfSession = model.getSession();
+        isClosed = false;
+        if (previous != null) {
+            previous.close();
+        }
+        warmUpTimes = Collections.emptyMap();
+        metrics.reset();
+    }
+    
+    /**
+     * Initializes the predictor and warms it up for the expected input shapes.
      * 
-     * @param imp The image to convert.
-     * @return A tensor representing the data in the original image.
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param options The options of the TensorFlow session.
+     * @param shapes The expected input shapes.
      */
-    protected static Tensor<Float> imageToTensor(final ImagePlus imp) {
-
-        // Convert to float Img (imglib2)
-        Img<FloatType> img = ImageJFunctions.convertFloat(imp);
-        // Normalizes values between 0 and 1 (for int16).
-        // This is not that important since DEFCoN normalizes input directly.
-        // Img<FloatType> img_divided = divide(img, 65535);
-
-        // Creates a tensorflow tensor from the Img.
-        Tensor<Float> imageTensor = Tensors.tensorFloat(img);
-
-        // Adds two dimensions to imageTensor for consistency with the
-        // TensorFlow input layer shape.
-        // (imageTensor) = (height, width) -> (1, height, width, 1)
-        Graph graph = new Graph();
-
-        Output imageTensorOutput = graph.opBuilder("Const", "tensor_image")
-                .setAttr("dtype", imageTensor.dataType())
-                .setAttr("value", imageTensor)
-                .build().output(0);
-        Output<Float> expandedTensorOutput = GraphBuilder.expandDims(
-                graph,
-                "dim-1",
-                GraphBuilder.expandDims(graph, "dim0", imageTensorOutput,
-                    GraphBuilder.constant(graph, "make_batch", 0)),
-                GraphBuilder.constant(graph, "make_channel", -1));
-
-        Session s0 = new Session(graph);
-        Tensor<Float> inputTensor = s0.runner()
-                                      .fetch(expandedTensorOutput
-                                      .op().name()).run().get(0)
-                                      .expect(Float.class);
-
-        return inputTensor;
+    public void setup(String pathToModel, SessionOptions options,
+                      List<InputShape> shapes) {
+        setup(pathToModel, options);
+        
+        Map<InputShape, Long> times = new LinkedHashMap<>();
+        for (InputShape shape : shapes) {
+            if (times.containsKey(shape)) {
+                continue;
+            }
+            long start = System.nanoTime();
+            warmUp(shape);
+            long duration = System.nanoTime() - start;
+            times.put(shape, duration);
+            LOGGER.log(Level.INFO, "Warm-up for input shape {0} took {1} ms",
+                       new Object[] {shape,
+                                     TimeUnit.NANOSECONDS.toMillis(duration)});
+        }
+        warmUpTimes = Collections.unmodifiableMap(times);
+        
+        // The warm-up is not representative of the steady state.
+        metrics.reset();
+    }
+    
+    /**
+     * Returns the duration of each warm-up of the most recent setup.
+     * 
+     * @return The warm-up durations in nanoseconds, in the order of the
+     *         shapes.
+     */
+    public Map<InputShape, Long> getWarmUpTimes() {
+        return warmUpTimes;
     }
     
     /**
-     * Failsafe in case the TensorFlow session has not been closed.
-     * @throws java.lang.Throwable
+     * Returns the timing and throughput metrics of this predictor.
+     * 
+     * @return The metrics of the predictions since the most recent setup.
      */
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            tfSession.close();
-        } finally {
-            super.finalize();
+    public PredictorMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Runs one inference on synthetic data of a given shape.
+     * 
+     * Subclasses that do more than run the session on the input tensor should
+     * override this to go through their whole prediction path.
+     * 
+     * @param shape The shape of the synthetic input.
+     */
+    protected void warmUp(InputShape shape) {
+        try (Tensor<Float> input = TensorFactory.imagesToTensor(
+                     syntheticFrames(shape));
+             Tensor<?> output = tfSession.runner()
+                     .feed("input_tensor", input)
+                     .fetch("output_tensor")
+                     .run().get(0)) {
+            // Only the side effects of the first run matter.
         }
     }
-}
+    
+    /**
+     * Creates 16-bit frames of random noise with the given shape.
+     * 
+     * Noise is used instead of a constant so that the input normalization of
+     * the network does not divide by zero.
+     * 
+     * @param shape The shape of the frames.
+     * @return One frame per element of the batch.
+     */
+    protected static List<ImageProcessor> syntheticFrames(InputShape shape) {
+        Random random = new Random(shape.hashCode());
+        List<ImageProcessor> frames = new ArrayList<>(shape.getBatchSize());
+        for (int b = 0; b < shape.getBatchSize(); b++) {
+            short[] pixels = new short[shape.getWidth() * shape.getHeight()];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (short) (100 + random.nextInt(1000));
+            }
+            frames.add(new ShortProcessor(shape.getWidth(), shape.getHeight(),
+                                          pixels, null));
+        }
+        return frames;
+    }
+    
+    /**
+     * Converts an ImageJ image to a (1, height, width, 1) TensorFlow tensor.
+     * 
+     * The original image is preserved. The returned tensor holds native
+     * memory and must be closed by the caller.
+     * 
+     * @param imp The image to convert.
+     * @return A tensor representing the data in the original image.
+     * @see ch.epfl.leb.defcon.utils.TensorFactory
+     */
+    protected static Tensor<Float> imageToTensor(final ImagePlus imp) {
+        return TensorFactory.imageToTensor(imp.getProcessor());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,535 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.InputShape;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the batch size, the number of workers and the number of TensorFlow
+ * intra-op threads that count a stack the fastest.
+ *
+ * The best values depend on the model, the size of the frames and the
+ * machine. The tuner runs short calibration passes on the first frames of a
+ * stack and measures their throughput and tensor memory. It first compares
+ * ways of splitting the processors between workers and intra-op threads,
+ * then batch sizes for the best split. Among the configurations within
+ * {@link #TOLERANCE} of the highest throughput, the one with the least
+ * tensor memory wins.
+ *
+ * The calibration passes run in the mode of the count, either counts only or
+ * with density maps, since the density maps change both the throughput and
+ * the tensor memory. The chosen configuration is saved in a properties file,
+ * keyed by the content of the model, the size of the frames, the host name,
+ * the mode and the session options that are not tuned, so that later runs
+ * skip the calibration.
+ *
+ * @author Kyle M. Douglass
+ */
+public class AutoTuner {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            AutoTuner.class.getName());
+
+    /**
+     * The default number of frames of each calibration pass.
+     */
+    public static final int DEFAULT_CALIBRATION_FRAMES = 32;
+
+    /**
+     * The largest batch size that is tried.
+     */
+    public static final int MAX_BATCH_SIZE = 64;
+
+    /**
+     * The fraction of the highest throughput within which configurations are
+     * compared by memory instead.
+     */
+    public static final double TOLERANCE = 0.05;
+
+    /**
+     * The number of timed passes of each configuration; the fastest counts.
+     */
+    private static final int REPEATS = 2;
+
+    private final File store;
+
+    private int calibrationFrames = DEFAULT_CALIBRATION_FRAMES;
+
+    private int maxThreads = Runtime.getRuntime().availableProcessors();
+
+    private SessionOptions sessionOptions = new SessionOptions();
+
+    private boolean countsOnly = false;
+
+    /**
+     * Creates a tuner that saves its configurations in a file.
+     *
+     * @param store The properties file of the configurations. It is created
+     *              when the first configuration is saved.
+     */
+    public AutoTuner(File store) {
+        this.store = store;
+    }
+
+    /**
+     * Returns the default file of the configurations, in the home directory
+     * of the user.
+     *
+     * @return The default properties file.
+     */
+    public static File getDefaultStore() {
+        return new File(new File(System.getProperty("user.home"), ".defcon"),
+                        "tuning.properties");
+    }
+
+    /**
+     * Returns the saved configuration for the frames of a stack, running a
+     * calibration and saving its result if there is none.
+     *
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param stack The stack to count. Its first frames are used for the
+     *              calibration.
+     * @param roi The region of each frame that is counted, or null for the
+     *            whole frame.
+     * @return The best configuration.
+     * @throws ImageBitDepthException
+     * @throws SessionClosedException
+     * @throws IOException If the configurations cannot be read or saved.
+     * @throws InterruptedException If the thread is interrupted during the
+     *                              calibration.
+     */
+    public synchronized Configuration tune(String pathToModel,
+                                           ImageStack stack, Rectangle roi)
+                                           throws ImageBitDepthException,
+                                                  SessionClosedException,
+                                                  IOException,
+                                                  InterruptedException {
+        if (roi == null) {
+            roi = new Rectangle(stack.getWidth(), stack.getHeight());
+        }
+        Rectangle trimmed = new Rectangle(roi.x, roi.y,
+                                          roi.width - roi.width % 4,
+                                          roi.height - roi.height % 4);
+        String key = key(pathToModel, trimmed);
+
+        Properties configurations = load();
+        String saved = configurations.getProperty(key);
+        if (saved != null) {
+            try {
+                Configuration configuration = Configuration.parse(saved);
+                LOGGER.log(Level.INFO, "Using the saved configuration {0}",
+                           configuration);
+                return configuration;
+            } catch (IllegalArgumentException ex) {
+                LOGGER.log(Level.WARNING, "Ignoring the invalid saved "
+                           + "configuration " + saved, ex);
+            }
+        }
+
+        List<ImageProcessor> frames = new ArrayList<>();
+        for (int i = 1; i <= Math.min(calibrationFrames, stack.getSize());
+                i++) {
+            ImageProcessor ip = stack.getProcessor(i);
+            ip.setRoi(trimmed);
+            frames.add(ip);
+        }
+        Configuration best = calibrate(pathToModel, frames);
+        configurations.setProperty(key, best.format());
+        save(configurations);
+        return best;
+    }
+
+    /**
+     * Finds the best configuration for a list of same-sized frames without
+     * reading or saving any configuration.
+     *
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param frames The calibration frames, with their ROIs set.
+     * @return The best configuration.
+     * @throws ImageBitDepthException
+     * @throws SessionClosedException
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public Configuration calibrate(String pathToModel,
+                                   List<ImageProcessor> frames)
+                                   throws ImageBitDepthException,
+                                          SessionClosedException,
+                                          InterruptedException {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "At least one calibration frame is required.");
+        }
+
+        // Splits the processors between workers and intra-op threads.
+        List<Configuration> measured = new ArrayList<>();
+        int batchSize = Math.min(8, frames.size());
+        for (int workers = 1; workers <= maxThreads; workers *= 2) {
+            measured.add(measure(pathToModel, frames, batchSize, workers,
+                                 Math.max(1, maxThreads / workers)));
+        }
+        Configuration best = choose(measured);
+
+        // Tries other batch sizes for the best split.
+        measured.clear();
+        measured.add(best);
+        int maxBatchSize = Math.min(MAX_BATCH_SIZE, frames.size());
+        for (int b = 1; b <= maxBatchSize; b *= 2) {
+            if (b != batchSize) {
+                measured.add(measure(pathToModel, frames, b,
+                                     best.getNumWorkers(),
+                                     best.getIntraOpThreads()));
+            }
+        }
+        best = choose(measured);
+        LOGGER.log(Level.INFO, "Calibrated configuration {0}", best);
+        return best;
+    }
+
+    /**
+     * Returns the configuration with the least memory among those within the
+     * tolerance of the highest throughput.
+     */
+    private static Configuration choose(List<Configuration> measured) {
+        double fastest = 0;
+        for (Configuration c : measured) {
+            fastest = Math.max(fastest, c.getFramesPerSecond());
+        }
+        Configuration best = null;
+        for (Configuration c : measured) {
+            if (c.getFramesPerSecond() >= (1 - TOLERANCE) * fastest
+                    && (best == null
+                        || c.getPeakTensorBytes() < best.getPeakTensorBytes())) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Times the counts of the calibration frames with one configuration.
+     */
+    private Configuration measure(String pathToModel,
+                                  List<ImageProcessor> frames, int batchSize,
+                                  int numWorkers, int intraOpThreads)
+                                  throws ImageBitDepthException,
+                                         SessionClosedException,
+                                         InterruptedException {
+        SessionOptions options = new SessionOptions(sessionOptions);
+        options.setIntraOpThreads(intraOpThreads);
+        Rectangle roi = frames.get(0).getRoi();
+        List<InputShape> shapes = new ArrayList<>();
+        shapes.add(new InputShape(roi.width, roi.height, batchSize));
+        if (frames.size() % batchSize != 0) {
+            shapes.add(new InputShape(roi.width, roi.height,
+                                      frames.size() % batchSize));
+        }
+
+        long fastest = Long.MAX_VALUE;
+        long peakTensorBytes;
+        try (DefaultPredictor predictor = new DefaultPredictor();
+             PredictorPool pool = new PredictorPool(predictor, numWorkers)) {
+            predictor.setup(pathToModel, options, shapes);
+            for (int repeat = 0; repeat < REPEATS; repeat++) {
+                long start = System.nanoTime();
+                List<Future<List<PredictionResult>>> pending =
+                        new ArrayList<>();
+                for (int first = 0; first < frames.size();
+                        first += batchSize) {
+                    List<ImageProcessor> batch = frames.subList(
+                            first, Math.min(first + batchSize, frames.size()));
+                    pending.add(countsOnly
+                                ? pool.submitCounts(batch, batchSize)
+                                : pool.submitBatch(batch, batchSize));
+                }
+                for (Future<List<PredictionResult>> future : pending) {
+                    try {
+                        // Builds the density maps like the consumers of a
+                        // count that keeps or writes them.
+                        for (PredictionResult result : future.get()) {
+                            if (!countsOnly) {
+                                result.getDensityMap();
+                            }
+                        }
+                    } catch (ExecutionException ex) {
+                        throw PredictorPool.unwrap(ex);
+                    }
+                }
+                fastest = Math.min(fastest, System.nanoTime() - start);
+            }
+            peakTensorBytes = predictor.getMetrics().getPeakLiveTensorBytes();
+        }
+
+        Configuration configuration = new Configuration(
+                batchSize, numWorkers, intraOpThreads,
+                frames.size() / (fastest / 1e9), peakTensorBytes);
+        LOGGER.log(Level.INFO, "Calibration: {0}", configuration);
+        return configuration;
+    }
+
+    /**
+     * Returns the key of the configuration of a model, frame size, host,
+     * mode and session options.
+     *
+     * The session options are identified by their serialized form without
+     * the tuned number of intra-op threads.
+     */
+    private String key(String pathToModel, Rectangle roi) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            host = "localhost";
+        }
+
+        SessionOptions untuned = new SessionOptions(sessionOptions);
+        untuned.setIntraOpThreads(0);
+        StringBuilder options = new StringBuilder();
+        for (byte b : untuned.toConfigProto()) {
+            options.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return ResultCache.modelId(pathToModel) + "." + roi.width + "x"
+               + roi.height + "." + host + "."
+               + (countsOnly ? "counts" : "maps") + "."
+               + (options.length() == 0 ? "default" : options);
+    }
+
+    private Properties load() throws IOException {
+        Properties configurations = new Properties();
+        if (store.isFile()) {
+            try (InputStream in = new FileInputStream(store)) {
+                configurations.load(in);
+            }
+        }
+        return configurations;
+    }
+
+    private void save(Properties configurations) throws IOException {
+        File directory = store.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        try (OutputStream out = new FileOutputStream(store)) {
+            configurations.store(out, "DEFCoN auto-tuned configurations: "
+                                      + "batch size, workers, intra-op "
+                                      + "threads, frames/s, tensor bytes");
+        }
+    }
+
+    /**
+     * Sets the number of frames of each calibration pass.
+     *
+     * More frames give more reliable measurements and longer calibrations.
+     *
+     * @param calibrationFrames The number of frames.
+     */
+    public void setCalibrationFrames(int calibrationFrames) {
+        if (calibrationFrames < 1) {
+            throw new IllegalArgumentException(
+                    "At least one calibration frame is required.");
+        }
+        this.calibrationFrames = calibrationFrames;
+    }
+
+    /**
+     * Sets the number of processors that the configurations may use.
+     *
+     * @param maxThreads The number of processors, by default all of them.
+     */
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException(
+                    "At least one thread is required.");
+        }
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Sets the session options of the calibration passes.
+     *
+     * Their number of intra-op threads is replaced by the tried values.
+     * Configurations are saved separately for different options.
+     *
+     * @param sessionOptions The options of the TensorFlow session.
+     */
+    public void setSessionOptions(SessionOptions sessionOptions) {
+        this.sessionOptions = sessionOptions;
+    }
+
+    /**
+     * Sets whether the count that is tuned predicts only the counts.
+     *
+     * By default the calibration passes also build the density maps, like
+     * counts that keep or write them. Configurations are saved separately
+     * for both modes.
+     *
+     * @param countsOnly Whether to calibrate counts without density maps.
+     */
+    public void setCountsOnly(boolean countsOnly) {
+        this.countsOnly = countsOnly;
+    }
+
+    /**
+     * A measured configuration.
+     */
+    public static final class Configuration {
+
+        private final int batchSize;
+
+        private final int numWorkers;
+
+        private final int intraOpThreads;
+
+        private final double framesPerSecond;
+
+        private final long peakTensorBytes;
+
+        Configuration(int batchSize, int numWorkers, int intraOpThreads,
+                      double framesPerSecond, long peakTensorBytes) {
+            this.batchSize = batchSize;
+            this.numWorkers = numWorkers;
+            this.intraOpThreads = intraOpThreads;
+            this.framesPerSecond = framesPerSecond;
+            this.peakTensorBytes = peakTensorBytes;
+        }
+
+        /**
+         * Parses a configuration written by format().
+         *
+         * @throws IllegalArgumentException If the text is not valid.
+         */
+        static Configuration parse(String text) {
+            String[] fields = text.split(",");
+            if (fields.length != 5) {
+                throw new IllegalArgumentException(
+                        "Expected 5 fields: " + text);
+            }
+            Configuration configuration = new Configuration(
+                    Integer.parseInt(fields[0].trim()),
+                    Integer.parseInt(fields[1].trim()),
+                    Integer.parseInt(fields[2].trim()),
+                    Double.parseDouble(fields[3].trim()),
+                    Long.parseLong(fields[4].trim()));
+            if (configuration.batchSize < 1 || configuration.numWorkers < 1
+                    || configuration.intraOpThreads < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid configuration: " + text);
+            }
+            return configuration;
+        }
+
+        String format() {
+            return String.format(Locale.ROOT, "%d,%d,%d,%.2f,%d", batchSize,
+                                 numWorkers, intraOpThreads, framesPerSecond,
+                                 peakTensorBytes);
+        }
+
+        /**
+         * Returns the number of frames that are sent to the network at once.
+         *
+         * @return The batch size.
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * Returns the number of workers that share the model.
+         *
+         * @return The number of workers.
+         */
+        public int getNumWorkers() {
+            return numWorkers;
+        }
+
+        /**
+         * Returns the number of TensorFlow intra-op threads.
+         *
+         * @return The number of intra-op threads.
+         */
+        public int getIntraOpThreads() {
+            return intraOpThreads;
+        }
+
+        /**
+         * Returns the throughput measured during the calibration.
+         *
+         * @return The throughput in frames per second.
+         */
+        public double getFramesPerSecond() {
+            return framesPerSecond;
+        }
+
+        /**
+         * Returns the peak tensor memory measured during the calibration.
+         *
+         * @return The peak native memory of the tensors, in bytes.
+         */
+        public long getPeakTensorBytes() {
+            return peakTensorBytes;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Configuration)) {
+                return false;
+            }
+            return format().equals(((Configuration) obj).format());
+        }
+
+        @Override
+        public int hashCode() {
+            return format().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "batch size %d, %d workers, %d intra-op threads: "
+                    + "%.1f frames/s, %.1f MB of tensors", batchSize,
+                    numWorkers, intraOpThreads, framesPerSecond,
+                    peakTensorBytes / (double) (1 << 20));
+        }
+    }
+
+}
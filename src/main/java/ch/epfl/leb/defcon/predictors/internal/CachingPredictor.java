@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.InputShape;
+import ch.epfl.leb.defcon.predictors.NoLocalCountMapException;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.Predictor;
+import ch.epfl.leb.defcon.predictors.PredictorMetrics;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A predictor that looks up the results of frames in a {@link ResultCache}
+ * before predicting them with another predictor.
+ *
+ * Only the frames that miss the cache are sent to the wrapped predictor, in
+ * batches, and their results are added to the cache. If density maps are not
+ * required, only the counts of the missed frames are predicted, and cached
+ * counts from either tier of the cache are returned without a density map,
+ * i.e. {@link PredictionResult#getDensityMap()} returns null. The stateful
+ * predict() method always requires density maps.
+ *
+ * The cache keys include the configuration of the wrapped predictor, e.g.
+ * the tiles of a TiledPredictor, so that results of differently configured
+ * predictors are never mixed. The density maps that are returned are copies
+ * of the cached ones and may be modified.
+ *
+ * @author Kyle M. Douglass
+ */
+public class CachingPredictor implements Predictor {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            CachingPredictor.class.getName());
+
+    private final Predictor predictor;
+
+    private final ResultCache cache;
+
+    private volatile String modelId;
+
+    private volatile boolean requireDensityMaps = true;
+
+    private volatile PredictionResult lastResult;
+
+    private volatile LocalCount localCount;
+
+    /**
+     * Wraps a predictor with a cache.
+     *
+     * @param predictor The predictor of the frames that miss the cache. It is
+     *                  set up and closed by this predictor.
+     * @param cache The cache. It is not closed by this predictor.
+     */
+    public CachingPredictor(Predictor predictor, ResultCache cache) {
+        this.predictor = predictor;
+        this.cache = cache;
+    }
+
+    /**
+     * Sets whether the results must have a density map.
+     *
+     * @param requireDensityMaps If false, counts without a density map may be
+     *                           returned from either tier of the cache.
+     */
+    public void setRequireDensityMaps(boolean requireDensityMaps) {
+        this.requireDensityMaps = requireDensityMaps;
+    }
+
+    /**
+     * Returns the cache of this predictor.
+     *
+     * @return The cache.
+     */
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void setup(String pathToModel) {
+        predictor.setup(pathToModel);
+        modelId = cacheId(pathToModel);
+    }
+
+    @Override
+    public void setup(String pathToModel, SessionOptions options) {
+        predictor.setup(pathToModel, options);
+        modelId = cacheId(pathToModel);
+    }
+
+    @Override
+    public void setup(String pathToModel, SessionOptions options,
+                      List<InputShape> shapes) {
+        predictor.setup(pathToModel, options, shapes);
+        modelId = cacheId(pathToModel);
+    }
+
+    @Override
+    public void close() {
+        predictor.close();
+    }
+
+    /**
+     * Returns the identity of the model and of the configuration of the
+     * wrapped predictor that prefixes the cache keys.
+     */
+    private String cacheId(String pathToModel) {
+        StringBuilder id = new StringBuilder(ResultCache.modelId(pathToModel));
+        id.append('/').append(predictor.getClass().getName());
+        if (predictor instanceof TiledPredictor) {
+            TiledPredictor tiled = (TiledPredictor) predictor;
+            id.append('/').append(tiled.getTileSize())
+              .append('/').append(tiled.getHalo())
+              .append('/').append(tiled.getNormalizedInput());
+        }
+        return id.toString();
+    }
+
+    @Override
+    public PredictionResult predictResult(final ImageProcessor ip)
+            throws ImageBitDepthException, SessionClosedException {
+        return predictBatchResults(Arrays.asList(ip), 1).get(0);
+    }
+
+    @Override
+    public List<PredictionResult> predictBatchResults(
+            final List<? extends ImageProcessor> ips, int batchSize)
+            throws ImageBitDepthException, SessionClosedException {
+        return predictCached(ips, batchSize, requireDensityMaps);
+    }
+
+    /**
+     * Looks up a list of frames and predicts those that miss the cache.
+     */
+    private List<PredictionResult> predictCached(
+            final List<? extends ImageProcessor> ips, int batchSize,
+            boolean requireMaps)
+            throws ImageBitDepthException, SessionClosedException {
+        if (modelId == null) {
+            throw new IllegalStateException("The predictor is not set up.");
+        }
+
+        PredictionResult[] results = new PredictionResult[ips.size()];
+        String[] keys = new String[ips.size()];
+        List<ImageProcessor> missed = new ArrayList<>();
+        List<Integer> missedIndices = new ArrayList<>();
+        for (int i = 0; i < ips.size(); i++) {
+            keys[i] = ResultCache.key(modelId, ips.get(i));
+            results[i] = cache.get(keys[i], requireMaps);
+            if (results[i] == null) {
+                missed.add(ips.get(i));
+                missedIndices.add(i);
+            }
+        }
+
+        if (!missed.isEmpty()) {
+            List<PredictionResult> predicted;
+            if (requireMaps) {
+                predicted = predictor.predictBatchResults(missed, batchSize);
+            } else {
+                double[] counts = predictor.predictBatch(missed, batchSize,
+                                                         null);
+                predicted = new ArrayList<>(counts.length);
+                for (double count : counts) {
+                    predicted.add(new PredictionResult(count));
+                }
+            }
+            for (int j = 0; j < predicted.size(); j++) {
+                int i = missedIndices.get(j);
+                Rectangle roi = ips.get(i).getRoi();
+                cache.put(keys[i], predicted.get(j),
+                          (roi.width - roi.width % 4)
+                          * (roi.height - roi.height % 4));
+                // The cached density map is never handed out.
+                results[i] = ResultCache.copyOf(predicted.get(j));
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    @Override
+    public double[] predictBatch(final List<? extends ImageProcessor> ips,
+                                 int batchSize, ImageStack densityMaps)
+                                 throws ImageBitDepthException,
+                                        SessionClosedException {
+        List<PredictionResult> results = predictCached(
+                ips, batchSize, requireDensityMaps || densityMaps != null);
+        double[] counts = new double[results.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = results.get(i).getCount();
+            if (densityMaps != null) {
+                densityMaps.addSlice(results.get(i).getDensityMap());
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public double[] predictBatch(final ImageStack stack, int batchSize,
+                                 ImageStack densityMaps)
+                                 throws ImageBitDepthException,
+                                        SessionClosedException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
+        double[] counts = new double[stack.getSize()];
+        for (int start = 1; start <= stack.getSize(); start += batchSize) {
+            int end = Math.min(start + batchSize - 1, stack.getSize());
+            List<ImageProcessor> batch = new ArrayList<>(end - start + 1);
+            for (int i = start; i <= end; i++) {
+                batch.add(stack.getProcessor(i));
+            }
+            double[] batchCounts = predictBatch(batch, batchSize, densityMaps);
+            System.arraycopy(batchCounts, 0, counts, start - 1,
+                             batchCounts.length);
+        }
+        return counts;
+    }
+
+    @Override
+    public void predict(final ImageProcessor ip) throws ImageBitDepthException,
+                                                      SessionClosedException {
+        lastResult = predictCached(Arrays.asList(ip), 1, true).get(0);
+    }
+
+    @Override
+    public double getCount() throws UninitializedPredictorException {
+        return getLastResult().getCount();
+    }
+
+    @Override
+    public FloatProcessor getDensityMap()
+            throws UninitializedPredictorException {
+        return getLastResult().getDensityMap();
+    }
+
+    @Override
+    public double getMaximumLocalCount(int boxSize)
+            throws UninitializedPredictorException {
+        PredictionResult result = getLastResult();
+        double maximum = result.getMaximumLocalCount(boxSize);
+        localCount = new LocalCount(result, boxSize);
+        return maximum;
+    }
+
+    @Override
+    public FloatProcessor getLocalCountMap() throws NoLocalCountMapException {
+        LocalCount local = localCount;
+        if (local == null) {
+            String msg = "The Predictor has not yet performed any local "
+                       + "count estimates.";
+            LOGGER.log(Level.SEVERE, msg);
+            throw new NoLocalCountMapException(msg);
+        }
+        return local.getLocalCountMap();
+    }
+
+    private PredictionResult getLastResult()
+            throws UninitializedPredictorException {
+        PredictionResult result = lastResult;
+        if (result == null) {
+            String msg = "The Predictor has not yet performed any calcuations.";
+            LOGGER.log(Level.WARNING, msg);
+            throw new UninitializedPredictorException(msg);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<InputShape, Long> getWarmUpTimes() {
+        return predictor.getWarmUpTimes();
+    }
+
+    /**
+     * Returns the metrics of the wrapped predictor, which only cover the
+     * frames that missed the cache.
+     *
+     * @return The metrics of the wrapped predictor.
+     */
+    @Override
+    public PredictorMetrics getMetrics() {
+        return predictor.getMetrics();
+    }
+
+}
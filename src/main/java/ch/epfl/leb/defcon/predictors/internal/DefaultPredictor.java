@@ -19,21 +19,25 @@
 package ch.epfl.leb.defcon.predictors.internal;
 
 import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.InputShape;
 import ch.epfl.leb.defcon.predictors.SessionClosedException;
 import ch.epfl.leb.defcon.predictors.NoLocalCountMapException;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
 import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
 import ch.epfl.leb.defcon.predictors.Predictor;
+import ch.epfl.leb.defcon.predictors.PredictorMetrics.Stage;
+import ch.epfl.leb.defcon.utils.TensorFactory;
 
-import ij.gui.Roi;
-import ij.ImagePlus;
-import ij.process.ByteProcessor;
+import ij.ImageStack;
 import ij.process.FloatProcessor;
-import ij.process.ShortProcessor;
 import ij.process.ImageProcessor;
-import ij.plugin.filter.Convolver;
 
 import java.awt.Rectangle;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,34 +55,40 @@ public class DefaultPredictor extends AbstractPredictor implements Predictor {
             DefaultPredictor.class.getName());
     
     /**
-     * The most-recently determined count.
+     * The most-recent prediction made through predict().
+     * 
+     * This only backs the getters of the Predictor interface; the stateless
+     * predictResult() methods never read or modify it.
      */
-    private Double count;
+    private volatile PredictionResult lastResult;
     
     /**
-     * The most-recently computed density map.
+     * The prediction and box size of the most recent maximum local count.
      */
-    private FloatProcessor densityMap;
+    private volatile LocalCount localCount;
     
     /**
-     * The most-recently computer maximum local count map.
+     * The output buffer of each thread for predictions of counts only.
      */
-    private FloatProcessor localCountMap;
+    private final ThreadLocal<float[]> outputBuffers = new ThreadLocal<>();
     
     /**
-     * Checks that an image's dimensions are divisible by four and crops it if not.
+     * Checks that the dimensions of an image's ROI are divisible by four and
+     * trims the ROI if not.
      * 
      * This restriction on the size of an image is a requirement of DEFCoN.
+     * The image is not copied: only the pixels inside the trimmed ROI are
+     * read when the input tensor is created.
      * 
-     * @return The input image, possibly cropped.
+     * @return The input image with its ROI trimmed.
      */
     private ImageProcessor checkDimensions(ImageProcessor ip) {
         
         Rectangle currRoi = ip.getRoi();
-        ip.setRoi(new Roi(currRoi.x, currRoi.y,
-                          currRoi.width - currRoi.width % 4,
-                          currRoi.height - currRoi.height % 4));
-        return ip.crop();
+        ip.setRoi(new Rectangle(currRoi.x, currRoi.y,
+                                currRoi.width - currRoi.width % 4,
+                                currRoi.height - currRoi.height % 4));
+        return ip;
     }
     
     /**
@@ -89,12 +99,7 @@ public class DefaultPredictor extends AbstractPredictor implements Predictor {
      */
     @Override
     public double getCount() throws UninitializedPredictorException {
-        if (count == null) {
-            String msg = "The Predictor has not yet performed any calcuations.";
-            LOGGER.log(Level.WARNING, msg);
-            throw new UninitializedPredictorException(msg);
-        }
-        return count;
+        return getLastResult(Level.WARNING).getCount();
     }
     
     /**
@@ -104,12 +109,7 @@ public class DefaultPredictor extends AbstractPredictor implements Predictor {
      * @throws ch.epfl.leb.defcon.predictors.UninitializedPredictorException
      */
     public FloatProcessor getDensityMap() throws UninitializedPredictorException {
-        if (densityMap == null) {
-            String msg = "The Predictor has not yet performed any calcuations.";
-            LOGGER.log(Level.SEVERE, msg);
-            throw new UninitializedPredictorException(msg);
-        }
-        return densityMap;
+        return getLastResult(Level.SEVERE).getDensityMap();
     }
     
     /**
@@ -120,13 +120,14 @@ public class DefaultPredictor extends AbstractPredictor implements Predictor {
      */
     @Override
     public FloatProcessor getLocalCountMap() throws NoLocalCountMapException {
-        if (localCountMap == null) {
+        LocalCount local = localCount;
+        if (local == null) {
             String msg = "The Predictor has not yet performed any local " + 
                          "count estimates.";
             LOGGER.log(Level.SEVERE, msg);
             throw new NoLocalCountMapException(msg);
         }
-        return localCountMap;
+        return local.getLocalCountMap();
     }
     
     /**
@@ -137,6 +138,9 @@ public class DefaultPredictor extends AbstractPredictor implements Predictor {
      * It effectively produces the highest count value over length scales equal
      * to the size of the kernel.
      * 
+     * The value is computed from a summed-area table of the density map; the
+     * local count map itself is only created if getLocalCountMap() is called.
+     * 
      * @param boxSize The width of the square kernel.
      * @return The maximum local count from the density map.
      * @throws ch.epfl.leb.defcon.predictors.UninitializedPredictorException
@@ -144,35 +148,28 @@ public class DefaultPredictor extends AbstractPredictor implements Predictor {
     @Override
     public double getMaximumLocalCount(int boxSize)
            throws UninitializedPredictorException {
-        if (densityMap == null) {
-            String msg = "The Predictor has not yet performed any calcuations.";
-            LOGGER.log(Level.WARNING, msg);
-            throw new UninitializedPredictorException(msg);
-        }
-        Convolver convolver = new Convolver();
-        convolver.setNormalize(false);
-        localCountMap = (FloatProcessor) densityMap.clone();
-        float kernel[] = new float[boxSize * boxSize];
-        Arrays.fill(kernel, 1.0f);
-        
-        convolver.convolveFloat(localCountMap, kernel, boxSize, boxSize);
-        int halfBoxSize = boxSize / 2;
-        localCountMap.setRoi(new Roi(halfBoxSize, halfBoxSize,
-                        localCountMap.getWidth() - boxSize + 1 ,
-                        localCountMap.getHeight() - boxSize + 1));
-        localCountMap = localCountMap.crop().convertToFloatProcessor();
-        localCountMap.resetMinAndMax();
-        return localCountMap.getMax();
+        PredictionResult result = getLastResult(Level.WARNING);
+        double maximum = result.getMaximumLocalCount(boxSize);
+        localCount = new LocalCount(result, boxSize);
+        return maximum;
     }
     
     /**
-     * Makes a density map prediction from a 2D 8-bit  image.
+     * Returns the result of the most recent call to predict().
      * 
-     * @param bp The 8-bit image to perform a prediction on.
+     * @param level The level at which to log a missing result.
+     * @return The most recent prediction result.
+     * @throws UninitializedPredictorException 
      */
-    private void predict(final ByteProcessor bp) {
-        ShortProcessor sp = bp.convertToShortProcessor();
-        predict(sp);
+    private PredictionResult getLastResult(Level level)
+            throws UninitializedPredictorException {
+        PredictionResult result = lastResult;
+        if (result == null) {
+            String msg = "The Predictor has not yet performed any calcuations.";
+            LOGGER.log(level, msg);
+            throw new UninitializedPredictorException(msg);
+        }
+        return result;
     }
     
     /**
@@ -188,76 +185,452 @@ public class DefaultPredictor extends AbstractPredictor implements Predictor {
     @Override
     public void predict(final ImageProcessor ip) throws ImageBitDepthException,
                                                       SessionClosedException {
+        lastResult = predictResult(ip);
+    }
+    
+    /**
+     * Makes a density map prediction from a 2D image and returns the result.
+     * 
+     * If either of the image's width or height is not divisible by 4, they will
+     * be cropped to the next largest multiple of four.
+     * 
+     * This method does not modify the state of the predictor and may be called
+     * concurrently from several threads.
+     * 
+     * @param ip The image to perform a prediction on.
+     * @return The result of the prediction.
+     * @throws ch.epfl.leb.defcon.predictors.ImageBitDepthException
+     * @throws ch.epfl.leb.defcon.predictors.SessionClosedException
+     */
+    @Override
+    public PredictionResult predictResult(final ImageProcessor ip)
+            throws ImageBitDepthException, SessionClosedException {
+        checkSession("predict");
+        checkBitDepth(ip);
+        
+        long start = System.nanoTime();
+        ImageProcessor frame = checkDimensions(ip);
+        metrics.record(Stage.CROP, start);
+        
+        SessionOutput output = runSession(Collections.singletonList(frame),
+                                          true);
+        metrics.recordFrames(1, start);
+        return output.getResult(0);
+    }
+    
+    /**
+     * Makes density map predictions from a list of 2D images and returns the
+     * results.
+     * 
+     * The images are packed into tensors of up to batchSize frames each. This
+     * method does not modify the state of the predictor and may be called
+     * concurrently from several threads.
+     * 
+     * @param ips The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the session at once.
+     * @return The results of the predictions in the order of the input.
+     * @throws ch.epfl.leb.defcon.predictors.ImageBitDepthException
+     * @throws ch.epfl.leb.defcon.predictors.SessionClosedException
+     */
+    @Override
+    public List<PredictionResult> predictBatchResults(
+            final List<? extends ImageProcessor> ips, int batchSize)
+            throws ImageBitDepthException, SessionClosedException {
+        PredictionResult[] results = new PredictionResult[ips.size()];
+        predictFrames(ips, batchSize, results);
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Makes density map predictions from a list of 2D images.
+     * 
+     * The images are packed into tensors of up to batchSize frames each so
+     * that the TensorFlow session is run once per batch instead of once per
+     * frame. All images must have the same dimensions; they are cropped to
+     * the next largest multiple of four like in predict().
+     * 
+     * This method does not change the values returned by getCount() and
+     * getDensityMap().
+     * 
+     * @param ips The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the session at once.
+     * @param densityMaps If not null, the density map of each image is
+     *                    appended to this stack in the order of the input.
+     * @return The predicted counts, one per image.
+     * @throws ch.epfl.leb.defcon.predictors.ImageBitDepthException
+     * @throws ch.epfl.leb.defcon.predictors.SessionClosedException
+     */
+    @Override
+    public double[] predictBatch(final List<? extends ImageProcessor> ips,
+                                 int batchSize, ImageStack densityMaps)
+                                 throws ImageBitDepthException,
+                                        SessionClosedException {
+        PredictionResult[] results = densityMaps == null ?
+                                     null : new PredictionResult[ips.size()];
+        double[] counts = predictFrames(ips, batchSize, results);
+        
+        if (results != null) {
+            for (PredictionResult result : results) {
+                densityMaps.addSlice(result.getDensityMap());
+            }
+        }
+        return counts;
+    }
+    
+    /**
+     * Makes density map predictions from all the slices of an image stack.
+     * 
+     * Slices are read from the stack one batch at a time.
+     * 
+     * @param stack The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the session at once.
+     * @param densityMaps If not null, the density map of each slice is
+     *                    appended to this stack in the order of the input.
+     * @return The predicted counts, one per slice.
+     * @throws ch.epfl.leb.defcon.predictors.ImageBitDepthException
+     * @throws ch.epfl.leb.defcon.predictors.SessionClosedException
+     * @see #predictBatch(java.util.List, int, ij.ImageStack) 
+     */
+    @Override
+    public double[] predictBatch(final ImageStack stack, int batchSize,
+                                 ImageStack densityMaps)
+                                 throws ImageBitDepthException,
+                                        SessionClosedException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
         
+        int stackSize = stack.getSize();
+        double[] counts = new double[stackSize];
+        for (int start = 1; start <= stackSize; start += batchSize) {
+            int end = Math.min(start + batchSize - 1, stackSize);
+            
+            List<ImageProcessor> batch = new ArrayList<>(end - start + 1);
+            for (int i = start; i <= end; i++) {
+                batch.add(stack.getProcessor(i));
+            }
+            
+            double[] batchCounts = predictBatch(batch, batchSize, densityMaps);
+            System.arraycopy(batchCounts, 0, counts, start - 1,
+                             batchCounts.length);
+        }
+        return counts;
+    }
+    
+    /**
+     * Warms up the predictor by predicting one batch of synthetic frames.
+     * 
+     * The whole prediction path is run, including the conversion of the
+     * frames to tensors and the creation of the density maps.
+     * 
+     * @param shape The shape of the synthetic input.
+     */
+    @Override
+    protected void warmUp(InputShape shape) {
+        try {
+            predictBatchResults(syntheticFrames(shape), shape.getBatchSize());
+        } catch (ImageBitDepthException | SessionClosedException ex) {
+            throw new IllegalStateException("The warm-up failed.", ex);
+        }
+    }
+    
+    /**
+     * Raises an exception if the TensorFlow session has been closed.
+     * 
+     * @param method The name of the calling method for the error message.
+     * @throws SessionClosedException 
+     */
+    protected void checkSession(String method) throws SessionClosedException {
         if (isClosed) {
-            String msg = "Cannot call the predict() method:\n "
+            String msg = "Cannot call the " + method + "() method:\n "
                        + "the TensorFlow session has been closed.";
             LOGGER.log(Level.WARNING, msg);
             throw new SessionClosedException(msg);
         }
-        
+    }
+    
+    /**
+     * Raises an exception if an image is not an 8, 16 or 32-bit grayscale
+     * image.
+     * 
+     * @param ip The image to check.
+     * @throws ImageBitDepthException 
+     */
+    protected void checkBitDepth(ImageProcessor ip) throws ImageBitDepthException {
         int bitDepth = ip.getBitDepth();
-        switch (bitDepth) {
-            case 16:
-                predict(checkDimensions(ip).convertToShortProcessor());
-                break;
-            case 8:
-                predict(checkDimensions(ip).convertToByteProcessor());
-                break;
-            default:
-                String msg = "The predictor only works on 8 and 16-bit images.";
-                LOGGER.log(Level.SEVERE, msg);
-                throw new ImageBitDepthException(msg);
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            String msg = "The predictor only works on 8, 16 and 32-bit "
+                       + "grayscale images.";
+            LOGGER.log(Level.SEVERE, msg);
+            throw new ImageBitDepthException(msg);
         }
     }
     
     /**
-     * Makes a density map prediction from a 2D 16-bit image.
+     * Validates a list of frames, trims their ROIs and predicts them batch by
+     * batch.
+     * 
+     * If no results are requested, only the counts are computed: the output
+     * of the network is copied into a buffer that is reused by the calling
+     * thread and no density map is created.
      * 
-     * @param sp The 16-bit image to perform a prediction on.
+     * @param ips The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the session at once.
+     * @param results If not null, receives the result of each image. Their
+     *                density maps are built when they are first requested.
+     * @return The predicted count of each image.
      */
-    private void predict(final ShortProcessor sp) {
-        ImagePlus imp = new ImagePlus("", sp);
-        int height = imp.getHeight();
-        int width = imp.getWidth();
+    protected double[] predictFrames(final List<? extends ImageProcessor> ips,
+                                     int batchSize, PredictionResult[] results)
+                                     throws ImageBitDepthException,
+                                            SessionClosedException {
+        checkSession("predictBatch");
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
         
-        // Converts the ImagePlus input to a tensorflow tensor
-        Tensor<Float> inputTensor = imageToTensor(imp);
-
-        // Make the prediction with DEFCoN
-        Tensor<Float> outputTensor = tfSession.runner()
-                .feed("input_tensor", inputTensor)
-                .fetch("output_tensor")
-                .run().get(0).expect(Float.class);
-
-        // Transforms outputTensor into a (1,height,width,1) float array.
-        float[][][][] pred = outputTensor.copyTo(
-                new float[1][height][width][1]);
-
-        // Creates a new FloatProcessor for the output density map image.
-        densityMap = new FloatProcessor(width, height);
-
-        // Assigns the pixels of the density map and sums the pixels.
-        count = 0.0;
-        for (int x=0; x<width; x++) {
-            for (int y=0; y<height; y++) {
-                count += pred[0][y][x][0];
-                densityMap.setf(x, y, pred[0][y][x][0]);
+        double[] counts = new double[ips.size()];
+        List<ImageProcessor> batch = new ArrayList<>(
+                Math.min(batchSize, ips.size()));
+        for (int start = 0; start < ips.size(); start += batchSize) {
+            int end = Math.min(start + batchSize, ips.size());
+            
+            long cropStart = System.nanoTime();
+            batch.clear();
+            for (ImageProcessor ip : ips.subList(start, end)) {
+                checkBitDepth(ip);
+                batch.add(checkDimensions(ip));
             }
+            metrics.record(Stage.CROP, cropStart);
+            
+            SessionOutput output = runSession(batch, results != null);
+            for (int b = 0; b < batch.size(); b++) {
+                counts[start + b] = output.getCount(b);
+                if (results != null) {
+                    results[start + b] = output.getResult(b);
+                }
+            }
+            metrics.recordFrames(batch.size(), cropStart);
         }
-
+        return counts;
     }
     
     /**
-     * Failsafe in case the TensorFlow session has not been closed.
-     * @throws java.lang.Throwable
+     * Runs the TensorFlow session once on a batch of frames whose ROIs have
+     * the same size.
+     * 
+     * @param frames The frames to predict on. The dimensions of their ROIs
+     *               must already be multiples of four.
+     * @param keepOutput Whether the density maps may be requested from the
+     *                   returned output.
+     * @return The output of the network.
      */
-    @Override
-    protected void finalize() throws Throwable {
+    protected SessionOutput runSession(final List<ImageProcessor> frames,
+                                       boolean keepOutput) {
+        Rectangle roi = frames.get(0).getRoi();
+        TensorMemoryBudget.Reservation reservation = reserveTensors(
+                frames.size(), roi.width, roi.height);
         try {
-            tfSession.close();
+            long start = System.nanoTime();
+            try (Tensor<Float> inputTensor = TensorFactory.imagesToTensor(
+                    frames)) {
+                metrics.record(Stage.TENSOR, start);
+                return runSession(inputTensor, "input_tensor", keepOutput);
+            }
         } finally {
-            super.finalize();
+            reservation.close();
         }
     }
+    
+    /**
+     * Reserves the memory of the input and output tensors of one run of the
+     * session, waiting until it is available.
+     * 
+     * @param batchSize The number of frames in the batch.
+     * @param width The width of the frames.
+     * @param height The height of the frames.
+     * @return The reservation, to be closed once the tensors are closed.
+     */
+    protected TensorMemoryBudget.Reservation reserveTensors(int batchSize,
+                                                            int width,
+                                                            int height) {
+        return tensorBudget.reserve(estimateTensorBytes(batchSize, width,
+                                                        height));
+    }
+    
+    /**
+     * Estimates the native memory of the input and output tensors of one run
+     * of the session.
+     * 
+     * @param batchSize The number of frames in the batch.
+     * @param width The width of the frames.
+     * @param height The height of the frames.
+     * @return The estimated memory in bytes.
+     */
+    protected long estimateTensorBytes(int batchSize, int width, int height) {
+        // A float input and a density map of the same size.
+        return 2L * Float.BYTES * batchSize * width * height;
+    }
+    
+    /**
+     * Runs the TensorFlow session once on an input tensor that is fed to a
+     * given tensor of the graph.
+     * 
+     * @param inputTensor The (batch, height, width, 1) input. It remains
+     *                    owned by the caller.
+     * @param inputName The name of the operation whose output is fed.
+     * @param keepOutput Whether the density maps may be requested from the
+     *                   returned output. If not, the output is copied into a
+     *                   buffer that is reused by the calling thread and only
+     *                   the counts are available.
+     * @return The output of the network.
+     */
+    protected SessionOutput runSession(final Tensor<Float> inputTensor,
+                                       String inputName, boolean keepOutput) {
+        // Makes the prediction with DEFCoN. The output tensor is released as
+        // soon as it has been read.
+        long time = System.nanoTime();
+        long tensorBytes = inputTensor.numBytes();
+        metrics.tensorAllocated(tensorBytes);
+        SessionOutput output;
+        try (Tensor<Float> outputTensor = tfSession.runner()
+                .feed(inputName, inputTensor)
+                .fetch("output_tensor")
+                .run().get(0).expect(Float.class)) {
+            tensorBytes += outputTensor.numBytes();
+            metrics.tensorAllocated(outputTensor.numBytes());
+            time = metrics.record(Stage.SESSION, time);
+            output = readOutput(inputTensor.shape(), outputTensor, keepOutput);
+        } finally {
+            metrics.tensorReleased(tensorBytes);
+        }
+        metrics.record(Stage.COPY, time);
+        return output;
+    }
+    
+    /**
+     * Copies the counts, and if requested the density maps, out of the
+     * output tensor of the network.
+     * 
+     * @param inputShape The (batch, height, width, 1) shape of the input.
+     * @param outputTensor The output of the network. It remains owned by the
+     *                     caller and is closed once this method returns.
+     * @param keepOutput Whether the density maps may be requested from the
+     *                   returned output. If not, the output is copied into a
+     *                   buffer that is reused by the calling thread and only
+     *                   the counts are available.
+     * @return The output of the network.
+     */
+    protected SessionOutput readOutput(long[] inputShape,
+                                       Tensor<Float> outputTensor,
+                                       boolean keepOutput) {
+        int batchSize = (int) inputShape[0];
+        int height = (int) inputShape[1];
+        int width = (int) inputShape[2];
+        int numPixels = width * height;
+        float[] pred = keepOutput ? new float[batchSize * numPixels]
+                                  : getOutputBuffer(batchSize * numPixels);
+        
+        // Copies the (batch,height,width,1) output in bulk. The channel
+        // dimension has size one, so each frame is a contiguous block of
+        // pixels in the row-major order used by ImageJ.
+        outputTensor.writeTo(FloatBuffer.wrap(pred, 0, batchSize * numPixels));
+
+        double[] counts = new double[batchSize];
+        for (int b=0; b<batchSize; b++) {
+            int offset = b * numPixels;
+            
+            // Sums the pixels in memory order.
+            double sum = 0.0;
+            for (int i=offset; i<offset + numPixels; i++) {
+                sum += pred[i];
+            }
+            counts[b] = sum;
+        }
+        return new SessionOutput(width, height, counts,
+                                 keepOutput ? pred : null);
+    }
+    
+    /**
+     * Returns the output buffer of the calling thread, growing it if needed.
+     */
+    protected float[] getOutputBuffer(int length) {
+        float[] buffer = outputBuffers.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new float[length];
+            outputBuffers.set(buffer);
+        }
+        return buffer;
+    }
+    
+    /**
+     * The output of one run of the session: the count of every frame of the
+     * batch and, if it was kept, the output of the network.
+     */
+    protected static final class SessionOutput {
+        
+        private final int width;
+        
+        private final int height;
+        
+        private final double[] counts;
+        
+        private final float[] pred;
+        
+        SessionOutput(int width, int height, double[] counts, float[] pred) {
+            this.width = width;
+            this.height = height;
+            this.counts = counts;
+            this.pred = pred;
+        }
+        
+        /**
+         * Returns the count of a frame.
+         * 
+         * @param b The index of the frame in the batch.
+         * @return The predicted count.
+         */
+        public double getCount(int b) {
+            return counts[b];
+        }
+        
+        /**
+         * Creates the density map of a frame.
+         * 
+         * The density map of a single frame uses the output array as its
+         * pixels; frames of a larger batch get their own copy.
+         * 
+         * @param b The index of the frame in the batch.
+         * @return The density map.
+         * @throws IllegalStateException If the output was not kept.
+         */
+        public FloatProcessor getDensityMap(int b) {
+            if (pred == null) {
+                throw new IllegalStateException(
+                        "The output of the network was not kept.");
+            }
+            int numPixels = width * height;
+            float[] pixels = counts.length == 1 ? pred : Arrays.copyOfRange(
+                    pred, b * numPixels, (b + 1) * numPixels);
+            return new FloatProcessor(width, height, pixels);
+        }
+        
+        /**
+         * Returns the result of a frame, whose density map is built when it
+         * is first requested.
+         * 
+         * @param b The index of the frame in the batch.
+         * @return The result, without a density map if the output was not
+         *         kept.
+         */
+        public PredictionResult getResult(final int b) {
+            if (pred == null) {
+                return new PredictionResult(counts[b]);
+            }
+            return new PredictionResult(counts[b], () -> getDensityMap(b));
+        }
+    }
+    
 }
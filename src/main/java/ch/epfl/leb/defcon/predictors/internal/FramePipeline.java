@@ -0,0 +1,364 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * Processes the frames of a stack in three overlapping stages.
+ *
+ * <ol>
+ * <li>A reader thread reads the frames from the stack, sets their region of
+ * interest and groups them into batches.</li>
+ * <li>A dispatcher thread sends the batches to the workers of a
+ * {@link PredictorPool}, where they are converted to tensors and
+ * inferred.</li>
+ * <li>The calling thread post-processes the results in frame order.</li>
+ * </ol>
+ *
+ * The stages are connected by bounded queues, so that frame N+1 is read while
+ * frame N is inferred and frame N-1 is post-processed, without reading ahead
+ * of the network by more than the queue capacities. The depth of each queue
+ * is sampled every time an item is taken from it: a queue that is usually
+ * full points to a bottleneck in the stage that consumes it, and a queue that
+ * is usually empty to a bottleneck in the stage that fills it.
+ *
+ * @author Kyle M. Douglass
+ */
+public class FramePipeline {
+
+    /**
+     * Marks the end of the stream of batches.
+     */
+    private static final List<ImageProcessor> END_OF_BATCHES =
+            new ArrayList<>();
+
+    /**
+     * Marks the end of the stream of pending results.
+     */
+    private static final Future<List<PredictionResult>> END_OF_RESULTS =
+            CompletableFuture.completedFuture(null);
+
+    /**
+     * The default capacity of the queues between the stages, in batches.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    private final PredictorPool pool;
+
+    private final int batchSize;
+
+    private final int queueCapacity;
+
+    private final QueueStatistics readQueueStatistics;
+
+    private final QueueStatistics inferenceQueueStatistics;
+
+    private volatile boolean countsOnly = false;
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param pool The workers that make the predictions.
+     * @param batchSize The number of frames per batch.
+     * @param queueCapacity The capacity of each queue, in batches.
+     */
+    public FramePipeline(PredictorPool pool, int batchSize, int queueCapacity) {
+        if (batchSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size and queue capacity must be at least 1.");
+        }
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+        this.readQueueStatistics = new QueueStatistics("read", queueCapacity);
+        this.inferenceQueueStatistics = new QueueStatistics("inference",
+                                                            queueCapacity);
+    }
+
+    /**
+     * Makes predictions for every slice of a stack.
+     *
+     * @param stack The images to perform predictions on.
+     * @param roi The region of each slice to predict on, or null for the whole
+     *            slice.
+     * @param consumer Receives the 1-based slice index and the result of each
+     *                 slice, in slice order, on the calling thread.
+     * @throws ImageBitDepthException
+     * @throws SessionClosedException
+     * @throws InterruptedException If the calling thread is interrupted while
+     *                              waiting for results.
+     */
+    public void run(final ImageStack stack, final Rectangle roi,
+                    BiConsumer<Integer, PredictionResult> consumer)
+                    throws ImageBitDepthException, SessionClosedException,
+                           InterruptedException {
+        final BlockingQueue<List<ImageProcessor>> readQueue =
+                new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<Future<List<PredictionResult>>> inferenceQueue =
+                new ArrayBlockingQueue<>(queueCapacity);
+
+        ExecutorService stages = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "defcon-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Future<?> reader = stages.submit(() -> {
+                read(stack, roi, readQueue);
+                return null;
+            });
+            Future<?> dispatcher = stages.submit(() -> {
+                dispatch(readQueue, inferenceQueue);
+                return null;
+            });
+
+            int slice = 1;
+            while (true) {
+                inferenceQueueStatistics.sample(inferenceQueue.size());
+                Future<List<PredictionResult>> pending = inferenceQueue.take();
+                if (pending == END_OF_RESULTS) {
+                    break;
+                }
+
+                List<PredictionResult> results;
+                try {
+                    results = pending.get();
+                } catch (ExecutionException ex) {
+                    throw PredictorPool.unwrap(ex);
+                }
+                for (PredictionResult result : results) {
+                    consumer.accept(slice++, result);
+                }
+            }
+
+            // Raises any error of the dispatcher, e.g. a closed pool, and of
+            // the reader, e.g. an unreadable frame.
+            try {
+                dispatcher.get();
+                reader.get();
+            } catch (ExecutionException ex) {
+                throw PredictorPool.unwrap(ex);
+            }
+        } finally {
+            stages.shutdownNow();
+            for (Future<List<PredictionResult>> pending : inferenceQueue) {
+                pending.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The reader stage: reads the frames, sets their ROI and groups them into
+     * batches.
+     *
+     * The frames are not cropped; only the pixels inside the ROI are read
+     * when the input tensor is created. The end of the batches is queued
+     * unless the stage is interrupted: the pipeline is then cancelled and
+     * nothing drains the queue anymore.
+     */
+    private void read(ImageStack stack, Rectangle roi,
+                      BlockingQueue<List<ImageProcessor>> readQueue)
+                      throws InterruptedException {
+        boolean cancelled = false;
+        try {
+            int stackSize = stack.getSize();
+            for (int start = 1; start <= stackSize; start += batchSize) {
+                int end = Math.min(start + batchSize - 1, stackSize);
+
+                List<ImageProcessor> batch = new ArrayList<>(end - start + 1);
+                for (int i = start; i <= end; i++) {
+                    ImageProcessor ip = stack.getProcessor(i);
+                    if (roi != null) {
+                        ip.setRoi(roi);
+                    }
+                    batch.add(ip);
+                }
+                readQueue.put(batch);
+            }
+        } catch (InterruptedException ex) {
+            cancelled = true;
+            throw ex;
+        } finally {
+            if (!cancelled) {
+                readQueue.put(END_OF_BATCHES);
+            }
+        }
+    }
+
+    /**
+     * The dispatcher stage: hands the batches to the workers and queues the
+     * pending results in frame order.
+     *
+     * The end of the results is queued even if a batch cannot be submitted,
+     * so that the calling thread never waits forever. It is not queued if the
+     * stage is interrupted, because the pipeline is then cancelled and the
+     * calling thread no longer takes from the queue.
+     */
+    private void dispatch(BlockingQueue<List<ImageProcessor>> readQueue,
+                          BlockingQueue<Future<List<PredictionResult>>> inferenceQueue)
+                          throws InterruptedException {
+        boolean cancelled = false;
+        try {
+            while (true) {
+                readQueueStatistics.sample(readQueue.size());
+                List<ImageProcessor> batch = readQueue.take();
+                if (batch == END_OF_BATCHES) {
+                    return;
+                }
+                inferenceQueue.put(countsOnly
+                                   ? pool.submitCounts(batch, batchSize)
+                                   : pool.submitBatch(batch, batchSize));
+            }
+        } catch (InterruptedException ex) {
+            cancelled = true;
+            throw ex;
+        } finally {
+            if (!cancelled) {
+                inferenceQueue.put(END_OF_RESULTS);
+            }
+        }
+    }
+
+    /**
+     * Sets whether only the counts are predicted.
+     *
+     * The results then have no density map, and no density map is created
+     * by the predictor.
+     *
+     * @param countsOnly Whether to predict the counts only.
+     */
+    public void setCountsOnly(boolean countsOnly) {
+        this.countsOnly = countsOnly;
+    }
+
+    /**
+     * Returns the depth statistics of the queue between the reader and the
+     * inference stages.
+     *
+     * @return The statistics of the read queue.
+     */
+    public QueueStatistics getReadQueueStatistics() {
+        return readQueueStatistics;
+    }
+
+    /**
+     * Returns the depth statistics of the queue between the inference and the
+     * post-processing stages.
+     *
+     * @return The statistics of the inference queue.
+     */
+    public QueueStatistics getInferenceQueueStatistics() {
+        return inferenceQueueStatistics;
+    }
+
+    /**
+     * Returns a human-readable summary of the queue depths.
+     *
+     * @return The summary.
+     */
+    public String getReport() {
+        return "DEFCoN pipeline queue depths: " + readQueueStatistics
+               + "; " + inferenceQueueStatistics;
+    }
+
+    /**
+     * Depth statistics of one queue of the pipeline.
+     *
+     * Each queue is only sampled by the thread that consumes it.
+     */
+    public static final class QueueStatistics {
+
+        private final String name;
+
+        private final int capacity;
+
+        private volatile long samples = 0;
+
+        private volatile long totalDepth = 0;
+
+        private volatile int maxDepth = 0;
+
+        QueueStatistics(String name, int capacity) {
+            this.name = name;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Records the depth of the queue.
+         */
+        void sample(int depth) {
+            samples++;
+            totalDepth += depth;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        /**
+         * Returns the capacity of the queue.
+         *
+         * @return The capacity of the queue, in batches.
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Returns the mean depth of the queue.
+         *
+         * @return The mean number of batches in the queue.
+         */
+        public double getMeanDepth() {
+            long n = samples;
+            return n == 0 ? 0.0 : (double) totalDepth / n;
+        }
+
+        /**
+         * Returns the largest depth of the queue.
+         *
+         * @return The largest number of batches in the queue.
+         */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s queue mean %.2f, max %d of %d",
+                                 name, getMeanDepth(), maxDepth, capacity);
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.HyperstackCounts;
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Counts the planes of a hyperstack along its channel, slice (Z) and frame
+ * (T) axes.
+ *
+ * Each time series of one channel and slice is split into batches of
+ * consecutive frames, which have the same shape and usually similar content.
+ * Up to zParallelism series are read at once, and each series keeps up to
+ * tParallelism batches in flight in the {@link PredictorPool}, which should
+ * therefore have zParallelism x tParallelism workers. Only the counts are
+ * predicted.
+ *
+ * @author Kyle M. Douglass
+ */
+public class HyperstackPipeline {
+
+    private final PredictorPool pool;
+
+    private final int batchSize;
+
+    private final int zParallelism;
+
+    private final int tParallelism;
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param pool The workers that make the predictions.
+     * @param batchSize The maximum number of frames per batch.
+     * @param zParallelism The number of series of different channels or
+     *                     slices that are counted at once.
+     * @param tParallelism The number of batches of one series that are
+     *                     predicted at once.
+     */
+    public HyperstackPipeline(PredictorPool pool, int batchSize,
+                              int zParallelism, int tParallelism) {
+        if (batchSize < 1 || zParallelism < 1 || tParallelism < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size and parallelism must be at least 1.");
+        }
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.zParallelism = zParallelism;
+        this.tParallelism = tParallelism;
+    }
+
+    /**
+     * Counts the planes of some channels of a hyperstack.
+     *
+     * @param imp The hyperstack.
+     * @param channels The channels to count, numbered from 1, or null to
+     *                 count them all.
+     * @param roi The region of each plane to predict on, or null for the whole
+     *            plane.
+     * @param progress Receives the number of planes counted so far, from the
+     *                 worker threads. May be null.
+     * @return The counts of the planes.
+     * @throws ImageBitDepthException
+     * @throws SessionClosedException
+     * @throws InterruptedException If the calling thread is interrupted while
+     *                              waiting for results.
+     */
+    public HyperstackCounts run(final ImagePlus imp, int[] channels,
+                                final Rectangle roi,
+                                final IntConsumer progress)
+                                throws ImageBitDepthException,
+                                       SessionClosedException,
+                                       InterruptedException {
+        int numChannels = imp.getNChannels();
+        if (channels == null) {
+            channels = new int[numChannels];
+            for (int c = 1; c <= numChannels; c++) {
+                channels[c - 1] = c;
+            }
+        }
+        for (int c : channels) {
+            if (c < 1 || c > numChannels) {
+                throw new IllegalArgumentException(
+                        "The image has no channel " + c + ".");
+            }
+        }
+
+        final HyperstackCounts counts = new HyperstackCounts(
+                channels, imp.getNSlices(), imp.getNFrames());
+        final AtomicInteger planes = new AtomicInteger();
+        ExecutorService series = Executors.newFixedThreadPool(
+                zParallelism, r -> {
+                    Thread thread = new Thread(r, "defcon-hyperstack");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        List<Future<Void>> pending = new ArrayList<>();
+        try {
+            for (final int c : channels) {
+                for (int z = 1; z <= imp.getNSlices(); z++) {
+                    final int slice = z;
+                    pending.add(series.submit(() -> {
+                        countSeries(imp, c, slice, roi, counts, planes,
+                                    progress);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<Void> future : pending) {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            throw PredictorPool.unwrap(ex);
+        } finally {
+            series.shutdownNow();
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the time series of one channel and slice.
+     */
+    private void countSeries(ImagePlus imp, int c, int z, Rectangle roi,
+                             HyperstackCounts counts, AtomicInteger planes,
+                             IntConsumer progress)
+                             throws ImageBitDepthException,
+                                    SessionClosedException,
+                                    InterruptedException {
+        ImageStack stack = imp.getImageStack();
+        int numFrames = imp.getNFrames();
+        Deque<Future<List<PredictionResult>>> inFlight = new ArrayDeque<>();
+        Deque<Integer> firstFrames = new ArrayDeque<>();
+        try {
+            for (int start = 1; start <= numFrames; start += batchSize) {
+                int end = Math.min(start + batchSize - 1, numFrames);
+                List<ImageProcessor> batch = new ArrayList<>(end - start + 1);
+                for (int t = start; t <= end; t++) {
+                    ImageProcessor ip = stack.getProcessor(
+                            imp.getStackIndex(c, z, t));
+                    if (roi != null) {
+                        ip.setRoi(roi);
+                    }
+                    batch.add(ip);
+                }
+
+                while (inFlight.size() >= tParallelism) {
+                    collect(inFlight.poll(), firstFrames.poll(), c, z, counts,
+                            planes, progress);
+                }
+                inFlight.add(pool.submitCounts(batch, batchSize));
+                firstFrames.add(start);
+            }
+            while (!inFlight.isEmpty()) {
+                collect(inFlight.poll(), firstFrames.poll(), c, z, counts,
+                        planes, progress);
+            }
+        } finally {
+            for (Future<List<PredictionResult>> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Waits for a batch of one series and stores its counts.
+     */
+    private static void collect(Future<List<PredictionResult>> future,
+                                int firstFrame, int c, int z,
+                                HyperstackCounts counts, AtomicInteger planes,
+                                IntConsumer progress)
+                                throws ImageBitDepthException,
+                                       SessionClosedException,
+                                       InterruptedException {
+        List<PredictionResult> results;
+        try {
+            results = future.get();
+        } catch (ExecutionException ex) {
+            throw PredictorPool.unwrap(ex);
+        }
+        for (int i = 0; i < results.size(); i++) {
+            counts.setCount(c, z, firstFrame + i, results.get(i).getCount());
+        }
+        int done = planes.addAndGet(results.size());
+        if (progress != null) {
+            progress.accept(done);
+        }
+    }
+
+}
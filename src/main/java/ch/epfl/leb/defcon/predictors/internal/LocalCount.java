@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+
+import ij.process.FloatProcessor;
+
+/**
+ * A prediction and the box size of a maximum local count computed from it.
+ *
+ * Both are published together so that a concurrent call to
+ * getLocalCountMap() never pairs the prediction of one call with the box
+ * size of another.
+ *
+ * @author Kyle M. Douglass
+ */
+final class LocalCount {
+
+    private final PredictionResult result;
+
+    private final int boxSize;
+
+    LocalCount(PredictionResult result, int boxSize) {
+        this.result = result;
+        this.boxSize = boxSize;
+    }
+
+    /**
+     * Returns the local count map of the prediction for the box size.
+     *
+     * @return The local count map.
+     */
+    FloatProcessor getLocalCountMap() {
+        return result.getLocalCountMap(boxSize);
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.NoLocalCountMapException;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tensorflow.Tensor;
+
+/**
+ * Predicts the maximum local count of images with the DEFCoN maximum local
+ * count model.
+ * 
+ * This model outputs a single value per frame, the maximum count over the
+ * {@link #BOX_SIZE} x {@link #BOX_SIZE} regions of the frame, instead of a
+ * density map. The frames are batched, shared between threads and their
+ * tensors released exactly like those of the {@link DefaultPredictor}; the
+ * count of each result is the maximum local count and no density map is
+ * ever available: {@link #getDensityMap()} returns null and the density map
+ * stacks passed to the batch predictions are left unchanged.
+ * 
+ * @author Kyle M. Douglass
+ */
+public class MaxCountPredictor extends DefaultPredictor {
+    
+    private final static Logger LOGGER = Logger.getLogger(
+            MaxCountPredictor.class.getName());
+    
+    /**
+     * The width of the square regions over which the model counts.
+     */
+    public static final int BOX_SIZE = 7;
+    
+    /**
+     * Not supported: the model does not predict local count maps.
+     * 
+     * @throws NoLocalCountMapException Always.
+     */
+    @Override
+    public FloatProcessor getLocalCountMap() throws NoLocalCountMapException {
+        String msg = "The maximum local count model does not predict local "
+                   + "count maps.";
+        LOGGER.log(Level.SEVERE, msg);
+        throw new NoLocalCountMapException(msg);
+    }
+    
+    /**
+     * Returns the most recent maximum local count.
+     * 
+     * @param boxSize The width of the square regions, which must be
+     *                {@link #BOX_SIZE}.
+     * @return The predicted maximum local count.
+     * @throws UninitializedPredictorException
+     */
+    @Override
+    public double getMaximumLocalCount(int boxSize)
+           throws UninitializedPredictorException {
+        if (boxSize != BOX_SIZE) {
+            throw new IllegalArgumentException(
+                    "The model only counts over regions of " + BOX_SIZE + "x"
+                    + BOX_SIZE + " pixels.");
+        }
+        return getCount();
+    }
+    
+    /**
+     * Predicts the maximum local counts of a list of 2D images.
+     * 
+     * @param ips The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the session at once.
+     * @param densityMaps Ignored: the model predicts no density maps, so this
+     *                    stack is left unchanged.
+     * @return The predicted maximum local counts, one per image.
+     * @throws ch.epfl.leb.defcon.predictors.ImageBitDepthException
+     * @throws ch.epfl.leb.defcon.predictors.SessionClosedException
+     */
+    @Override
+    public double[] predictBatch(final List<? extends ImageProcessor> ips,
+                                 int batchSize, ImageStack densityMaps)
+                                 throws ImageBitDepthException,
+                                        SessionClosedException {
+        return super.predictBatch(ips, batchSize, null);
+    }
+    
+    /**
+     * Estimates the native memory of the input and output tensors of one run
+     * of the session: a float input and one value per frame.
+     * 
+     * @param batchSize The number of frames in the batch.
+     * @param width The width of the frames.
+     * @param height The height of the frames.
+     * @return The estimated memory in bytes.
+     */
+    @Override
+    protected long estimateTensorBytes(int batchSize, int width, int height) {
+        return (long) Float.BYTES * batchSize * (width * height + 1);
+    }
+    
+    /**
+     * Copies the maximum local count of each frame out of the output tensor.
+     * 
+     * The counts are copied through a buffer that is reused by the calling
+     * thread, and the results never have a density map.
+     * 
+     * @param inputShape The (batch, height, width, 1) shape of the input.
+     * @param outputTensor The output of the network, one value per frame.
+     * @param keepOutput Ignored: there is no density map to keep.
+     * @return The output of the network.
+     */
+    @Override
+    protected SessionOutput readOutput(long[] inputShape,
+                                       Tensor<Float> outputTensor,
+                                       boolean keepOutput) {
+        int batchSize = (int) inputShape[0];
+        if (outputTensor.numElements() != batchSize) {
+            throw new IllegalStateException(
+                    "Expected one output value per frame, got "
+                    + outputTensor.numElements() + " for " + batchSize
+                    + " frames. Is this a maximum local count model?");
+        }
+        
+        float[] pred = getOutputBuffer(batchSize);
+        outputTensor.writeTo(FloatBuffer.wrap(pred, 0, batchSize));
+        double[] counts = new double[batchSize];
+        for (int b = 0; b < batchSize; b++) {
+            counts[b] = pred[b];
+        }
+        return new SessionOutput((int) inputShape[2], (int) inputShape[1],
+                                 counts, null);
+    }
+    
+}
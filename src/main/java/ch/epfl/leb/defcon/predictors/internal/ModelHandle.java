@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.tensorflow.Graph;
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.Session;
+
+/**
+ * A reference to a model that is held by the {@link ModelRegistry}.
+ *
+ * Closing the handle releases the reference; it does not necessarily close
+ * the model, which may still be used by other handles or kept loaded by the
+ * registry. Closing a handle more than once has no effect.
+ *
+ * @author Kyle M. Douglass
+ */
+public final class ModelHandle implements AutoCloseable {
+
+    private final ModelRegistry registry;
+
+    private final ModelRegistry.ModelKey key;
+
+    private final Session session;
+
+    private final Graph graph;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    ModelHandle(ModelRegistry registry, ModelRegistry.ModelKey key,
+                SavedModelBundle bundle) {
+        this.registry = registry;
+        this.key = key;
+        this.session = bundle.session();
+        this.graph = bundle.graph();
+    }
+
+    /**
+     * Returns the TensorFlow session of the model.
+     *
+     * The session is shared with the other handles of the same model and must
+     * not be closed directly.
+     *
+     * @return The TensorFlow session.
+     * @throws IllegalStateException If the handle has been closed.
+     */
+    public Session getSession() {
+        if (closed.get()) {
+            throw new IllegalStateException("The model handle is closed.");
+        }
+        return session;
+    }
+
+    /**
+     * Returns the TensorFlow graph of the model.
+     *
+     * The graph is shared with the other handles of the same model and must
+     * not be modified.
+     *
+     * @return The TensorFlow graph.
+     * @throws IllegalStateException If the handle has been closed.
+     */
+    public Graph getGraph() {
+        if (closed.get()) {
+            throw new IllegalStateException("The model handle is closed.");
+        }
+        return graph;
+    }
+
+    /**
+     * Returns a string that identifies the model and its version on disk.
+     *
+     * @return The identity of the model.
+     */
+    public String getModelId() {
+        return key.toString();
+    }
+
+    /**
+     * Releases this reference to the model.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            registry.release(key);
+        }
+    }
+
+}
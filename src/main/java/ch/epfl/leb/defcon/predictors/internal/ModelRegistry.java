@@ -0,0 +1,481 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tensorflow.SavedModelBundle;
+
+/**
+ * A process-wide cache of loaded TensorFlow models.
+ *
+ * Models are identified by the canonical path of the saved model bundle, the
+ * time at which its files were last modified and the session options, so that
+ * a model is reloaded when it changes on disk. Each call to acquire() returns a
+ * handle that holds a reference to the model; the model stays loaded while at
+ * least one handle is open.
+ *
+ * Models that are no longer referenced are kept for an idle timeout so that
+ * repeated runs, e.g. from a macro, do not reload them. Idle models are also
+ * evicted, least-recently released first, when the estimated size of all the
+ * loaded models exceeds a memory budget. The size of a model is estimated from
+ * the size of its files on disk.
+ *
+ * @author Kyle M. Douglass
+ */
+public final class ModelRegistry {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            ModelRegistry.class.getName());
+
+    /**
+     * The default time that an unreferenced model stays loaded.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /**
+     * The default budget for the estimated size of all loaded models.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 2L * 1024 * 1024 * 1024;
+
+    /**
+     * The single instance of the registry.
+     */
+    private static final ModelRegistry INSTANCE = new ModelRegistry();
+
+    /**
+     * The loaded models, in the order in which they became idle.
+     */
+    private final Map<ModelKey, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * The models that are being loaded.
+     */
+    private final Map<ModelKey, CompletableFuture<Void>> loading =
+            new HashMap<>();
+
+    /**
+     * Runs the idle timeout checks.
+     */
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "defcon-model-registry");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * The pending idle timeout check, if any.
+     */
+    private ScheduledFuture<?> evictionTask;
+
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    private ModelRegistry() {
+    }
+
+    /**
+     * Returns the process-wide model registry.
+     *
+     * @return The model registry.
+     */
+    public static ModelRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a handle to a loaded model, loading it if necessary.
+     *
+     * Models are loaded outside of the lock of the registry, so that loading
+     * one model does not block the handles of other models. Concurrent calls
+     * for the same model wait for a single load.
+     *
+     * The handle must be closed when the model is no longer needed.
+     *
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param options The options of the TensorFlow session.
+     * @return A handle that references the model.
+     */
+    public ModelHandle acquire(String pathToModel, SessionOptions options) {
+        ModelKey key = ModelKey.of(pathToModel, options);
+        while (true) {
+            CompletableFuture<Void> pending;
+            synchronized (this) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    return reference(entry);
+                }
+                pending = loading.get(key);
+                if (pending == null) {
+                    pending = new CompletableFuture<>();
+                    loading.put(key, pending);
+                    return load(key, pending);
+                }
+            }
+
+            // Another thread is loading the model.
+            try {
+                pending.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Loads a model without holding the lock and publishes it.
+     *
+     * @param key The key of the model.
+     * @param pending Completed once the model is published or failed to load.
+     * @return A handle that references the model.
+     */
+    private ModelHandle load(ModelKey key, CompletableFuture<Void> pending) {
+        Entry entry;
+        try {
+            LOGGER.log(Level.INFO, "Loading model {0}", key.path);
+            SavedModelBundle bundle = SavedModelBundle.loader(key.path)
+                                                      .withTags("serve")
+                                                      .withConfigProto(
+                                                          key.config)
+                                                      .load();
+            entry = new Entry(key, bundle, sizeOf(new File(key.path)));
+        } catch (RuntimeException | Error ex) {
+            synchronized (this) {
+                loading.remove(key);
+            }
+            pending.completeExceptionally(ex);
+            throw ex;
+        }
+
+        ModelHandle handle;
+        synchronized (this) {
+            loading.remove(key);
+            entries.put(key, entry);
+            handle = reference(entry);
+        }
+        pending.complete(null);
+        return handle;
+    }
+
+    /**
+     * Adds a reference to a loaded model.
+     */
+    private ModelHandle reference(Entry entry) {
+        entry.refCount++;
+        evictOverBudget();
+        return new ModelHandle(this, entry.key, entry.bundle);
+    }
+
+    /**
+     * Releases a reference to a model.
+     *
+     * Called by ModelHandle.close().
+     *
+     * @param key The key of the model.
+     */
+    synchronized void release(ModelKey key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.refCount == 0) {
+            return;
+        }
+
+        entry.refCount--;
+        if (entry.refCount == 0) {
+            entry.idleSince = System.currentTimeMillis();
+
+            // Moves the entry to the end of the eviction order.
+            entries.remove(key);
+            entries.put(key, entry);
+
+            if (idleTimeoutMs == 0) {
+                evict(entry);
+            } else {
+                evictOverBudget();
+                scheduleEviction();
+            }
+        }
+    }
+
+    /**
+     * Closes all the models that are not referenced by any handle.
+     */
+    public synchronized void evictIdle() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refCount == 0) {
+                it.remove();
+                closeEntry(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of loaded models, including idle ones.
+     *
+     * @return The number of loaded models.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Sets the time that an unreferenced model stays loaded.
+     *
+     * A timeout of zero closes models as soon as their last handle is closed.
+     *
+     * @param timeout The idle timeout.
+     * @param unit The unit of the timeout.
+     */
+    public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException(
+                    "The idle timeout cannot be negative.");
+        }
+        idleTimeoutMs = unit.toMillis(timeout);
+        scheduleEviction();
+    }
+
+    /**
+     * Sets the budget for the estimated size of all loaded models.
+     *
+     * @param bytes The memory budget in bytes.
+     */
+    public synchronized void setMemoryBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException(
+                    "The memory budget cannot be negative.");
+        }
+        memoryBudget = bytes;
+        evictOverBudget();
+    }
+
+    /**
+     * Closes the least-recently released idle models until the loaded models
+     * fit in the memory budget.
+     */
+    private void evictOverBudget() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.sizeBytes;
+        }
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (total > memoryBudget && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refCount == 0) {
+                it.remove();
+                closeEntry(entry);
+                total -= entry.sizeBytes;
+            }
+        }
+    }
+
+    /**
+     * Closes the idle models whose timeout has expired and schedules the next
+     * check.
+     */
+    private synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refCount == 0 && now - entry.idleSince >= idleTimeoutMs) {
+                it.remove();
+                closeEntry(entry);
+            }
+        }
+        evictionTask = null;
+        scheduleEviction();
+    }
+
+    /**
+     * Schedules the next idle timeout check for the oldest idle model.
+     */
+    private void scheduleEviction() {
+        if (evictionTask != null) {
+            evictionTask.cancel(false);
+            evictionTask = null;
+        }
+
+        long oldestIdle = Long.MAX_VALUE;
+        for (Entry entry : entries.values()) {
+            if (entry.refCount == 0) {
+                oldestIdle = Math.min(oldestIdle, entry.idleSince);
+            }
+        }
+        if (oldestIdle == Long.MAX_VALUE) {
+            return;
+        }
+
+        long delay = Math.max(0, oldestIdle + idleTimeoutMs
+                                 - System.currentTimeMillis());
+        evictionTask = scheduler.schedule(this::evictExpired, delay,
+                                          TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes and closes a single model.
+     */
+    private void evict(Entry entry) {
+        entries.remove(entry.key);
+        closeEntry(entry);
+    }
+
+    /**
+     * Releases the native resources of a model.
+     */
+    private static void closeEntry(Entry entry) {
+        LOGGER.log(Level.INFO, "Closing model {0}", entry.key.path);
+        entry.bundle.close();
+    }
+
+    /**
+     * Returns the total size of the files below a path.
+     */
+    private static long sizeOf(File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the latest modification time of the files below a path.
+     */
+    private static long lastModified(File file) {
+        long time = file.lastModified();
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                time = Math.max(time, lastModified(child));
+            }
+        }
+        return time;
+    }
+
+    /**
+     * A loaded model and its reference count.
+     */
+    private static class Entry {
+
+        final ModelKey key;
+
+        final SavedModelBundle bundle;
+
+        final long sizeBytes;
+
+        int refCount = 0;
+
+        long idleSince;
+
+        Entry(ModelKey key, SavedModelBundle bundle, long sizeBytes) {
+            this.key = key;
+            this.bundle = bundle;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    /**
+     * Identifies a model by its location, version on disk and session options.
+     */
+    static final class ModelKey {
+
+        final String path;
+
+        final long lastModified;
+
+        final byte[] config;
+
+        private ModelKey(String path, long lastModified, byte[] config) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.config = config;
+        }
+
+        static ModelKey of(String pathToModel, SessionOptions options) {
+            File file = new File(pathToModel);
+            String path;
+            try {
+                path = file.getCanonicalPath();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return new ModelKey(path, lastModified(file),
+                                options.toConfigProto());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ModelKey)) {
+                return false;
+            }
+            ModelKey other = (ModelKey) obj;
+            return path.equals(other.path)
+                   && lastModified == other.lastModified
+                   && Arrays.equals(config, other.config);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = path.hashCode();
+            hash = 31 * hash + Long.hashCode(lastModified);
+            hash = 31 * hash + Arrays.hashCode(config);
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return path + "@" + lastModified;
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.Predictor;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Spreads predictions over several worker threads that share one model.
+ *
+ * All workers call the stateless prediction methods of a single predictor,
+ * i.e. they share one loaded model and one TensorFlow session. TensorFlow
+ * sessions may be run concurrently, and because the session's intra-op and
+ * inter-op thread pools are shared by all the concurrent runs, adding workers
+ * does not multiply the number of threads that TensorFlow uses. Use
+ * {@link SessionOptions} to cap these thread pools so that the pool does not
+ * compete with ImageJ for the CPU.
+ *
+ * @author Kyle M. Douglass
+ */
+public class PredictorPool implements AutoCloseable {
+
+    /**
+     * The predictor shared by all the workers.
+     */
+    private final Predictor predictor;
+
+    /**
+     * Was the predictor created by this pool?
+     */
+    private final boolean ownsPredictor;
+
+    /**
+     * The worker threads.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The number of worker threads.
+     */
+    private final int numWorkers;
+
+    /**
+     * Loads a model and creates a pool of workers that share it.
+     *
+     * The model is closed when the pool is closed.
+     *
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param numWorkers The number of worker threads.
+     * @param options The options of the shared TensorFlow session.
+     */
+    public PredictorPool(String pathToModel, int numWorkers,
+                         SessionOptions options) {
+        this(loadPredictor(pathToModel, options), numWorkers, true);
+    }
+
+    /**
+     * Creates a pool of workers that share an initialized predictor.
+     *
+     * The predictor is not closed when the pool is closed.
+     *
+     * @param predictor The predictor shared by the workers.
+     * @param numWorkers The number of worker threads.
+     */
+    public PredictorPool(Predictor predictor, int numWorkers) {
+        this(predictor, numWorkers, false);
+    }
+
+    private PredictorPool(Predictor predictor, int numWorkers,
+                          boolean ownsPredictor) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException(
+                    "A pool requires at least one worker.");
+        }
+        this.predictor = predictor;
+        this.ownsPredictor = ownsPredictor;
+        this.numWorkers = numWorkers;
+        this.executor = Executors.newFixedThreadPool(numWorkers,
+                                                     new WorkerFactory());
+    }
+
+    /**
+     * Loads a DefaultPredictor.
+     */
+    private static Predictor loadPredictor(String pathToModel,
+                                           SessionOptions options) {
+        DefaultPredictor defaultPredictor = new DefaultPredictor();
+        defaultPredictor.setup(pathToModel, options);
+        return defaultPredictor;
+    }
+
+    /**
+     * Shuts down the workers and closes the model if the pool loaded it.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (ownsPredictor) {
+            predictor.close();
+        }
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return The number of worker threads.
+     */
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * Returns the predictor shared by the workers.
+     *
+     * @return The shared predictor.
+     */
+    public Predictor getPredictor() {
+        return predictor;
+    }
+
+    /**
+     * Makes a prediction on one of the worker threads.
+     *
+     * @param ip The image to perform a prediction on.
+     * @return The pending result of the prediction.
+     */
+    public Future<PredictionResult> submit(final ImageProcessor ip) {
+        return executor.submit(() -> predictor.predictResult(ip));
+    }
+
+    /**
+     * Makes predictions for a batch of same-sized images on one of the worker
+     * threads.
+     *
+     * @param ips The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the network at once.
+     * @return The pending results of the predictions in the order of the input.
+     */
+    public Future<List<PredictionResult>> submitBatch(
+            final List<? extends ImageProcessor> ips, final int batchSize) {
+        return executor.submit(
+                () -> predictor.predictBatchResults(ips, batchSize));
+    }
+
+    /**
+     * Predicts only the counts of a batch of same-sized images on one of the
+     * worker threads.
+     *
+     * No density map is created, so the results have a count only.
+     *
+     * @param ips The images to perform predictions on.
+     * @param batchSize The maximum number of frames sent to the network at once.
+     * @return The pending results of the predictions in the order of the input.
+     * @see PredictionResult#hasDensityMap()
+     */
+    public Future<List<PredictionResult>> submitCounts(
+            final List<? extends ImageProcessor> ips, final int batchSize) {
+        return executor.submit(() -> {
+            double[] counts = predictor.predictBatch(ips, batchSize, null);
+            List<PredictionResult> results = new ArrayList<>(counts.length);
+            for (double count : counts) {
+                results.add(new PredictionResult(count));
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Makes predictions for every slice of a stack.
+     *
+     * Slices are read on the calling thread, split into batches and predicted
+     * on the workers. At most two batches per worker are in flight at any
+     * time. The results are passed to the consumer on the calling thread in
+     * the order of the slices.
+     *
+     * @param stack The images to perform predictions on.
+     * @param roi The region of each slice to predict on, or null for the whole
+     *            slice.
+     * @param batchSize The number of frames per batch.
+     * @param consumer Receives the 1-based slice index and the result of each
+     *                 slice.
+     * @throws ImageBitDepthException
+     * @throws SessionClosedException
+     * @throws InterruptedException If the calling thread is interrupted while
+     *                              waiting for the workers.
+     */
+    public void predictStack(ImageStack stack, Rectangle roi, int batchSize,
+                             BiConsumer<Integer, PredictionResult> consumer)
+                             throws ImageBitDepthException,
+                                    SessionClosedException,
+                                    InterruptedException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
+
+        int stackSize = stack.getSize();
+        int maxInFlight = 2 * numWorkers;
+        Deque<Future<List<PredictionResult>>> pending = new ArrayDeque<>();
+        int nextSlice = 1;
+        try {
+            for (int start = 1; start <= stackSize; start += batchSize) {
+                int end = Math.min(start + batchSize - 1, stackSize);
+
+                List<ImageProcessor> batch = new ArrayList<>(end - start + 1);
+                for (int i = start; i <= end; i++) {
+                    ImageProcessor ip = stack.getProcessor(i);
+                    if (roi != null) {
+                        ip.setRoi(roi);
+                    }
+                    batch.add(ip);
+                }
+                pending.add(submitBatch(batch, batchSize));
+
+                while (pending.size() >= maxInFlight) {
+                    nextSlice = consume(pending.poll(), nextSlice, consumer);
+                }
+            }
+            while (!pending.isEmpty()) {
+                nextSlice = consume(pending.poll(), nextSlice, consumer);
+            }
+        } finally {
+            for (Future<List<PredictionResult>> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Waits for a batch of results and passes them to a consumer.
+     *
+     * @return The index of the slice that follows the batch.
+     */
+    private int consume(Future<List<PredictionResult>> future, int firstSlice,
+                        BiConsumer<Integer, PredictionResult> consumer)
+                        throws ImageBitDepthException,
+                               SessionClosedException,
+                               InterruptedException {
+        List<PredictionResult> results;
+        try {
+            results = future.get();
+        } catch (ExecutionException ex) {
+            throw unwrap(ex);
+        }
+
+        int slice = firstSlice;
+        for (PredictionResult result : results) {
+            consumer.accept(slice++, result);
+        }
+        return slice;
+    }
+
+    /**
+     * Rethrows the cause of a failed prediction.
+     *
+     * @param ex The exception raised by a future.
+     * @return Never returns normally; the return type allows callers to write
+     *         {@code throw unwrap(ex)}.
+     */
+    static RuntimeException unwrap(ExecutionException ex)
+            throws ImageBitDepthException, SessionClosedException {
+        Throwable cause = ex.getCause();
+        if (cause instanceof ImageBitDepthException) {
+            throw (ImageBitDepthException) cause;
+        } else if (cause instanceof SessionClosedException) {
+            throw (SessionClosedException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    /**
+     * Creates named daemon threads so that idle workers never keep ImageJ
+     * from exiting.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        private final String prefix = "defcon-pool-"
+                                    + POOL_NUMBER.getAndIncrement()
+                                    + "-worker-";
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
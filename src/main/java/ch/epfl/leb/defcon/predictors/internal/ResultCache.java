@@ -0,0 +1,454 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A cache of prediction results keyed by the content of the frames.
+ *
+ * The key of a frame is a SHA-256 digest of the identity of the model and
+ * of the configuration of the predictor, of the ROI of the frame trimmed to
+ * multiples of four and of the pixels inside it. An unchanged frame
+ * therefore hits the cache whatever stack it comes from, while a new model,
+ * a differently configured predictor, a new ROI or a modified frame misses
+ * it.
+ *
+ * The cache has two tiers:
+ * <ul>
+ * <li>An in-memory tier that keeps whole results, including the density
+ * maps, and evicts the least-recently used ones when its memory budget is
+ * exceeded. Lazily built density maps are not built when they are added.
+ * The results that are returned build copies of the cached density maps, so
+ * that callers may modify them. Results without a density map are kept too,
+ * but they miss lookups that require a density map.</li>
+ * <li>An optional on-disk tier that keeps only the counts, in a text file
+ * that is appended to as results are added and read back when the cache is
+ * opened. Results from this tier have no density map.</li>
+ * </ul>
+ *
+ * The cache may be shared by several predictors and threads.
+ *
+ * @author Kyle M. Douglass
+ */
+public class ResultCache implements AutoCloseable {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            ResultCache.class.getName());
+
+    /**
+     * The name of the file of the on-disk tier.
+     */
+    public static final String COUNTS_FILE = "counts.txt";
+
+    /**
+     * The default memory budget of the in-memory tier.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+    /**
+     * The estimated memory of an entry of the in-memory tier without a
+     * density map: the key, the entry and the count.
+     */
+    private static final long COUNT_BYTES = 128;
+
+    private final long memoryBudget;
+
+    private long memoryBytes = 0;
+
+    /**
+     * The in-memory tier, in access order.
+     */
+    private final LinkedHashMap<String, Entry> memory =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The counts of the on-disk tier.
+     */
+    private final Map<String, Double> disk = new HashMap<>();
+
+    private final BufferedWriter diskWriter;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+
+    private final AtomicLong diskHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache with an in-memory tier only.
+     *
+     * @param memoryBudget The memory budget of the in-memory tier, in bytes.
+     */
+    public ResultCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        this.diskWriter = null;
+    }
+
+    /**
+     * Creates a cache with an in-memory tier and an on-disk tier.
+     *
+     * The counts that are already in the directory are loaded.
+     *
+     * @param directory The directory of the on-disk tier. It is created if
+     *                  needed.
+     * @param memoryBudget The memory budget of the in-memory tier, in bytes.
+     * @throws IOException If the directory cannot be read or written.
+     */
+    public ResultCache(File directory, long memoryBudget) throws IOException {
+        this.memoryBudget = memoryBudget;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        Path file = new File(directory, COUNTS_FILE).toPath();
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(
+                    file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // Ignores a line that was cut by a crash.
+                    String[] fields = line.split(" ");
+                    if (fields.length == 2) {
+                        try {
+                            disk.put(fields[0], Double.valueOf(fields[1]));
+                        } catch (NumberFormatException ex) {
+                            LOGGER.log(Level.FINE, "Skipped a line", ex);
+                        }
+                    }
+                }
+            }
+        }
+        LOGGER.log(Level.INFO, "Loaded {0} cached counts from {1}",
+                   new Object[] {disk.size(), directory});
+        this.diskWriter = Files.newBufferedWriter(
+                file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Computes the identity of a saved model from the contents of its files.
+     *
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @return A hexadecimal digest of the model.
+     */
+    public static String modelId(String pathToModel) {
+        MessageDigest digest = newDigest();
+        Path root = new File(pathToModel).toPath();
+        byte[] buffer = new byte[1 << 16];
+        try (Stream<Path> walk = Files.walk(root)) {
+            List<Path> files = walk.filter(Files::isRegularFile).sorted()
+                                   .collect(Collectors.toList());
+            for (Path file : files) {
+                digest.update(root.relativize(file).toString()
+                                  .getBytes(StandardCharsets.UTF_8));
+                try (InputStream in = Files.newInputStream(file)) {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the key of a frame.
+     *
+     * @param modelId The identity of the model and of the configuration of
+     *                the predictor.
+     * @param ip The frame. Its ROI is trimmed to multiples of four like the
+     *           predictors do; the frame itself is not modified.
+     * @return The key of the frame.
+     */
+    public static String key(String modelId, ImageProcessor ip) {
+        Rectangle roi = ip.getRoi();
+        int width = roi.width - roi.width % 4;
+        int height = roi.height - roi.height % 4;
+
+        MessageDigest digest = newDigest();
+        digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer header = ByteBuffer.allocate(20);
+        header.putInt(roi.x).putInt(roi.y).putInt(width).putInt(height)
+              .putInt(ip.getBitDepth());
+        digest.update(header.array());
+
+        Object pixels = ip.getPixels();
+        int bytesPerPixel = ip.getBitDepth() / 8;
+        ByteBuffer row = ByteBuffer.allocate(width * bytesPerPixel)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = roi.y; y < roi.y + height; y++) {
+            int start = y * ip.getWidth() + roi.x;
+            row.clear();
+            if (pixels instanceof byte[]) {
+                row.put((byte[]) pixels, start, width);
+            } else if (pixels instanceof short[]) {
+                row.asShortBuffer().put((short[]) pixels, start, width);
+            } else if (pixels instanceof float[]) {
+                row.asFloatBuffer().put((float[]) pixels, start, width);
+            } else if (pixels instanceof int[]) {
+                row.asIntBuffer().put((int[]) pixels, start, width);
+            }
+            digest.update(row.array());
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Looks up the result of a frame.
+     *
+     * @param key The key of the frame.
+     * @param requireDensityMap Whether only results with a density map are
+     *                          wanted. If false, a count without a density
+     *                          map from either tier may be returned.
+     * @return The cached result, or null if it is not cached.
+     */
+    public synchronized PredictionResult get(String key,
+                                             boolean requireDensityMap) {
+        Entry entry = memory.get(key);
+        if (entry != null
+                && (!requireDensityMap || entry.result.hasDensityMap())) {
+            memoryHits.incrementAndGet();
+            return copyOf(entry.result);
+        }
+        if (!requireDensityMap) {
+            Double count = disk.get(key);
+            if (count != null) {
+                diskHits.incrementAndGet();
+                return new PredictionResult(count);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds the result of a frame to both tiers.
+     *
+     * The density map of the result is built to measure its size. Use
+     * {@link #put(String, PredictionResult, int)} to keep it lazy.
+     *
+     * @param key The key of the frame.
+     * @param result The result of the prediction.
+     */
+    public void put(String key, PredictionResult result) {
+        put(key, result, result.hasDensityMap()
+                         ? result.getDensityMap().getPixelCount() : 0);
+    }
+
+    /**
+     * Adds the result of a frame whose density map has a known size to both
+     * tiers.
+     *
+     * The result is kept as it is, so it should not be handed to code that
+     * modifies its density map; see {@link #copyOf(PredictionResult)}. A
+     * result without a density map does not replace a cached result that
+     * has one.
+     *
+     * @param key The key of the frame.
+     * @param result The result of the prediction.
+     * @param pixelCount The number of pixels of the density map. It is
+     *                   ignored if the result has no density map.
+     */
+    public synchronized void put(String key, PredictionResult result,
+                                 int pixelCount) {
+        Entry previous = memory.get(key);
+        if (previous == null || result.hasDensityMap()
+                || !previous.result.hasDensityMap()) {
+            long sizeBytes = result.hasDensityMap() ? 4L * pixelCount
+                                                    : COUNT_BYTES;
+            previous = memory.put(key, new Entry(result, sizeBytes));
+            if (previous != null) {
+                memoryBytes -= previous.sizeBytes;
+            }
+            memoryBytes += sizeBytes;
+            Iterator<Entry> eldest = memory.values().iterator();
+            while (memoryBytes > memoryBudget && eldest.hasNext()) {
+                memoryBytes -= eldest.next().sizeBytes;
+                eldest.remove();
+            }
+        }
+
+        if (diskWriter != null && !disk.containsKey(key)) {
+            disk.put(key, result.getCount());
+            try {
+                diskWriter.write(key + " " + result.getCount());
+                diskWriter.newLine();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending counts of the on-disk tier.
+     *
+     * @throws IOException If the counts cannot be written.
+     */
+    public synchronized void flush() throws IOException {
+        if (diskWriter != null) {
+            diskWriter.flush();
+        }
+    }
+
+    /**
+     * Writes the pending counts and closes the on-disk tier.
+     *
+     * @throws IOException If the counts cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (diskWriter != null) {
+            diskWriter.close();
+        }
+    }
+
+    /**
+     * Returns the number of lookups that were found in the in-memory tier.
+     *
+     * @return The number of in-memory hits.
+     */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /**
+     * Returns the number of lookups that were found in the on-disk tier.
+     *
+     * @return The number of on-disk hits.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Returns the number of lookups that were not found.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of lookups that were found in either tier.
+     *
+     * @return The hit rate between 0 and 1, or 0 if nothing was looked up.
+     */
+    public double getHitRate() {
+        long hits = memoryHits.get() + diskHits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Returns a human-readable summary of the cache statistics.
+     *
+     * @return The summary.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "DEFCoN result cache: hit rate "
+                + "%.1f%% (%d memory hits, %d disk hits, %d misses); "
+                + "%d results in memory, %d counts on disk",
+                100 * getHitRate(), getMemoryHits(), getDiskHits(),
+                getMisses(), memory.size(), disk.size());
+    }
+
+    /**
+     * Returns a result whose density map, if any, is a copy of the density
+     * map of another result, built on first use.
+     *
+     * @param result The result to copy.
+     * @return The copy.
+     */
+    public static PredictionResult copyOf(final PredictionResult result) {
+        if (!result.hasDensityMap()) {
+            return new PredictionResult(result.getCount());
+        }
+        return new PredictionResult(result.getCount(),
+                () -> (FloatProcessor) result.getDensityMap().duplicate());
+    }
+
+    /**
+     * A result of the in-memory tier and its estimated size.
+     */
+    private static final class Entry {
+
+        final PredictionResult result;
+
+        final long sizeBytes;
+
+        Entry(PredictionResult result, long sizeBytes) {
+            this.result = result;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A process-wide budget for the native memory of the tensors that are fed to
+ * and fetched from TensorFlow sessions.
+ *
+ * Tensors live outside of the Java heap, so the garbage collector neither
+ * sees nor limits them. Every prediction reserves the size of its input and
+ * output tensors before it creates them and releases the reservation once
+ * they are closed. When the budget is exhausted, further reservations block
+ * until enough memory has been released, which slows the readers down
+ * instead of letting the resident memory of the process grow.
+ *
+ * A reservation that is larger than the whole budget is granted once no
+ * other memory is reserved, so that a single large batch can never block
+ * forever.
+ *
+ * @author Kyle M. Douglass
+ */
+public final class TensorMemoryBudget {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            TensorMemoryBudget.class.getName());
+
+    /**
+     * The default budget for the tensors of all the predictors.
+     */
+    public static final long DEFAULT_LIMIT = 1024L * 1024 * 1024;
+
+    /**
+     * The single instance of the budget.
+     */
+    private static final TensorMemoryBudget INSTANCE =
+            new TensorMemoryBudget(DEFAULT_LIMIT);
+
+    private long limit;
+
+    private long used = 0;
+
+    private long peak = 0;
+
+    private long waitNanos = 0;
+
+    /**
+     * Creates a budget that is independent of the process-wide one.
+     *
+     * @param limit The budget in bytes.
+     */
+    public TensorMemoryBudget(long limit) {
+        setLimit(limit);
+    }
+
+    /**
+     * Returns the process-wide budget that is used by all the predictors.
+     *
+     * @return The tensor memory budget.
+     */
+    public static TensorMemoryBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reserves memory for tensors, waiting until it is available.
+     *
+     * @param bytes The number of bytes to reserve.
+     * @return The reservation, which must be closed once the tensors are
+     *         closed.
+     * @throws IllegalStateException If the thread is interrupted while
+     *                               waiting.
+     */
+    public Reservation reserve(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException(
+                    "Cannot reserve a negative amount of memory.");
+        }
+        synchronized (this) {
+            if (used > 0 && used + bytes > limit) {
+                long start = System.nanoTime();
+                try {
+                    while (used > 0 && used + bytes > limit) {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(
+                            "Interrupted while waiting for tensor memory.", ex);
+                } finally {
+                    waitNanos += System.nanoTime() - start;
+                }
+            }
+            used += bytes;
+            peak = Math.max(peak, used);
+        }
+        return new Reservation(bytes);
+    }
+
+    /**
+     * Sets the budget.
+     *
+     * Lowering the budget does not affect the reservations that were already
+     * granted.
+     *
+     * @param bytes The budget in bytes.
+     */
+    public synchronized void setLimit(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException(
+                    "The tensor memory budget must be positive.");
+        }
+        limit = bytes;
+        LOGGER.log(Level.FINE, "Tensor memory budget set to {0} bytes",
+                   bytes);
+        notifyAll();
+    }
+
+    /**
+     * Returns the budget.
+     *
+     * @return The budget in bytes.
+     */
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the memory that is currently reserved.
+     *
+     * @return The reserved memory in bytes.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Returns the largest memory that was reserved at once.
+     *
+     * @return The peak reserved memory in bytes.
+     */
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    /**
+     * Returns the total time that threads waited for memory.
+     *
+     * @return The total waiting time in milliseconds.
+     */
+    public synchronized long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Tensor memory: %.1f MB peak of %.1f MB budget, "
+                             + "%d ms waiting", peak / (double) (1 << 20),
+                             limit / (double) (1 << 20), getWaitMillis());
+    }
+
+    /**
+     * Memory reserved for tensors. Closing it more than once has no effect.
+     */
+    public final class Reservation implements AutoCloseable {
+
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Returns the memory back to the budget.
+         */
+        @Override
+        public void close() {
+            synchronized (TensorMemoryBudget.this) {
+                used -= bytes;
+                bytes = 0;
+                TensorMemoryBudget.this.notifyAll();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,566 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.InputShape;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.PredictorMetrics.Stage;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+import ch.epfl.leb.defcon.utils.TensorFactory;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Operation;
+import org.tensorflow.Tensor;
+
+/**
+ * Makes density map predictions from large images one tile at a time.
+ *
+ * The image is divided into square core tiles of tileSize pixels. Each tile is
+ * predicted on a window that extends the core by a halo on every side, and
+ * only the core of each window's density map is kept in the stitched map.
+ * When the halo is at least as wide as the receptive field of the network,
+ * the pixels of a core do not depend on the image outside of its window and
+ * the stitched density map is the same as the one of the whole image.
+ *
+ * All the windows of an image have the same size: near the borders of the
+ * image, windows are shifted inwards instead of being clipped. They can
+ * therefore be packed into batches of tiles, and these batches may be
+ * predicted in parallel. Window positions are multiples of four so that the
+ * pooling layers of the network see the same pixel grid as for the whole
+ * image. The size of the input and output tensors is bounded by the tile
+ * size, the halo and the tile batch size instead of by the size of the image.
+ *
+ * The DEFCoN network rescales every input to the range [0, 1] using the
+ * minimum and maximum of the input before the first convolution. Tiles would
+ * therefore be rescaled independently from each other. To avoid this, the
+ * tiles are rescaled on the Java side with the minimum and maximum of the
+ * whole image while they are read into the input tensors, and are fed to the
+ * output of the rescaling operation of the graph, {@value
+ * #DEFAULT_NORMALIZED_INPUT} by default. A re-exported model whose only
+ * operation ending with {@value #NORMALIZED_INPUT_SUFFIX} has another prefix
+ * is also accepted. Setup fails if the graph has no such operation, unless the
+ * tiles are explicitly fed to the input of the network with
+ * setNormalizedInput(null); the stitched map is then only an approximation of
+ * the one of the whole image. Frames whose pixels are all equal are fed as
+ * zeros instead of dividing by zero.
+ *
+ * The frame batch size of the batch methods is ignored; tiles are batched
+ * instead.
+ *
+ * @author Kyle M. Douglass
+ */
+public class TiledPredictor extends DefaultPredictor {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            TiledPredictor.class.getName());
+
+    /**
+     * The default width of the core of a tile.
+     */
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    /**
+     * The default width of the halo around the core of a tile.
+     *
+     * It covers the receptive field of the DEFCoN density count network.
+     */
+    public static final int DEFAULT_HALO = 32;
+
+    /**
+     * The default name of the operation that rescales the input of the network.
+     */
+    public static final String DEFAULT_NORMALIZED_INPUT =
+            "model_5/hist_norm/truediv";
+
+    /**
+     * The end of the name of the rescaling operation in any export of the
+     * model.
+     */
+    public static final String NORMALIZED_INPUT_SUFFIX = "hist_norm/truediv";
+
+    private final int tileSize;
+
+    private final int halo;
+
+    private int tileBatchSize = 4;
+
+    private int numThreads = 1;
+
+    private volatile String normalizedInput = DEFAULT_NORMALIZED_INPUT;
+
+    /**
+     * The operation of the loaded graph that the tiles are fed to.
+     */
+    private volatile String inputName = "input_tensor";
+
+    /**
+     * Predicts batches of tiles in parallel, or null for the calling thread.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Creates a tiled predictor with the default tile size and halo.
+     */
+    public TiledPredictor() {
+        this(DEFAULT_TILE_SIZE, DEFAULT_HALO);
+    }
+
+    /**
+     * Creates a tiled predictor.
+     *
+     * @param tileSize The width of the core of a tile. Must be a positive
+     *                 multiple of four.
+     * @param halo The width of the overlap on each side of a core. Must be a
+     *             non-negative multiple of four.
+     */
+    public TiledPredictor(int tileSize, int halo) {
+        if (tileSize < 4 || tileSize % 4 != 0 || halo < 0 || halo % 4 != 0) {
+            throw new IllegalArgumentException("The tile size and the halo "
+                    + "must be multiples of four.");
+        }
+        this.tileSize = tileSize;
+        this.halo = halo;
+    }
+
+    /**
+     * Returns the width of the core of a tile.
+     *
+     * @return The tile size.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the width of the overlap on each side of a core.
+     *
+     * @return The halo.
+     */
+    public int getHalo() {
+        return halo;
+    }
+
+    /**
+     * Sets the number of tiles that are sent to the network at once.
+     *
+     * @param tileBatchSize The number of tiles per batch.
+     */
+    public void setTileBatchSize(int tileBatchSize) {
+        if (tileBatchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The tile batch size must be at least 1.");
+        }
+        this.tileBatchSize = tileBatchSize;
+    }
+
+    /**
+     * Sets the number of threads that predict batches of tiles concurrently.
+     *
+     * This must be called before the first prediction.
+     *
+     * @param numThreads The number of threads.
+     */
+    public synchronized void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException(
+                    "At least one thread is required.");
+        }
+        if (executor != null) {
+            throw new IllegalStateException(
+                    "The number of threads cannot be changed after the first "
+                    + "prediction.");
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Returns the operation of the graph that rescales the input of the
+     * network.
+     *
+     * @return The name of the operation, or null if the tiles are rescaled
+     *         independently.
+     */
+    public String getNormalizedInput() {
+        return normalizedInput;
+    }
+
+    /**
+     * Sets the operation of the graph that rescales the input of the network.
+     *
+     * This must be called before setup() to have an effect.
+     *
+     * @param normalizedInput The name of the operation, or null to feed the
+     *                        tiles to the input of the network and rescale
+     *                        them independently.
+     */
+    public void setNormalizedInput(String normalizedInput) {
+        this.normalizedInput = normalizedInput;
+    }
+
+    /**
+     * Initializes the predictor and finds the operation that rescales the
+     * input of the network.
+     *
+     * @param pathToModel The path to a saved TensorFlow model bundle.
+     * @param options The options of the TensorFlow session.
+     * @throws IllegalStateException If the graph has no rescaling operation
+     *                               and setNormalizedInput(null) was not
+     *                               called. The model is released.
+     */
+    @Override
+    public void setup(String pathToModel, SessionOptions options) {
+        super.setup(pathToModel, options);
+        try {
+            inputName = findInputName();
+        } catch (IllegalStateException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Warms up the predictor for the tiles of frames of a given shape.
+     *
+     * One batch of synthetic tile windows is fed to the graph, so the tensors
+     * have the size of the windows that are actually predicted instead of
+     * the size of the frames. The frame batch size of the shape is ignored.
+     *
+     * @param shape The shape of the frames that will be predicted.
+     */
+    @Override
+    protected void warmUp(InputShape shape) {
+        int windowWidth = Math.min(shape.getWidth(), tileSize + 2 * halo);
+        int windowHeight = Math.min(shape.getHeight(), tileSize + 2 * halo);
+        int numTiles = ((shape.getWidth() + tileSize - 1) / tileSize)
+                       * ((shape.getHeight() + tileSize - 1) / tileSize);
+        int batchSize = Math.min(tileBatchSize, numTiles);
+
+        ImageProcessor window = syntheticFrames(
+                new InputShape(windowWidth, windowHeight, 1)).get(0);
+        List<Rectangle> windows = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            windows.add(new Rectangle(windowWidth, windowHeight));
+        }
+        TensorMemoryBudget.Reservation reservation = reserveTensors(
+                batchSize, windowWidth, windowHeight);
+        try (Tensor<Float> input = TensorFactory.regionsToTensor(
+                     window, windows, 0f, 1f / 65535)) {
+            runSession(input, inputName, false);
+        } finally {
+            reservation.close();
+        }
+    }
+
+    /**
+     * Makes a density map prediction from a 2D image, one tile at a time.
+     *
+     * @param ip The image to perform a prediction on.
+     * @return The result of the prediction.
+     * @throws ch.epfl.leb.defcon.predictors.ImageBitDepthException
+     * @throws ch.epfl.leb.defcon.predictors.SessionClosedException
+     */
+    @Override
+    public PredictionResult predictResult(final ImageProcessor ip)
+            throws ImageBitDepthException, SessionClosedException {
+        checkSession("predict");
+        checkBitDepth(ip);
+        return predictTiled(ip);
+    }
+
+    @Override
+    protected double[] predictFrames(final List<? extends ImageProcessor> ips,
+                                     int batchSize, PredictionResult[] results)
+                                     throws ImageBitDepthException,
+                                            SessionClosedException {
+        checkSession("predictBatch");
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
+
+        double[] counts = new double[ips.size()];
+        for (int i = 0; i < ips.size(); i++) {
+            ImageProcessor ip = ips.get(i);
+            checkBitDepth(ip);
+            PredictionResult result = predictTiled(ip);
+            counts[i] = result.getCount();
+            if (results != null) {
+                results[i] = result;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Predicts the tiles of an image and stitches their density maps.
+     *
+     * The ROI of the image is used and trimmed to multiples of four. The
+     * image is not modified.
+     */
+    private PredictionResult predictTiled(final ImageProcessor ip)
+            throws ImageBitDepthException, SessionClosedException {
+        final long start = System.nanoTime();
+        final Rectangle roi = ip.getRoi();
+        final int width = roi.width - roi.width % 4;
+        final int height = roi.height - roi.height % 4;
+        final int windowWidth = Math.min(width, tileSize + 2 * halo);
+        final int windowHeight = Math.min(height, tileSize + 2 * halo);
+
+        List<Tile> tiles = new ArrayList<>();
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                tiles.add(new Tile(x, y,
+                                   Math.min(tileSize, width - x),
+                                   Math.min(tileSize, height - y),
+                                   clamp(x - halo, width - windowWidth),
+                                   clamp(y - halo, height - windowHeight)));
+            }
+        }
+
+        // Rescales the image as a whole if the graph allows it.
+        final String inputName = this.inputName;
+        final boolean normalize = !inputName.equals("input_tensor");
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        if (normalize) {
+            int ipWidth = ip.getWidth();
+            for (int y = roi.y; y < roi.y + height; y++) {
+                for (int x = roi.x; x < roi.x + width; x++) {
+                    float value = ip.getf(y * ipWidth + x);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+        }
+        final float offset = normalize ? min : 0f;
+        // A constant frame carries no signal; it is fed as zeros.
+        final float scale = !normalize ? 1f
+                            : max > min ? 1f / (max - min) : 0f;
+
+        final float[] stitched = new float[width * height];
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            for (int first = 0; first < tiles.size(); first += tileBatchSize) {
+                final List<Tile> batch = tiles.subList(
+                        first, Math.min(first + tileBatchSize, tiles.size()));
+
+                // The windows are read straight from the pixels of the image,
+                // which the tasks only read, so no tile is ever cropped.
+                final List<Rectangle> windows = new ArrayList<>(batch.size());
+                for (Tile tile : batch) {
+                    windows.add(new Rectangle(roi.x + tile.windowX,
+                                              roi.y + tile.windowY,
+                                              windowWidth, windowHeight));
+                }
+
+                Runnable task = () -> {
+                    SessionOutput output;
+                    TensorMemoryBudget.Reservation reservation =
+                            reserveTensors(batch.size(), windowWidth,
+                                           windowHeight);
+                    try {
+                        long tensorStart = System.nanoTime();
+                        try (Tensor<Float> input =
+                                     TensorFactory.regionsToTensor(
+                                             ip, windows, offset, scale)) {
+                            metrics.record(Stage.TENSOR, tensorStart);
+                            output = runSession(input, inputName, true);
+                        }
+                    } finally {
+                        reservation.close();
+                    }
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).copyCore(output.getDensityMap(i),
+                                              stitched, width);
+                    }
+                };
+                ExecutorService service = getExecutor();
+                if (service == null) {
+                    task.run();
+                } else {
+                    pending.add(service.submit(task));
+                }
+            }
+
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrupted while predicting tiles.", ex);
+        } catch (ExecutionException ex) {
+            throw PredictorPool.unwrap(ex);
+        } finally {
+            for (Future<?> future : pending) {
+                future.cancel(true);
+            }
+        }
+
+        double count = 0.0;
+        for (float pixel : stitched) {
+            count += pixel;
+        }
+        metrics.recordFrames(1, start);
+        return new PredictionResult(count,
+                                    new FloatProcessor(width, height, stitched));
+    }
+
+    /**
+     * Returns the name of the operation that the tiles are fed to.
+     */
+    private String findInputName() {
+        String name = normalizedInput;
+        if (name == null) {
+            LOGGER.log(Level.INFO, "Tiles are rescaled independently; the "
+                       + "stitched density map is approximate.");
+            return "input_tensor";
+        }
+        Graph graph = model.getGraph();
+        if (graph.operation(name) != null) {
+            return name;
+        }
+
+        // Re-exported models may have another prefix.
+        if (name.equals(DEFAULT_NORMALIZED_INPUT)) {
+            String found = null;
+            Iterator<Operation> operations = graph.operations();
+            while (operations.hasNext()) {
+                String candidate = operations.next().name();
+                if (candidate.endsWith("/" + NORMALIZED_INPUT_SUFFIX)) {
+                    if (found != null) {
+                        found = null;
+                        break;
+                    }
+                    found = candidate;
+                }
+            }
+            if (found != null) {
+                LOGGER.log(Level.INFO, "Feeding the tiles to {0}", found);
+                return found;
+            }
+        }
+        throw new IllegalStateException("The graph has no single operation "
+                + "named " + name + " that rescales its input, so tiles "
+                + "cannot be rescaled as a whole frame. Set the name of this "
+                + "operation with setNormalizedInput(), or null to rescale "
+                + "the tiles independently.");
+    }
+
+    /**
+     * Clamps the position of a window to the image.
+     */
+    private static int clamp(int position, int max) {
+        return Math.max(0, Math.min(position, max));
+    }
+
+    /**
+     * Returns the executor for the tile batches, creating it if needed.
+     *
+     * @return The executor, or null if tiles are predicted on the calling
+     *         thread.
+     */
+    private synchronized ExecutorService getExecutor() {
+        if (numThreads == 1) {
+            return null;
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(numThreads, r -> {
+                Thread thread = new Thread(r, "defcon-tiles");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the tile threads and releases the model.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                LOGGER.log(Level.FINE, "Stopped the tile threads.");
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * The position of a core and of its window within the image.
+     */
+    private static final class Tile {
+
+        final int x;
+
+        final int y;
+
+        final int width;
+
+        final int height;
+
+        final int windowX;
+
+        final int windowY;
+
+        Tile(int x, int y, int width, int height, int windowX, int windowY) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.windowX = windowX;
+            this.windowY = windowY;
+        }
+
+        /**
+         * Copies the core of the window's density map into the stitched map.
+         */
+        void copyCore(FloatProcessor windowMap, float[] stitched,
+                      int stitchedWidth) {
+            float[] pixels = (float[]) windowMap.getPixels();
+            int windowWidth = windowMap.getWidth();
+            int offsetX = x - windowX;
+            int offsetY = y - windowY;
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(
+                        pixels, (offsetY + row) * windowWidth + offsetX,
+                        stitched, (y + row) * stitchedWidth + x, width);
+            }
+        }
+    }
+
+}
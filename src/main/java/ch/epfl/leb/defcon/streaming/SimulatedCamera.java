@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.streaming;
+
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A simulated camera that produces 16-bit frames of fluorescent spots.
+ *
+ * Every frame has a Poisson-distributed number of emitters at random
+ * positions. Each emitter is a Gaussian spot on a constant background, and
+ * the frame has Gaussian read and shot noise. The camera can push frames into
+ * a {@link StreamingPredictor} at a fixed frame rate from its own thread, like
+ * an acquisition would, to test the streaming predictions without hardware.
+ *
+ * @author Kyle M. Douglass
+ */
+public class SimulatedCamera {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            SimulatedCamera.class.getName());
+
+    private static final double BACKGROUND = 100;
+
+    private static final double SPOT_AMPLITUDE = 500;
+
+    private static final double SPOT_SIGMA = 1.5;
+
+    private static final double READ_NOISE = 3;
+
+    private final int width;
+
+    private final int height;
+
+    private final double meanEmitters;
+
+    private final Random random;
+
+    private int lastEmitterCount;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a simulated camera.
+     *
+     * @param width The width of the frames.
+     * @param height The height of the frames.
+     * @param meanEmitters The mean number of emitters per frame.
+     * @param seed The seed of the random number generator.
+     */
+    public SimulatedCamera(int width, int height, double meanEmitters,
+                           long seed) {
+        if (width < 1 || height < 1 || meanEmitters < 0) {
+            throw new IllegalArgumentException("Invalid camera parameters.");
+        }
+        this.width = width;
+        this.height = height;
+        this.meanEmitters = meanEmitters;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Simulates the next frame.
+     *
+     * @return A new 16-bit frame.
+     */
+    public synchronized ShortProcessor nextFrame() {
+        double[] image = new double[width * height];
+        Arrays.fill(image, BACKGROUND);
+
+        lastEmitterCount = poisson(meanEmitters);
+        int radius = (int) Math.ceil(4 * SPOT_SIGMA);
+        for (int n = 0; n < lastEmitterCount; n++) {
+            double cx = random.nextDouble() * width;
+            double cy = random.nextDouble() * height;
+            for (int y = Math.max(0, (int) cy - radius);
+                    y < Math.min(height, (int) cy + radius + 1); y++) {
+                for (int x = Math.max(0, (int) cx - radius);
+                        x < Math.min(width, (int) cx + radius + 1); x++) {
+                    double dx = x + 0.5 - cx;
+                    double dy = y + 0.5 - cy;
+                    image[y * width + x] += SPOT_AMPLITUDE * Math.exp(
+                            -(dx * dx + dy * dy)
+                            / (2 * SPOT_SIGMA * SPOT_SIGMA));
+                }
+            }
+        }
+
+        short[] pixels = new short[image.length];
+        for (int i = 0; i < image.length; i++) {
+            double noise = Math.sqrt(image[i] + READ_NOISE * READ_NOISE);
+            double value = image[i] + noise * random.nextGaussian();
+            pixels[i] = (short) Math.max(0, Math.min(65535, Math.round(value)));
+        }
+        return new ShortProcessor(width, height, pixels, null);
+    }
+
+    /**
+     * Returns the number of emitters in the most recent frame.
+     *
+     * @return The true count of the most recent frame.
+     */
+    public synchronized int getLastEmitterCount() {
+        return lastEmitterCount;
+    }
+
+    /**
+     * Draws from a Poisson distribution, with a normal approximation for
+     * large means.
+     */
+    private int poisson(double mean) {
+        if (mean > 30) {
+            return (int) Math.max(0, Math.round(
+                    mean + Math.sqrt(mean) * random.nextGaussian()));
+        }
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int count = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Pushes frames into a streaming predictor at a fixed rate from a new
+     * thread.
+     *
+     * The thread stops after the given number of frames, when
+     * {@link #stop()} is called or when the streaming predictor is closed.
+     *
+     * @param target The streaming predictor that receives the frames.
+     * @param framesPerSecond The frame rate of the camera.
+     * @param numFrames The number of frames to push.
+     * @return The started acquisition thread.
+     */
+    public Thread start(final StreamingPredictor target,
+                        double framesPerSecond, final long numFrames) {
+        final long period = (long) (TimeUnit.SECONDS.toNanos(1)
+                                    / framesPerSecond);
+        stopped = false;
+        Thread thread = new Thread(() -> {
+            long next = System.nanoTime();
+            try {
+                for (long n = 0; n < numFrames && !stopped; n++) {
+                    target.push(nextFrame());
+                    next += period;
+                    long wait;
+                    while ((wait = next - System.nanoTime()) > 0 && !stopped) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IllegalStateException ex) {
+                LOGGER.log(Level.FINE, "The stream was closed.", ex);
+            }
+        }, "defcon-simulated-camera");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Stops the acquisition thread after its current frame.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+}
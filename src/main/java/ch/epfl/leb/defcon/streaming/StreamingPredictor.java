@@ -0,0 +1,429 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.streaming;
+
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.Predictor;
+import ch.epfl.leb.defcon.utils.LatencyHistogram;
+
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Predicts the counts of frames that are pushed one at a time by an
+ * acquisition, e.g. to control the activation laser of an SMLM experiment.
+ *
+ * Frames are pushed into a bounded ring buffer and predicted by a dedicated
+ * thread as soon as it is free. The thread takes all the frames that are
+ * waiting, up to the maximum batch size, so that it catches up in batches
+ * when it falls behind but never waits for a batch to fill. Results are
+ * delivered in frame order to a {@link Listener} on the prediction thread.
+ *
+ * When the buffer is full, the {@link OverflowPolicy} decides whether the
+ * oldest buffered frame is dropped, which keeps the latency bounded, or
+ * whether the acquisition thread blocks until there is space, which never
+ * loses a frame.
+ *
+ * The end-to-end latency of every frame, from the call to
+ * {@link #push(ImageProcessor)} until its result is delivered, is recorded
+ * in a histogram.
+ *
+ * The predictor should be set up and warmed up for batch sizes of one up to
+ * the maximum batch size beforehand. It is not closed by this class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class StreamingPredictor implements AutoCloseable {
+
+    private final static Logger LOGGER = Logger.getLogger(
+            StreamingPredictor.class.getName());
+
+    /**
+     * The default capacity of the ring buffer, in frames.
+     */
+    public static final int DEFAULT_CAPACITY = 4;
+
+    /**
+     * What to do with a new frame when the ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drops the oldest frame in the buffer to make space.
+         */
+        DROP_OLDEST,
+        /**
+         * Blocks the pushing thread until there is space.
+         */
+        BLOCK
+    }
+
+    /**
+     * Receives the results of a streaming predictor.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the prediction thread when the count of a frame is ready.
+         *
+         * @param frameNumber The number of the frame, starting from 0.
+         * @param result The prediction of the frame.
+         * @param latencyNanos The time since the frame was pushed.
+         */
+        void frameCounted(long frameNumber, PredictionResult result,
+                          long latencyNanos);
+
+        /**
+         * Called on the pushing thread when a frame is dropped.
+         *
+         * @param frameNumber The number of the dropped frame.
+         */
+        default void frameDropped(long frameNumber) {
+        }
+
+        /**
+         * Called on the prediction thread when a frame cannot be predicted.
+         *
+         * @param frameNumber The number of the frame.
+         * @param ex The cause of the failure.
+         */
+        default void frameFailed(long frameNumber, Exception ex) {
+        }
+    }
+
+    /**
+     * How long the prediction thread waits for a frame before it checks
+     * whether it has been closed.
+     */
+    private static final long POLL_MILLIS = 10;
+
+    private final Predictor predictor;
+
+    private final ArrayBlockingQueue<Frame> buffer;
+
+    private final OverflowPolicy policy;
+
+    private final Listener listener;
+
+    private volatile int maxBatchSize = 1;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong nextFrame = new AtomicLong();
+
+    private final AtomicLong countedFrames = new AtomicLong();
+
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    private final AtomicLong failedFrames = new AtomicLong();
+
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a streaming predictor. Call {@link #start()} before pushing
+     * frames.
+     *
+     * @param predictor A predictor that has been set up.
+     * @param capacity The capacity of the ring buffer, in frames.
+     * @param policy What to do with new frames when the buffer is full.
+     * @param listener Receives the results.
+     */
+    public StreamingPredictor(Predictor predictor, int capacity,
+                              OverflowPolicy policy, Listener listener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "The capacity must be at least 1.");
+        }
+        this.predictor = predictor;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.listener = listener;
+        this.thread = new Thread(this::predictFrames, "defcon-streaming");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the prediction thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Sets the largest number of waiting frames that are predicted at once.
+     *
+     * @param maxBatchSize The maximum batch size.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size must be at least 1.");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Pushes a frame into the ring buffer.
+     *
+     * The frame is not copied and must not be modified until its result has
+     * been delivered or it has been dropped. Its ROI is used like in
+     * {@link Predictor#predictResult(ImageProcessor)}.
+     *
+     * @param ip The frame.
+     * @return The number of the frame.
+     * @throws InterruptedException If the thread is interrupted while it
+     *                              waits for space in the buffer.
+     * @throws IllegalStateException If the streaming predictor is closed.
+     */
+    public long push(ImageProcessor ip) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException(
+                    "The streaming predictor is closed.");
+        }
+        // Frame numbers are taken under the lock so that the buffer stays
+        // ordered when several threads push.
+        Frame frame;
+        synchronized (buffer) {
+            frame = new Frame(nextFrame.getAndIncrement(), ip);
+            if (policy == OverflowPolicy.BLOCK) {
+                buffer.put(frame);
+            } else {
+                while (!buffer.offer(frame)) {
+                    Frame oldest = buffer.poll();
+                    if (oldest != null) {
+                        droppedFrames.incrementAndGet();
+                        notifyDropped(oldest.number);
+                    }
+                }
+            }
+        }
+        return frame.number;
+    }
+
+    /**
+     * The loop of the prediction thread.
+     */
+    private void predictFrames() {
+        List<Frame> batch = new ArrayList<>();
+        List<ImageProcessor> ips = new ArrayList<>();
+        while (true) {
+            Frame first;
+            try {
+                first = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (first == null) {
+                if (closed) {
+                    return;
+                }
+                continue;
+            }
+
+            batch.add(first);
+            buffer.drainTo(batch, maxBatchSize - 1);
+            for (Frame frame : batch) {
+                ips.add(frame.ip);
+            }
+            predictBatch(batch, ips);
+            batch.clear();
+            ips.clear();
+        }
+    }
+
+    /**
+     * Predicts a batch of frames and delivers the results.
+     */
+    private void predictBatch(List<Frame> batch, List<ImageProcessor> ips) {
+        List<PredictionResult> results;
+        try {
+            results = ips.size() == 1
+                    ? Collections.singletonList(
+                            predictor.predictResult(ips.get(0)))
+                    : predictor.predictBatchResults(ips, ips.size());
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "Cannot predict the frames of the "
+                       + "stream.", ex);
+            for (Frame frame : batch) {
+                failedFrames.incrementAndGet();
+                notifyFailed(frame.number, ex);
+            }
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Frame frame = batch.get(i);
+            long frameLatency = System.nanoTime() - frame.pushNanos;
+            latency.record(frameLatency);
+            countedFrames.incrementAndGet();
+            notifyCounted(frame.number, results.get(i), frameLatency);
+        }
+    }
+
+    /**
+     * Passes a count to the listener.
+     *
+     * Errors of the listener are logged so that they never stop the
+     * prediction thread, which would block the pushing thread forever once
+     * the buffer is full.
+     */
+    private void notifyCounted(long frameNumber, PredictionResult result,
+                               long latencyNanos) {
+        try {
+            listener.frameCounted(frameNumber, result, latencyNanos);
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "The listener failed on frame "
+                       + frameNumber, ex);
+        }
+    }
+
+    /**
+     * Reports a failed frame to the listener, logging its errors.
+     */
+    private void notifyFailed(long frameNumber, Exception cause) {
+        try {
+            listener.frameFailed(frameNumber, cause);
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "The listener failed on frame "
+                       + frameNumber, ex);
+        }
+    }
+
+    /**
+     * Reports a dropped frame to the listener, logging its errors.
+     */
+    private void notifyDropped(long frameNumber) {
+        try {
+            listener.frameDropped(frameNumber);
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "The listener failed on frame "
+                       + frameNumber, ex);
+        }
+    }
+
+    /**
+     * Stops accepting frames, predicts the frames that are still buffered
+     * and stops the prediction thread.
+     *
+     * If the calling thread is interrupted while it waits for the buffered
+     * frames, it returns early with its interrupt flag set; the remaining
+     * frames are still predicted in the background.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        LOGGER.log(Level.INFO, toString());
+    }
+
+    /**
+     * Returns the end-to-end latencies of the counted frames.
+     *
+     * @return The latencies in nanoseconds.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the number of frames whose count was delivered.
+     *
+     * @return The number of counted frames.
+     */
+    public long getCountedFrames() {
+        return countedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames that were dropped because the buffer was
+     * full.
+     *
+     * @return The number of dropped frames.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames that could not be predicted.
+     *
+     * @return The number of failed frames.
+     */
+    public long getFailedFrames() {
+        return failedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames that wait in the buffer.
+     *
+     * @return The number of buffered frames.
+     */
+    public int getBufferedFrames() {
+        return buffer.size();
+    }
+
+    /**
+     * Returns a human-readable summary of the stream.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "DEFCoN stream: %d frames counted, "
+                + "%d dropped, %d failed; latency p50 %.2f ms, p99 %.2f ms, "
+                + "max %.2f ms", getCountedFrames(), getDroppedFrames(),
+                getFailedFrames(), latency.getPercentile(50) / 1e6,
+                latency.getPercentile(99) / 1e6, latency.getMax() / 1e6);
+    }
+
+    /**
+     * A pushed frame and the time when it was pushed.
+     */
+    private static final class Frame {
+
+        final long number;
+
+        final ImageProcessor ip;
+
+        final long pushNanos = System.nanoTime();
+
+        Frame(long number, ImageProcessor ip) {
+            this.number = number;
+            this.ip = ip;
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only virtual stack of the density maps in a store written by
+ * {@link DensityMapWriter}.
+ *
+ * Only the chunk offsets are kept in memory. Each density map is read from
+ * disk, and decompressed if needed, when ImageJ requests its slice, so that
+ * stacks of any length can be browsed with a constant heap use.
+ *
+ * @author Kyle M. Douglass
+ */
+public class DensityMapStack extends VirtualStack {
+
+    private final File dataFile;
+
+    private final int size;
+
+    private final boolean compressed;
+
+    /**
+     * The offset of every chunk, followed by the end of the last chunk.
+     */
+    private final long[] offsets;
+
+    private DensityMapStack(File directory, int width, int height, int size,
+                            boolean compressed, long[] offsets) {
+        super(width, height, null, directory.getPath() + File.separator);
+        this.dataFile = new File(directory, DensityMapWriter.DATA_FILE);
+        this.size = size;
+        this.compressed = compressed;
+        this.offsets = offsets;
+        setBitDepth(32);
+    }
+
+    /**
+     * Opens a store of density maps.
+     *
+     * @param directory The directory of the store.
+     * @return The density maps as a virtual stack.
+     * @throws IOException If the store is missing, incomplete or corrupt.
+     */
+    public static DensityMapStack open(File directory) throws IOException {
+        Properties attributes = new Properties();
+        try (InputStream in = new FileInputStream(
+                new File(directory, DensityMapWriter.ATTRIBUTES_FILE))) {
+            attributes.load(in);
+        }
+
+        int width;
+        int height;
+        int size;
+        try {
+            width = Integer.parseInt(
+                    attributes.getProperty(DensityMapWriter.WIDTH));
+            height = Integer.parseInt(
+                    attributes.getProperty(DensityMapWriter.HEIGHT));
+            size = Integer.parseInt(
+                    attributes.getProperty(DensityMapWriter.SIZE));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid density map attributes in "
+                                  + directory, ex);
+        }
+        String compression = attributes.getProperty(
+                DensityMapWriter.COMPRESSION, DensityMapWriter.RAW);
+        if (!compression.equals(DensityMapWriter.RAW)
+                && !compression.equals(DensityMapWriter.DEFLATE)) {
+            throw new IOException("Unsupported compression: " + compression);
+        }
+
+        long[] offsets = new long[size + 1];
+        ByteBuffer buffer = ByteBuffer.allocate(8 * offsets.length)
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel index = FileChannel.open(
+                new File(directory, DensityMapWriter.INDEX_FILE).toPath(),
+                StandardOpenOption.READ)) {
+            readFully(index, buffer, 0);
+        }
+        buffer.flip();
+        buffer.asLongBuffer().get(offsets);
+
+        return new DensityMapStack(directory, width, height, size,
+                                   compression.equals(DensityMapWriter.DEFLATE),
+                                   offsets);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of density map file.");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Reads the density map of a slice.
+     *
+     * @param n The 1-based slice index.
+     * @return The density map.
+     * @throws UncheckedIOException If the density map cannot be read.
+     */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        if (n < 1 || n > size) {
+            throw new IllegalArgumentException("Slice index out of range: " + n);
+        }
+        int width = getWidth();
+        int height = getHeight();
+        float[] pixels = new float[width * height];
+
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(
+                    (int) (offsets[n] - offsets[n - 1]));
+            try (FileChannel data = FileChannel.open(dataFile.toPath(),
+                                                     StandardOpenOption.READ)) {
+                readFully(data, chunk, offsets[n - 1]);
+            }
+
+            ByteBuffer raw = chunk;
+            if (compressed) {
+                raw = ByteBuffer.allocate(4 * pixels.length);
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(chunk.array());
+                    int length = inflater.inflate(raw.array());
+                    if (length != raw.capacity()) {
+                        throw new IOException(
+                                "Corrupt density map chunk: " + n);
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException(
+                            "Corrupt density map chunk: " + n, ex);
+                } finally {
+                    inflater.end();
+                }
+            }
+            raw.clear();
+            raw.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(pixels);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        return new FloatProcessor(width, height, pixels);
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    /**
+     * Does nothing: the store is read-only.
+     */
+    @Override
+    public void setPixels(Object pixels, int n) {
+    }
+
+    /**
+     * Not supported: the store is read-only.
+     */
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException(
+                "Density map stacks are read-only.");
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return 32;
+    }
+
+}
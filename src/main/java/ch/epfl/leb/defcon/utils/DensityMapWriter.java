@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.zip.Deflater;
+
+/**
+ * Streams density maps to a chunked layout on disk as they are produced.
+ *
+ * A store is a directory with three files:
+ *
+ * <ul>
+ * <li>{@value #DATA_FILE}: one chunk per frame, either the raw 32-bit float
+ * pixels in little-endian row-major order or the same bytes compressed with
+ * the deflate algorithm;</li>
+ * <li>{@value #INDEX_FILE}: the byte offset of every chunk in the data file
+ * followed by the end of the last chunk, as little-endian 64-bit
+ * integers;</li>
+ * <li>{@value #ATTRIBUTES_FILE}: the dimensions, the number of frames and the
+ * compression of the store, written when the writer is closed.</li>
+ * </ul>
+ *
+ * Only one frame is held in memory at a time, so the heap use of the writer
+ * does not depend on the number of frames. Stores are opened for reading by
+ * {@link DensityMapStack}.
+ *
+ * @author Kyle M. Douglass
+ */
+public class DensityMapWriter implements AutoCloseable {
+
+    /**
+     * The name of the file that holds the chunks.
+     */
+    public static final String DATA_FILE = "density.bin";
+
+    /**
+     * The name of the file that holds the chunk offsets.
+     */
+    public static final String INDEX_FILE = "density.idx";
+
+    /**
+     * The name of the file that holds the attributes of the store.
+     */
+    public static final String ATTRIBUTES_FILE = "attributes.properties";
+
+    static final String WIDTH = "width";
+
+    static final String HEIGHT = "height";
+
+    static final String SIZE = "size";
+
+    static final String COMPRESSION = "compression";
+
+    static final String DATA_TYPE = "dataType";
+
+    static final String BYTE_ORDER = "byteOrder";
+
+    static final String DEFLATE = "deflate";
+
+    static final String RAW = "raw";
+
+    private final File directory;
+
+    private final int width;
+
+    private final int height;
+
+    private final FileChannel data;
+
+    private final FileChannel index;
+
+    /**
+     * Holds the raw bytes of one frame.
+     */
+    private final ByteBuffer frameBuffer;
+
+    /**
+     * Holds one offset of the index.
+     */
+    private final ByteBuffer offsetBuffer =
+            ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Compresses the chunks, or null if they are stored raw.
+     */
+    private final Deflater deflater;
+
+    /**
+     * Holds the compressed bytes of one frame.
+     */
+    private final byte[] compressed;
+
+    private long position = 0;
+
+    private int size = 0;
+
+    private boolean isClosed = false;
+
+    /**
+     * Creates a new store, replacing any store in the same directory.
+     *
+     * @param directory The directory of the store. It is created if needed.
+     * @param width The width of the density maps.
+     * @param height The height of the density maps.
+     * @param compress Whether to compress the chunks.
+     * @throws IOException If the files of the store cannot be created.
+     */
+    public DensityMapWriter(File directory, int width, int height,
+                            boolean compress) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException(
+                    "The density maps must have at least one pixel.");
+        }
+        Files.createDirectories(directory.toPath());
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        this.frameBuffer = ByteBuffer.allocate(4 * width * height)
+                                     .order(ByteOrder.LITTLE_ENDIAN);
+
+        if (compress) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            compressed = new byte[frameBuffer.capacity() + 64];
+        } else {
+            deflater = null;
+            compressed = null;
+        }
+
+        data = open(DATA_FILE);
+        try {
+            index = open(INDEX_FILE);
+        } catch (IOException ex) {
+            data.close();
+            throw ex;
+        }
+        writeOffset();
+    }
+
+    /**
+     * Opens a file of the store for writing, truncating it.
+     */
+    private FileChannel open(String name) throws IOException {
+        return FileChannel.open(new File(directory, name).toPath(),
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Appends a density map to the store.
+     *
+     * @param densityMap The density map of the next frame.
+     * @throws IOException If the density map cannot be written.
+     */
+    public synchronized void append(FloatProcessor densityMap)
+            throws IOException {
+        if (isClosed) {
+            throw new IllegalStateException("The writer is closed.");
+        }
+        if (densityMap.getWidth() != width
+                || densityMap.getHeight() != height) {
+            throw new IllegalArgumentException(
+                    "The density map must be " + width + "x" + height + ".");
+        }
+
+        frameBuffer.clear();
+        frameBuffer.asFloatBuffer().put((float[]) densityMap.getPixels());
+
+        if (deflater == null) {
+            writeFully(data, frameBuffer);
+            position += frameBuffer.capacity();
+        } else {
+            deflater.reset();
+            deflater.setInput(frameBuffer.array());
+            deflater.finish();
+            while (!deflater.finished()) {
+                int length = deflater.deflate(compressed);
+                writeFully(data, ByteBuffer.wrap(compressed, 0, length));
+                position += length;
+            }
+        }
+
+        size++;
+        writeOffset();
+    }
+
+    /**
+     * Appends the end of the last chunk to the index.
+     */
+    private void writeOffset() throws IOException {
+        offsetBuffer.clear();
+        offsetBuffer.putLong(position).flip();
+        writeFully(index, offsetBuffer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Returns the directory of the store.
+     *
+     * @return The directory of the store.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the number of density maps written so far.
+     *
+     * @return The number of density maps in the store.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Writes the attributes of the store and closes its files.
+     *
+     * @throws IOException If the attributes cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            data.close();
+        } finally {
+            index.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        Properties attributes = new Properties();
+        attributes.setProperty(WIDTH, Integer.toString(width));
+        attributes.setProperty(HEIGHT, Integer.toString(height));
+        attributes.setProperty(SIZE, Integer.toString(size));
+        attributes.setProperty(COMPRESSION, deflater == null ? RAW : DEFLATE);
+        attributes.setProperty(DATA_TYPE, "float32");
+        attributes.setProperty(BYTE_ORDER, "littleEndian");
+        try (OutputStream out = new FileOutputStream(
+                new File(directory, ATTRIBUTES_FILE))) {
+            attributes.store(out, "DEFCoN density maps");
+        }
+    }
+
+}
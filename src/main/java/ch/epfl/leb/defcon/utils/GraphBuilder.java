@@ -44,13 +44,14 @@ public class GraphBuilder {
      
      */
     public static <T> Output<T> constant(Graph g, String name, Object value, Class<T> type) {
-        Tensor<T> t = Tensor.create(value, type);
-        return g.opBuilder("Const", name)
-                .setAttr("dtype", DataType.fromClass(type))
-                .setAttr("value", t)
-                .build()
-                .output(0);
-        
+        // The graph keeps its own copy of the value.
+        try (Tensor<T> t = Tensor.create(value, type)) {
+            return g.opBuilder("Const", name)
+                    .setAttr("dtype", DataType.fromClass(type))
+                    .setAttr("value", t)
+                    .build()
+                    .output(0);
+        }
     }
     
     /**
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with a bounded relative error.
+ *
+ * Durations are recorded in nanoseconds into buckets whose width doubles
+ * every octave, with 32 buckets per octave. Percentiles are therefore exact
+ * to within about 3% of their value over the whole range of a long, while the
+ * histogram has a fixed size of a few kilobytes. Recording is lock-free and
+ * may be done from several threads at once.
+ *
+ * @author Kyle M. Douglass
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of a value that select a bucket within an octave.
+     */
+    private static final int SUB_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds. Negative values are recorded
+     *              as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long previous = max.get();
+        while (value > previous && !max.compareAndSet(previous, value)) {
+            previous = max.get();
+        }
+    }
+
+    /**
+     * Returns the bucket of a non-negative value.
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the middle of the range of values of a bucket.
+     */
+    static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     *
+     * @return The number of durations.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean of the recorded durations.
+     *
+     * @return The mean duration in nanoseconds, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Returns the longest recorded duration.
+     *
+     * @return The longest duration in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns a percentile of the recorded durations.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The duration in nanoseconds below which the given percentage of
+     *         the durations lie, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "The percentile must be between 0 and 100.");
+        }
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long cumulative = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            cumulative += buckets.get(i);
+            if (cumulative >= rank) {
+                return Math.min(valueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Discards all the recorded durations.
+     *
+     * Durations that are recorded during a reset may be partially discarded.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+}
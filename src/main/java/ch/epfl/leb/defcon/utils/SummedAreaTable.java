@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import ij.process.FloatProcessor;
+
+/**
+ * A summed-area table (integral image) of a density map.
+ *
+ * The table is built in a single pass over the density map. Afterwards, the
+ * sum of the density map over any rectangle is obtained from four table
+ * lookups, so local count maps can be computed in O(width * height) for any
+ * box size, and several box sizes can be evaluated from the same table.
+ *
+ * Box positions refer to the top-left corner of the box. Only boxes that lie
+ * entirely inside the density map are considered, which makes the local
+ * count map boxSize - 1 pixels smaller than the density map in each
+ * dimension.
+ *
+ * @author Kyle M. Douglass
+ * @see <a href="https://en.wikipedia.org/wiki/Summed-area_table">Summed-area table</a>
+ */
+public class SummedAreaTable {
+
+    /**
+     * The width of the density map.
+     */
+    private final int width;
+
+    /**
+     * The height of the density map.
+     */
+    private final int height;
+
+    /**
+     * The cumulative sums, with a leading row and column of zeros.
+     *
+     * table[y * (width + 1) + x] is the sum of all pixels above and to the left
+     * of (x, y), exclusive.
+     */
+    private final double[] table;
+
+    /**
+     * Builds the summed-area table of a density map.
+     *
+     * @param densityMap The density map.
+     */
+    public SummedAreaTable(FloatProcessor densityMap) {
+        width = densityMap.getWidth();
+        height = densityMap.getHeight();
+        table = new double[(width + 1) * (height + 1)];
+
+        float[] pixels = (float[]) densityMap.getPixels();
+        int stride = width + 1;
+        for (int y = 0; y < height; y++) {
+            double rowSum = 0.0;
+            int row = y * width;
+            int above = y * stride;
+            int current = above + stride;
+            for (int x = 0; x < width; x++) {
+                rowSum += pixels[row + x];
+                table[current + x + 1] = table[above + x + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * Returns the width of the density map.
+     *
+     * @return The width of the density map.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the density map.
+     *
+     * @return The height of the density map.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the sum of the density map over its full area.
+     *
+     * @return The total count.
+     */
+    public double total() {
+        return table[table.length - 1];
+    }
+
+    /**
+     * Returns the sum of the density map over a rectangle.
+     *
+     * @param x The horizontal position of the top-left corner.
+     * @param y The vertical position of the top-left corner.
+     * @param boxWidth The width of the rectangle.
+     * @param boxHeight The height of the rectangle.
+     * @return The sum of the pixels inside the rectangle.
+     */
+    public double boxSum(int x, int y, int boxWidth, int boxHeight) {
+        int stride = width + 1;
+        int top = y * stride;
+        int bottom = (y + boxHeight) * stride;
+        return table[bottom + x + boxWidth] - table[bottom + x]
+               - table[top + x + boxWidth] + table[top + x];
+    }
+
+    /**
+     * Returns the sum of the density map over a square box.
+     *
+     * @param x The horizontal position of the top-left corner.
+     * @param y The vertical position of the top-left corner.
+     * @param boxSize The width of the square box.
+     * @return The sum of the pixels inside the box.
+     */
+    public double boxSum(int x, int y, int boxSize) {
+        return boxSum(x, y, boxSize, boxSize);
+    }
+
+    /**
+     * Finds the square box with the highest local count.
+     *
+     * No local count map is created.
+     *
+     * @param boxSize The width of the square box.
+     * @return The maximum local count and the position of its box.
+     */
+    public Maximum findMaximum(int boxSize) {
+        checkBoxSize(boxSize);
+        double maxValue = Double.NEGATIVE_INFINITY;
+        int maxX = 0;
+        int maxY = 0;
+        for (int y = 0; y <= height - boxSize; y++) {
+            for (int x = 0; x <= width - boxSize; x++) {
+                double value = boxSum(x, y, boxSize);
+                if (value > maxValue) {
+                    maxValue = value;
+                    maxX = x;
+                    maxY = y;
+                }
+            }
+        }
+        return new Maximum(maxValue, maxX, maxY);
+    }
+
+    /**
+     * Creates the local count map for a given box size.
+     *
+     * Pixel (x, y) of the map is the sum of the density map over the box whose
+     * top-left corner is (x, y).
+     *
+     * @param boxSize The width of the square box.
+     * @return The local count map.
+     */
+    public FloatProcessor localCountMap(int boxSize) {
+        checkBoxSize(boxSize);
+        int mapWidth = width - boxSize + 1;
+        int mapHeight = height - boxSize + 1;
+        float[] pixels = new float[mapWidth * mapHeight];
+        for (int y = 0; y < mapHeight; y++) {
+            for (int x = 0; x < mapWidth; x++) {
+                pixels[y * mapWidth + x] = (float) boxSum(x, y, boxSize);
+            }
+        }
+
+        FloatProcessor map = new FloatProcessor(mapWidth, mapHeight, pixels);
+        map.resetMinAndMax();
+        return map;
+    }
+
+    /**
+     * Raises an exception if a box does not fit inside the density map.
+     */
+    private void checkBoxSize(int boxSize) {
+        if (boxSize < 1 || boxSize > width || boxSize > height) {
+            throw new IllegalArgumentException("The box size must be between "
+                    + "1 and the smallest dimension of the density map.");
+        }
+    }
+
+    /**
+     * The maximum local count and the position of its box.
+     */
+    public static final class Maximum {
+
+        private final double value;
+
+        private final int x;
+
+        private final int y;
+
+        Maximum(double value, int x, int y) {
+            this.value = value;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Returns the maximum local count.
+         *
+         * @return The maximum local count.
+         */
+        public double getValue() {
+            return value;
+        }
+
+        /**
+         * Returns the horizontal position of the top-left corner of the box.
+         *
+         * @return The horizontal position of the box.
+         */
+        public int getX() {
+            return x;
+        }
+
+        /**
+         * Returns the vertical position of the top-left corner of the box.
+         *
+         * @return The vertical position of the box.
+         */
+        public int getY() {
+            return y;
+        }
+    }
+
+}
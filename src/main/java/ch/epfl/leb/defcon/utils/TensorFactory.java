@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import org.tensorflow.Tensor;
+
+/**
+ * Creates the TensorFlow tensors that are fed to the DEFCoN networks.
+ *
+ * Pixels are written directly into a float buffer with the layout of the
+ * network's input layer, i.e. (batch, height, width, channel), so that no
+ * intermediate TensorFlow graph or session is required to reshape the data.
+ * Only the pixels inside the region of interest are read, straight from the
+ * pixel array of each image, so images never need to be cropped beforehand.
+ * 8 and 16-bit pixels are read as unsigned values and 32-bit pixels are
+ * copied as they are.
+ *
+ * Every tensor that is returned by this class owns native memory that is not
+ * managed by the garbage collector. It must be released by calling
+ * {@code close()} on it, preferably in a try-with-resources statement.
+ *
+ * @author Kyle M. Douglass
+ * @see <a href="https://www.tensorflow.org/api_docs/java/reference/org/tensorflow/Tensor">Tensor | TensorFlow</a>
+ */
+public class TensorFactory {
+
+    /**
+     * The direct staging buffer of each thread. Tensor.create() copies the
+     * data into the memory of the tensor, so the buffer can be reused as soon
+     * as it returns.
+     */
+    private static final ThreadLocal<FloatBuffer> STAGING = new ThreadLocal<>();
+
+    /**
+     * Returns the staging buffer of the calling thread, growing it if needed,
+     * with its limit set to the requested length.
+     */
+    private static FloatBuffer stagingBuffer(int length) {
+        FloatBuffer data = STAGING.get();
+        if (data == null || data.capacity() < length) {
+            data = ByteBuffer.allocateDirect(length * Float.BYTES)
+                             .order(ByteOrder.nativeOrder())
+                             .asFloatBuffer();
+            STAGING.set(data);
+        }
+        data.clear();
+        data.limit(length);
+        return data;
+    }
+
+    /**
+     * Creates a (1, height, width, 1) float tensor from the ROI of a 2D image.
+     *
+     * The original image is preserved.
+     *
+     * @param ip The image to convert.
+     * @return A tensor representing the data in the ROI of the image. It must
+     *         be closed by the caller.
+     */
+    public static Tensor<Float> imageToTensor(final ImageProcessor ip) {
+        return imagesToTensor(Collections.singletonList(ip));
+    }
+
+    /**
+     * Creates a (n, height, width, 1) float tensor from the ROIs of n 2D
+     * images.
+     *
+     * The pixels inside the ROI of each image are read directly from its
+     * pixel array, so the images do not need to be cropped first. An image
+     * without a ROI is read as a whole. All the ROIs must have the same size.
+     * The original images are preserved.
+     *
+     * @param ips The images to convert, in batch order.
+     * @return A tensor representing the data in the images. It must be closed
+     *         by the caller.
+     * @throws IllegalArgumentException If the list is empty or the ROIs do
+     *         not all have the same size.
+     */
+    public static Tensor<Float> imagesToTensor(final List<? extends ImageProcessor> ips) {
+        if (ips.isEmpty()) {
+            throw new IllegalArgumentException("At least one image is required.");
+        }
+        Rectangle first = ips.get(0).getRoi();
+        int numPixels = first.width * first.height;
+
+        FloatBuffer data = stagingBuffer(ips.size() * numPixels);
+        for (int b = 0; b < ips.size(); b++) {
+            ImageProcessor ip = ips.get(b);
+            Rectangle roi = ip.getRoi();
+            if (roi.width != first.width || roi.height != first.height) {
+                throw new IllegalArgumentException(
+                        "All images in a batch must have the same dimensions.");
+            }
+            readRegion(ip, roi, data, b * numPixels, 0f, 1f);
+        }
+
+        return Tensor.create(
+                new long[] {ips.size(), first.height, first.width, 1}, data);
+    }
+
+    /**
+     * Creates a (n, height, width, 1) float tensor from n regions of one 2D
+     * image, with every pixel value v replaced by (v - offset) * scale.
+     *
+     * The regions are read directly from the pixel array of the image; its
+     * ROI is neither used nor changed, so that several threads may read
+     * regions of the same image at once.
+     *
+     * @param ip The image to read.
+     * @param regions The regions to convert, in batch order. They must lie
+     *                inside the image and all have the same size.
+     * @param offset The value that is subtracted from every pixel.
+     * @param scale The factor by which every pixel is then multiplied.
+     * @return A tensor representing the data in the regions. It must be
+     *         closed by the caller.
+     * @throws IllegalArgumentException If the list is empty or the regions do
+     *         not all have the same size.
+     */
+    public static Tensor<Float> regionsToTensor(final ImageProcessor ip,
+                                                final List<Rectangle> regions,
+                                                float offset, float scale) {
+        if (regions.isEmpty()) {
+            throw new IllegalArgumentException("At least one region is required.");
+        }
+        Rectangle first = regions.get(0);
+        int numPixels = first.width * first.height;
+
+        FloatBuffer data = stagingBuffer(regions.size() * numPixels);
+        for (int b = 0; b < regions.size(); b++) {
+            Rectangle region = regions.get(b);
+            if (region.width != first.width || region.height != first.height) {
+                throw new IllegalArgumentException(
+                        "All regions in a batch must have the same size.");
+            }
+            readRegion(ip, region, data, b * numPixels, offset, scale);
+        }
+
+        return Tensor.create(
+                new long[] {regions.size(), first.height, first.width, 1},
+                data);
+    }
+
+    /**
+     * Copies a region of an image into a buffer in row-major order, replacing
+     * every pixel value v by (v - offset) * scale.
+     *
+     * The pixel type is resolved once per region and each type has its own
+     * loop over the raw pixel array, so that no pixel is boxed, widened
+     * through an intermediate image or read through a virtual call. 8 and
+     * 16-bit pixels are unsigned.
+     */
+    private static void readRegion(ImageProcessor ip, Rectangle region,
+                                   FloatBuffer data, int position, float offset,
+                                   float scale) {
+        Object pixels = ip.getPixels();
+        int width = ip.getWidth();
+        if (pixels instanceof byte[]) {
+            readBytes((byte[]) pixels, width, region, data, position, offset,
+                      scale);
+        } else if (pixels instanceof short[]) {
+            readShorts((short[]) pixels, width, region, data, position, offset,
+                       scale);
+        } else if (pixels instanceof float[]) {
+            readFloats((float[]) pixels, width, region, data, position, offset,
+                       scale);
+        } else {
+            for (int y = region.y; y < region.y + region.height; y++) {
+                for (int x = region.x; x < region.x + region.width; x++) {
+                    data.put(position++, (ip.getf(x, y) - offset) * scale);
+                }
+            }
+        }
+    }
+
+    private static void readBytes(byte[] pixels, int width, Rectangle region,
+                                  FloatBuffer data, int position, float offset,
+                                  float scale) {
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int end = y * width + region.x + region.width;
+            for (int i = y * width + region.x; i < end; i++) {
+                data.put(position++, ((pixels[i] & 0xff) - offset) * scale);
+            }
+        }
+    }
+
+    private static void readShorts(short[] pixels, int width, Rectangle region,
+                                   FloatBuffer data, int position, float offset,
+                                   float scale) {
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int end = y * width + region.x + region.width;
+            for (int i = y * width + region.x; i < end; i++) {
+                data.put(position++, ((pixels[i] & 0xffff) - offset) * scale);
+            }
+        }
+    }
+
+    private static void readFloats(float[] pixels, int width, Rectangle region,
+                                   FloatBuffer data, int position, float offset,
+                                   float scale) {
+        boolean identity = offset == 0f && scale == 1f;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            int start = y * width + region.x;
+            if (identity) {
+                // Whole rows are copied in bulk.
+                data.position(position);
+                data.put(pixels, start, region.width);
+                position += region.width;
+            } else {
+                for (int i = start; i < start + region.width; i++) {
+                    data.put(position++, (pixels[i] - offset) * scale);
+                }
+            }
+        }
+        data.position(0);
+    }
+
+}
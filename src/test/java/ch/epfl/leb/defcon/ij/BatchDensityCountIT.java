@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.ij;
+
+import ch.epfl.leb.defcon.utils.DensityMapStack;
+
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the BatchDensityCount class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class BatchDensityCountIT {
+
+    /**
+     * The path to the test resources directory.
+     */
+    private final File RESOURCES_DIR = new File("src/test/resources");
+
+    /**
+     * Stack of test images.
+     */
+    private final File TEST_STACK = new File(RESOURCES_DIR, "test_data.tif");
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File(RESOURCES_DIR, "tf_density_count");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test of run method, of class BatchDensityCount.
+     *
+     * Stacks found by a glob are counted in parallel, and an unreadable stack
+     * is reported without stopping the others.
+     */
+    @Test
+    public void testRun() throws Exception {
+        System.out.println("testRun");
+        File input = folder.newFolder("input");
+        for (String name : Arrays.asList("a.tif", "b.tif", "c.tif")) {
+            Files.copy(TEST_STACK.toPath(), new File(input, name).toPath());
+        }
+        Files.write(new File(input, "broken.tif").toPath(), new byte[16]);
+        Files.write(new File(input, "notes.txt").toPath(), new byte[16]);
+
+        List<File> stacks = BatchDensityCount.findStacks(
+                new File(input, "*.tif").getPath());
+        assertEquals(4, stacks.size());
+        assertEquals(stacks, BatchDensityCount.findStacks(input.getPath()));
+
+        File output = new File(folder.getRoot(), "output");
+        BatchDensityCount batch = new BatchDensityCount(
+                SAVED_MODEL.getAbsolutePath());
+        batch.setNumWorkers(2);
+        batch.setDensityMapOutput(true, false);
+        ResultsTable summary = batch.run(stacks, output);
+
+        assertEquals(4, summary.size());
+        assertTrue(new File(output, BatchDensityCount.SUMMARY_FILE).isFile());
+        for (int i = 0; i < summary.size(); i++) {
+            String name = stacks.get(i).getName().replace(".tif", "");
+            if (name.equals("broken")) {
+                assertFalse(summary.getStringValue("Error", i).isEmpty());
+                continue;
+            }
+            assertEquals(10, (int) summary.getValue("Frames", i));
+            assertTrue(summary.getValue("Frames per second", i) > 0);
+
+            ResultsTable counts = ResultsTable.open(
+                    new File(output, name + ".csv").getPath());
+            assertEquals(10, counts.size());
+            assertEquals(10, DensityMapStack.open(
+                    new File(output, name + ".density")).getSize());
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.ij;
+
+import ch.epfl.leb.defcon.predictors.HyperstackCounts;
+import ch.epfl.leb.defcon.predictors.internal.DefaultPredictor;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the DensityCount plugin without a user interface.
+ *
+ * @author Kyle M. Douglass
+ */
+public class DensityCountIT {
+
+    /**
+     * The path to the test resources directory.
+     */
+    private final File RESOURCES_DIR = new File("src/test/resources");
+
+    /**
+     * Stack of test images.
+     */
+    private final File TEST_STACK = new File(RESOURCES_DIR, "test_data.tif");
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File(RESOURCES_DIR, "tf_density_count");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The counts of the test stack, predicted without the plugin.
+     */
+    private double[] expected;
+
+    /**
+     * Predicts the counts of the test stack once it is fully loaded.
+     */
+    @Before
+    public void setUp() throws Exception {
+        ImagePlus imp = IJ.openImage(TEST_STACK.getAbsolutePath());
+        DefaultPredictor predictor = new DefaultPredictor();
+        predictor.setup(SAVED_MODEL.getAbsolutePath());
+        expected = predictor.predictBatch(imp.getImageStack(), 1, null);
+        predictor.close();
+    }
+
+    /**
+     * Test of count method, of class DensityCount.
+     *
+     * A stack that is read lazily from disk gives the same counts as the
+     * loaded stack.
+     */
+    @Test
+    public void testCountVirtualStack() throws Exception {
+        System.out.println("testCountVirtualStack");
+        ImagePlus imp = DensityCount.openVirtual(TEST_STACK.getAbsolutePath());
+        assertTrue(imp.getImageStack().isVirtual());
+
+        DensityCount dc = new DensityCount();
+        dc.setNumWorkers(2);
+        dc.setBatchSize(1);
+        dc.setKeepDensityMaps(false);
+        dc.setMetricsColumns(true);
+        dc.setup(SAVED_MODEL.getAbsolutePath(), imp);
+        ResultsTable rt;
+        try {
+            rt = dc.count();
+        } finally {
+            dc.close();
+        }
+
+        assertEquals(expected.length, rt.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], rt.getValue("Exact count", i), 1e-4);
+        }
+        assertEquals(0, dc.getDensityStack().getSize());
+        
+        // The warm-up is excluded from the metrics.
+        int last = rt.size() - 1;
+        assertTrue(rt.columnExists(rt.getColumnIndex("Frames per second")));
+        assertTrue(rt.getValue("Frames per second", last) > 0);
+        assertTrue(rt.getValue("Session p50 (ms)", last) > 0);
+        assertTrue(rt.getValue("Session p99 (ms)", last)
+                   >= rt.getValue("Session p50 (ms)", last));
+        assertTrue(rt.getValue("Tensor memory (MB)", last) > 0);
+    }
+
+    /**
+     * Test of count method, of class DensityCount, with the density maps
+     * streamed to disk.
+     */
+    @Test
+    public void testCountDensityMapOutput() throws Exception {
+        System.out.println("testCountDensityMapOutput");
+        ImagePlus imp = DensityCount.openVirtual(TEST_STACK.getAbsolutePath());
+
+        DensityCount dc = new DensityCount();
+        dc.setDensityMapOutput(folder.getRoot(), true);
+        dc.setup(SAVED_MODEL.getAbsolutePath(), imp);
+        try {
+            dc.count();
+        } finally {
+            dc.close();
+        }
+
+        ImageStack maps = dc.getDensityStack();
+        assertTrue(maps.isVirtual());
+        assertEquals(expected.length, maps.getSize());
+        for (int i = 0; i < expected.length; i++) {
+            float[] pixels = (float[]) maps.getPixels(i + 1);
+            double sum = 0;
+            for (float pixel : pixels) {
+                sum += pixel;
+            }
+            assertEquals(expected[i], sum, 1e-4);
+        }
+    }
+
+    /**
+     * Test of countHyperstack method, of class DensityCount.
+     *
+     * The planes of the test stack are arranged as 2 channels and 5 frames.
+     */
+    @Test
+    public void testCountHyperstack() throws Exception {
+        System.out.println("testCountHyperstack");
+        ImagePlus imp = IJ.openImage(TEST_STACK.getAbsolutePath());
+        imp.setDimensions(2, 1, 5);
+        imp.setOpenAsHyperStack(true);
+        assertTrue(imp.isHyperStack());
+
+        DensityCount dc = new DensityCount();
+        dc.setBatchSize(2);
+        dc.setAxisParallelism(2, 2);
+        dc.setup(SAVED_MODEL.getAbsolutePath(), imp);
+        HyperstackCounts counts;
+        try {
+            counts = dc.countHyperstack();
+        } finally {
+            dc.close();
+        }
+
+        assertArrayEquals(new int[] {1, 2}, counts.getChannels());
+        for (int t = 1; t <= 5; t++) {
+            for (int c = 1; c <= 2; c++) {
+                assertEquals(expected[(t - 1) * 2 + c - 1],
+                             counts.getCount(c, 1, t), 1e-4);
+            }
+        }
+        ResultsTable rt = counts.toResultsTable();
+        assertEquals(5, rt.size());
+        assertEquals(counts.getCount(2, 1, 3), rt.getValue("C2 Z1", 2), 0);
+
+        // Only the selected channels are counted.
+        dc = new DensityCount();
+        dc.setChannels(2);
+        dc.setup(SAVED_MODEL.getAbsolutePath(), imp);
+        try {
+            counts = dc.countHyperstack();
+        } finally {
+            dc.close();
+        }
+        assertArrayEquals(new int[] {2}, counts.getChannels());
+        assertArrayEquals(new double[] {expected[1], expected[3], expected[5],
+                                        expected[7], expected[9]},
+                          counts.getTimeSeries(2, 1), 1e-4);
+    }
+
+    /**
+     * Test of isCountedPerPlane method, of class DensityCount.
+     *
+     * A hyperstack with only a time axis is counted like a stack and keeps
+     * its density maps, unless channels are selected.
+     */
+    @Test
+    public void testTimeSeriesHyperstack() throws Exception {
+        System.out.println("testTimeSeriesHyperstack");
+        // ImageJ only reports a time series as a hyperstack once it is
+        // displayed in a hyperstack window.
+        ImageStack stack = IJ.openImage(TEST_STACK.getAbsolutePath())
+                             .getImageStack();
+        ImagePlus imp = new ImagePlus("Time series", stack) {
+            @Override
+            public boolean isHyperStack() {
+                return true;
+            }
+        };
+        imp.setDimensions(1, 1, expected.length);
+
+        DensityCount dc = new DensityCount();
+        dc.setup(SAVED_MODEL.getAbsolutePath(), imp);
+        ResultsTable rt;
+        try {
+            assertFalse(dc.isCountedPerPlane());
+            rt = dc.count();
+        } finally {
+            dc.close();
+        }
+        assertEquals(expected.length, rt.size());
+        assertEquals(expected.length, dc.getDensityStack().getSize());
+
+        dc = new DensityCount();
+        dc.setChannels(1);
+        dc.setup(SAVED_MODEL.getAbsolutePath(), imp);
+        try {
+            assertTrue(dc.isCountedPerPlane());
+        } finally {
+            dc.close();
+        }
+
+        imp.setDimensions(2, 1, expected.length / 2);
+        dc = new DensityCount();
+        dc.setup(SAVED_MODEL.getAbsolutePath(), imp);
+        try {
+            assertTrue(dc.isCountedPerPlane());
+        } finally {
+            dc.close();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors;
+
+import ij.process.FloatProcessor;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PredictionResult class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class PredictionResultTest {
+
+    /**
+     * Local counts are computed from the density map.
+     */
+    @Test
+    public void testMaximumLocalCount() throws Exception {
+        System.out.println("testMaximumLocalCount");
+        FloatProcessor map = new FloatProcessor(8, 8);
+        map.setf(2, 3, 1.5f);
+        map.setf(3, 3, 0.5f);
+        PredictionResult result = new PredictionResult(2, map);
+        assertEquals(2, result.getMaximumLocalCount(2), 1e-6);
+        assertEquals(7, result.getLocalCountMap(2).getWidth());
+    }
+
+    /**
+     * A result with only a count has no local counts.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testMaximumLocalCountWithoutDensityMap() throws Exception {
+        System.out.println("testMaximumLocalCountWithoutDensityMap");
+        new PredictionResult(2).getMaximumLocalCount(2);
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors;
+
+import org.tensorflow.framework.ConfigProto;
+import org.tensorflow.framework.OptimizerOptions;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the SessionOptions class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class SessionOptionsTest {
+
+    /**
+     * Default options leave every field of the ConfigProto unset.
+     */
+    @Test
+    public void testDefaultConfigProto() throws Exception {
+        System.out.println("testDefaultConfigProto");
+        assertEquals(0, new SessionOptions().toConfigProto().length);
+    }
+
+    /**
+     * Every option is written to the ConfigProto and kept by copies.
+     */
+    @Test
+    public void testConfigProto() throws Exception {
+        System.out.println("testConfigProto");
+        SessionOptions options = new SessionOptions();
+        options.setIntraOpThreads(2);
+        options.setInterOpThreads(3);
+        options.setOptimizerLevel(SessionOptions.OptimizerLevel.L0);
+        options.setAllowGpuMemoryGrowth(true);
+        options.setGpuMemoryFraction(0.5);
+
+        SessionOptions copy = new SessionOptions(options);
+        assertArrayEquals(options.toConfigProto(), copy.toConfigProto());
+
+        ConfigProto config = ConfigProto.parseFrom(copy.toConfigProto());
+        assertEquals(2, config.getIntraOpParallelismThreads());
+        assertEquals(3, config.getInterOpParallelismThreads());
+        assertEquals(OptimizerOptions.Level.L0,
+                     config.getGraphOptions().getOptimizerOptions()
+                           .getOptLevel());
+        assertTrue(config.getGpuOptions().getAllowGrowth());
+        assertEquals(0.5, config.getGpuOptions()
+                                .getPerProcessGpuMemoryFraction(), 0);
+    }
+
+    /**
+     * GPU memory fractions outside of [0, 1] are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidGpuMemoryFraction() throws Exception {
+        System.out.println("testInvalidGpuMemoryFraction");
+        new SessionOptions().setGpuMemoryFraction(1.5);
+    }
+
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the AutoTuner class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class AutoTunerIT {
+
+    /**
+     * The path to the test resources directory.
+     */
+    private final File RESOURCES_DIR = new File("src/test/resources");
+
+    /**
+     * Stack of test images.
+     */
+    private final File TEST_STACK = new File(RESOURCES_DIR, "test_data.tif");
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File(RESOURCES_DIR, "tf_density_count");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test of tune method, of class AutoTuner.
+     *
+     * The calibrated configuration is saved and reused by later tuners.
+     */
+    @Test
+    public void testTune() throws Exception {
+        System.out.println("testTune");
+        ImagePlus imp = IJ.openImage(TEST_STACK.getAbsolutePath());
+        File store = new File(folder.getRoot(), "tuning.properties");
+
+        AutoTuner tuner = new AutoTuner(store);
+        tuner.setCalibrationFrames(imp.getStackSize());
+        tuner.setMaxThreads(2);
+        AutoTuner.Configuration configuration = tuner.tune(
+                SAVED_MODEL.getAbsolutePath(), imp.getImageStack(), null);
+
+        assertTrue(configuration.getBatchSize() >= 1);
+        assertTrue(configuration.getBatchSize() <= imp.getStackSize());
+        assertTrue(configuration.getNumWorkers() >= 1);
+        assertTrue(configuration.getNumWorkers() <= 2);
+        assertTrue(configuration.getIntraOpThreads() >= 1);
+        assertTrue(configuration.getFramesPerSecond() > 0);
+        assertTrue(configuration.getPeakTensorBytes() > 0);
+
+        Properties saved = new Properties();
+        try (InputStream in = new FileInputStream(store)) {
+            saved.load(in);
+        }
+        assertEquals(1, saved.size());
+
+        // A new tuner reads the saved configuration instead of calibrating.
+        AutoTuner reloaded = new AutoTuner(store);
+        assertEquals(configuration, reloaded.tune(
+                SAVED_MODEL.getAbsolutePath(), imp.getImageStack(), null));
+    }
+
+    /**
+     * A configuration survives a round trip through its saved form.
+     */
+    @Test
+    public void testConfigurationFormat() throws Exception {
+        System.out.println("testConfigurationFormat");
+        AutoTuner.Configuration configuration =
+                new AutoTuner.Configuration(4, 2, 3, 123.456, 1 << 20);
+        AutoTuner.Configuration parsed =
+                AutoTuner.Configuration.parse(configuration.format());
+        assertEquals(configuration, parsed);
+        assertEquals(4, parsed.getBatchSize());
+        assertEquals(2, parsed.getNumWorkers());
+        assertEquals(3, parsed.getIntraOpThreads());
+        assertEquals(123.46, parsed.getFramesPerSecond(), 1e-9);
+        assertEquals(1 << 20, parsed.getPeakTensorBytes());
+    }
+
+    /**
+     * Test of tune method, of class AutoTuner, with different modes and
+     * session options.
+     *
+     * Counts without density maps and other session options are calibrated
+     * and saved separately.
+     */
+    @Test
+    public void testTuneKeys() throws Exception {
+        System.out.println("testTuneKeys");
+        ImagePlus imp = IJ.openImage(TEST_STACK.getAbsolutePath());
+        File store = new File(folder.getRoot(), "tuning.properties");
+
+        AutoTuner tuner = new AutoTuner(store);
+        tuner.setCalibrationFrames(4);
+        tuner.setMaxThreads(1);
+        tuner.tune(SAVED_MODEL.getAbsolutePath(), imp.getImageStack(), null);
+        tuner.setCountsOnly(true);
+        tuner.tune(SAVED_MODEL.getAbsolutePath(), imp.getImageStack(), null);
+        SessionOptions options = new SessionOptions();
+        options.setOptimizerLevel(SessionOptions.OptimizerLevel.L0);
+        tuner.setSessionOptions(options);
+        tuner.tune(SAVED_MODEL.getAbsolutePath(), imp.getImageStack(), null);
+
+        // The tuned intra-op threads do not change the key.
+        options = new SessionOptions(options);
+        options.setIntraOpThreads(3);
+        tuner.setSessionOptions(options);
+        tuner.tune(SAVED_MODEL.getAbsolutePath(), imp.getImageStack(), null);
+
+        Properties saved = new Properties();
+        try (InputStream in = new FileInputStream(store)) {
+            saved.load(in);
+        }
+        assertEquals(3, saved.size());
+    }
+
+}
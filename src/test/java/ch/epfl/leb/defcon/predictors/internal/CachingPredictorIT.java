@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.ij.DensityCount;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the CachingPredictor class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class CachingPredictorIT {
+
+    /**
+     * The path to the test resources directory.
+     */
+    private final File RESOURCES_DIR = new File("src/test/resources");
+
+    /**
+     * Stack of test images.
+     */
+    private final File TEST_STACK = new File(RESOURCES_DIR, "test_data.tif");
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File(RESOURCES_DIR, "tf_density_count");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Counts the test stack with a cache.
+     */
+    private ResultsTable count(ResultCache cache, boolean keepDensityMaps)
+            throws Exception {
+        return count(cache, keepDensityMaps, 0);
+    }
+
+    /**
+     * Counts the test stack with a cache, optionally in tiles.
+     */
+    private ResultsTable count(ResultCache cache, boolean keepDensityMaps,
+                               int tileSize) throws Exception {
+        ImagePlus imp = DensityCount.openVirtual(TEST_STACK.getAbsolutePath());
+        DensityCount dc = new DensityCount();
+        dc.setKeepDensityMaps(keepDensityMaps);
+        dc.setTileSize(tileSize);
+        dc.setResultCache(cache);
+        dc.setup(SAVED_MODEL.getAbsolutePath(), imp);
+        ResultsTable rt;
+        try {
+            rt = dc.count();
+            assertEquals(keepDensityMaps ? rt.size() : 0,
+                         dc.getDensityStack().getSize());
+        } finally {
+            dc.close();
+        }
+        return rt;
+    }
+
+    /**
+     * Reprocessing an unchanged stack gives the same counts from the memory
+     * tier, and from the disk tier in a new cache, without new predictions.
+     */
+    @Test
+    public void testReprocess() throws Exception {
+        System.out.println("testReprocess");
+        File directory = folder.newFolder("cache");
+        ResultsTable first;
+        ResultsTable second;
+        try (ResultCache cache = new ResultCache(
+                directory, ResultCache.DEFAULT_MEMORY_BUDGET)) {
+            first = count(cache, true);
+            assertEquals(10, cache.getMisses());
+
+            second = count(cache, true);
+            assertEquals(10, cache.getMemoryHits());
+        }
+
+        ResultsTable third;
+        try (ResultCache cache = new ResultCache(
+                directory, ResultCache.DEFAULT_MEMORY_BUDGET)) {
+            third = count(cache, false);
+            assertEquals(10, cache.getDiskHits());
+            assertEquals(0, cache.getMisses());
+            assertEquals(1.0, cache.getHitRate(), 0);
+        }
+
+        for (int i = 0; i < first.size(); i++) {
+            double expected = first.getValue("Exact count", i);
+            assertEquals(expected, second.getValue("Exact count", i), 0);
+            assertEquals(expected, third.getValue("Exact count", i), 0);
+        }
+    }
+
+    /**
+     * Tiled and whole-frame predictions do not share cached results.
+     */
+    @Test
+    public void testTiledKeys() throws Exception {
+        System.out.println("testTiledKeys");
+        try (ResultCache cache = new ResultCache(
+                folder.newFolder("cache"),
+                ResultCache.DEFAULT_MEMORY_BUDGET)) {
+            count(cache, false);
+            assertEquals(10, cache.getMisses());
+
+            count(cache, false, 16);
+            assertEquals(20, cache.getMisses());
+            assertEquals(0, cache.getDiskHits());
+        }
+    }
+
+}
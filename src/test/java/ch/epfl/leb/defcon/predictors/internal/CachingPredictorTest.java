@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the CachingPredictor class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class CachingPredictorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A predictor without a model that counts the frames it predicts and
+     * returns the sum of their pixels.
+     */
+    private static class CountingPredictor extends DefaultPredictor {
+
+        int predictedFrames = 0;
+
+        @Override
+        public void setup(String pathToModel) {
+        }
+
+        @Override
+        public double[] predictBatch(final List<? extends ImageProcessor> ips,
+                                     int batchSize, ImageStack densityMaps) {
+            assertNull(densityMaps);
+            double[] counts = new double[ips.size()];
+            for (int i = 0; i < counts.length; i++) {
+                for (int j = 0; j < ips.get(i).getPixelCount(); j++) {
+                    counts[i] += ips.get(i).getf(j);
+                }
+            }
+            predictedFrames += ips.size();
+            return counts;
+        }
+    }
+
+    /**
+     * Test of predictBatch method, of class CachingPredictor, with a cache
+     * that only has an in-memory tier.
+     *
+     * Count-only results are cached in memory, so the second pass predicts
+     * no frame.
+     */
+    @Test
+    public void testCountsInMemory() throws Exception {
+        System.out.println("testCountsInMemory");
+        List<ImageProcessor> frames = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ShortProcessor ip = new ShortProcessor(8, 8);
+            ip.set(i, 0, i + 1);
+            frames.add(ip);
+        }
+
+        CountingPredictor counter = new CountingPredictor();
+        ResultCache cache = new ResultCache(ResultCache.DEFAULT_MEMORY_BUDGET);
+        CachingPredictor predictor = new CachingPredictor(counter, cache);
+        predictor.setRequireDensityMaps(false);
+        predictor.setup(folder.getRoot().getAbsolutePath());
+
+        double[] first = predictor.predictBatch(frames, 2, null);
+        assertEquals(5, counter.predictedFrames);
+        double[] second = predictor.predictBatch(frames, 2, null);
+        assertEquals(5, counter.predictedFrames);
+        assertArrayEquals(first, second, 0);
+        assertEquals(5, cache.getMemoryHits());
+        assertEquals(5, cache.getMisses());
+    }
+
+}
@@ -20,11 +20,23 @@ package ch.epfl.leb.defcon.predictors.internal;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.plugin.SubstackMaker;
 import ij.process.ImageProcessor;
 import ij.process.FloatProcessor;
 
+import ch.epfl.leb.defcon.predictors.InputShape;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 import org.junit.Before;
@@ -176,6 +188,110 @@ public class DefaultPredictorIT {
 
     }
 
+    /**
+     * Test of predictBatch method, of class DefaultPredictor.
+     * 
+     * Batched predictions must match frame-by-frame predictions.
+     */
+    @Test
+    public void testPredictBatch() throws Exception {
+        System.out.println("testPredictBatch");
+        ImageStack stack = imp.getImageStack();
+        ImageStack densityMaps = new ImageStack(imp.getWidth(), imp.getHeight());
+        int batchSize = 3;
+        double[] counts = predictor.predictBatch(stack, batchSize, densityMaps);
+        
+        assertEquals(stack.getSize(), counts.length);
+        assertEquals(stack.getSize(), densityMaps.getSize());
+        for (int i = 1; i <= stack.getSize(); i++) {
+            predictor.predict(stack.getProcessor(i));
+            assertEquals(predictor.getCount(), counts[i - 1], 1e-4);
+        }
+        predictor.close();
+    }
+
+    /**
+     * Test of predictBatchResults method, of class DefaultPredictor.
+     *
+     * The density maps are built lazily and must match the counts of a
+     * count-only prediction.
+     */
+    @Test
+    public void testPredictBatchResultsLazy() throws Exception {
+        System.out.println("testPredictBatchResultsLazy");
+        ImageStack stack = imp.getImageStack();
+        List<ImageProcessor> ips = new ArrayList<>();
+        for (int i = 1; i <= stack.getSize(); i++) {
+            ips.add(stack.getProcessor(i));
+        }
+        double[] counts = predictor.predictBatch(ips, 4, null);
+        List<PredictionResult> results = predictor.predictBatchResults(ips, 4);
+
+        assertEquals(ips.size(), results.size());
+        for (int i = 0; i < ips.size(); i++) {
+            PredictionResult result = results.get(i);
+            assertTrue(result.hasDensityMap());
+            assertEquals(counts[i], result.getCount(), 1e-4);
+
+            double sum = 0;
+            for (float pixel : (float[]) result.getDensityMap().getPixels()) {
+                sum += pixel;
+            }
+            assertEquals(counts[i], sum, 1e-4);
+        }
+        assertFalse(new PredictionResult(counts[0]).hasDensityMap());
+        predictor.close();
+    }
+
+    /**
+     * Test of predictResult method, of class DefaultPredictor, with 8 and
+     * 32-bit copies of a 16-bit frame.
+     */
+    @Test
+    public void testPredictResultBitDepths() throws Exception {
+        System.out.println("testPredictResultBitDepths");
+        ImageProcessor ip = imp.getProcessor();
+        double expected = predictor.predictResult(ip).getCount();
+
+        ImageProcessor floatIp = ip.convertToFloat();
+        assertEquals(32, floatIp.getBitDepth());
+        assertEquals(expected, predictor.predictResult(floatIp).getCount(),
+                     1e-4);
+
+        ImageProcessor byteIp = ip.convertToByte(true);
+        ImageProcessor scaledIp = byteIp.convertToFloat();
+        assertEquals(predictor.predictResult(scaledIp).getCount(),
+                     predictor.predictResult(byteIp).getCount(), 1e-4);
+        predictor.close();
+    }
+
+    /**
+     * Test of predictResult method, of class DefaultPredictor.
+     *
+     * Concurrent callers sharing one predictor must get the same results as
+     * sequential calls.
+     */
+    @Test
+    public void testPredictResultConcurrent() throws Exception {
+        System.out.println("testPredictResultConcurrent");
+        ImageStack stack = imp.getImageStack();
+        double[] expected = predictor.predictBatch(stack, 1, null);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<PredictionResult>> futures = new ArrayList<>();
+        for (int i = 1; i <= stack.getSize(); i++) {
+            final ImageProcessor ip = stack.getProcessor(i);
+            futures.add(executor.submit(() -> predictor.predictResult(ip)));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            PredictionResult result = futures.get(i).get();
+            assertEquals(expected[i], result.getCount(), 1e-4);
+            assertEquals(imp.getWidth(), result.getDensityMap().getWidth());
+        }
+        executor.shutdown();
+        predictor.close();
+    }
+
     /**
      * Test of predict method, of class DefaultPredictor.
      */
@@ -186,4 +302,55 @@ public class DefaultPredictorIT {
         predictor.close();
     }
     
+    /**
+     * Test of setup method, of class DefaultPredictor, with session options.
+     *
+     * The graph optimizations and the GPU options do not change the counts.
+     */
+    @Test
+    public void testSetupSessionOptions() throws Exception {
+        System.out.println("testSetupSessionOptions");
+        predictor.predict(imp.getProcessor());
+        double expected = predictor.getCount();
+        predictor.close();
+
+        SessionOptions options = new SessionOptions();
+        options.setIntraOpThreads(1);
+        options.setInterOpThreads(1);
+        options.setOptimizerLevel(SessionOptions.OptimizerLevel.L0);
+        options.setAllowGpuMemoryGrowth(true);
+        options.setGpuMemoryFraction(0.25);
+        predictor = new DefaultPredictor();
+        predictor.setup(SAVED_MODEL.getAbsolutePath(), options);
+        predictor.predict(imp.getProcessor());
+        assertEquals(expected, predictor.getCount(), 1e-4);
+        predictor.close();
+    }
+
+    /**
+     * Test of setup method, of class DefaultPredictor, with warm-up shapes.
+     */
+    @Test
+    public void testSetupWarmUp() throws Exception {
+        System.out.println("testSetupWarmUp");
+        assertTrue(predictor.getWarmUpTimes().isEmpty());
+        
+        InputShape single = new InputShape(32, 32, 1);
+        InputShape batch = new InputShape(32, 32, 3);
+        predictor.setup(SAVED_MODEL.getAbsolutePath(), new SessionOptions(),
+                        Arrays.asList(single, batch, single));
+        
+        Map<InputShape, Long> times = predictor.getWarmUpTimes();
+        assertEquals(Arrays.asList(single, batch),
+                     new ArrayList<>(times.keySet()));
+        for (long time : times.values()) {
+            assertTrue(time > 0);
+        }
+        
+        // The predictor works normally after the warm-up.
+        predictor.predict(imp.getProcessor());
+        assertTrue(predictor.getCount() > 0);
+        predictor.close();
+    }
+    
 }
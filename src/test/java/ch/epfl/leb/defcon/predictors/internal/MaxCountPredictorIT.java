@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
+import org.tensorflow.Operation;
+import org.tensorflow.Tensor;
+import org.tensorflow.framework.GraphDef;
+import org.tensorflow.framework.MetaGraphDef;
+import org.tensorflow.framework.SavedModel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the MaxCountPredictor class.
+ *
+ * The tests run a small maximum local count model that is saved when the
+ * tests start: it sums the input over every 7x7 region and outputs the
+ * largest sum of each frame, which is checked against the same sums computed
+ * from the pixels.
+ *
+ * @author Kyle M. Douglass
+ */
+public class MaxCountPredictorIT {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The path to the test resources directory.
+     */
+    private final File RESOURCES_DIR = new File("src/test/resources");
+
+    /**
+     * Stack of test images.
+     */
+    private final File TEST_STACK = new File(RESOURCES_DIR, "test_data.tif");
+
+    /**
+     * The saved maximum local count model.
+     */
+    private static File savedModel;
+
+    /**
+     * The test images.
+     */
+    private ImagePlus imp;
+
+    /**
+     * The test instance.
+     */
+    private MaxCountPredictor predictor;
+
+    /**
+     * Saves the maximum local count model.
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        savedModel = folder.newFolder("max_count");
+
+        float[][][][] ones = new float[MaxCountPredictor.BOX_SIZE]
+                                      [MaxCountPredictor.BOX_SIZE][1][1];
+        for (float[][][] row : ones) {
+            for (float[][] column : row) {
+                column[0][0] = 1f;
+            }
+        }
+
+        byte[] graphDef;
+        try (Graph graph = new Graph();
+             Tensor<Float> kernel = Tensor.create(ones, Float.class);
+             Tensor<Integer> axes = Tensor.create(new int[] {1, 2, 3},
+                                                  Integer.class)) {
+            Operation input = graph.opBuilder("Placeholder", "input_tensor")
+                                   .setAttr("dtype", DataType.FLOAT)
+                                   .build();
+            Operation box = graph.opBuilder("Const", "box")
+                                 .setAttr("dtype", DataType.FLOAT)
+                                 .setAttr("value", kernel)
+                                 .build();
+            Operation sums = graph.opBuilder("Conv2D", "sums")
+                                  .addInput(input.output(0))
+                                  .addInput(box.output(0))
+                                  .setAttr("strides", new long[] {1, 1, 1, 1})
+                                  .setAttr("padding", "VALID")
+                                  .build();
+            Operation axesOp = graph.opBuilder("Const", "axes")
+                                    .setAttr("dtype", DataType.INT32)
+                                    .setAttr("value", axes)
+                                    .build();
+            graph.opBuilder("Max", "output_tensor")
+                 .addInput(sums.output(0))
+                 .addInput(axesOp.output(0))
+                 .build();
+            graphDef = graph.toGraphDef();
+        }
+
+        MetaGraphDef metaGraph = MetaGraphDef.newBuilder()
+                .setMetaInfoDef(MetaGraphDef.MetaInfoDef.newBuilder()
+                                            .addTags("serve"))
+                .setGraphDef(GraphDef.parseFrom(graphDef))
+                .build();
+        try (OutputStream out = new FileOutputStream(
+                new File(savedModel, "saved_model.pb"))) {
+            SavedModel.newBuilder()
+                      .setSavedModelSchemaVersion(1)
+                      .addMetaGraphs(metaGraph)
+                      .build()
+                      .writeTo(out);
+        }
+    }
+
+    /**
+     * Sets up the integration test.
+     */
+    @Before
+    public void setUp() {
+        imp = IJ.openImage(TEST_STACK.getAbsolutePath());
+
+        SessionOptions options = new SessionOptions();
+        options.setIntraOpThreads(2);
+        options.setInterOpThreads(1);
+        predictor = new MaxCountPredictor();
+        predictor.setup(savedModel.getAbsolutePath(), options);
+    }
+
+    /**
+     * Closes the predictor.
+     */
+    @After
+    public void tearDown() {
+        predictor.close();
+    }
+
+    /**
+     * Computes the maximum 7x7 sum of the pixels of a frame that is trimmed
+     * to multiples of four like in the predictor.
+     */
+    private static double expectedCount(ImageProcessor ip) {
+        int width = ip.getWidth() - ip.getWidth() % 4;
+        int height = ip.getHeight() - ip.getHeight() % 4;
+        int box = MaxCountPredictor.BOX_SIZE;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int y = 0; y + box <= height; y++) {
+            for (int x = 0; x + box <= width; x++) {
+                double sum = 0;
+                for (int j = y; j < y + box; j++) {
+                    for (int i = x; i < x + box; i++) {
+                        sum += ip.getf(i, j);
+                    }
+                }
+                max = Math.max(max, sum);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Test of predict method, of class MaxCountPredictor.
+     *
+     * The count is the maximum local count and the density map is null.
+     */
+    @Test
+    public void testPredict() throws Exception {
+        System.out.println("testPredict");
+        ImageProcessor ip = imp.getImageStack().getProcessor(1);
+        double expected = expectedCount(ip);
+
+        predictor.predict(ip);
+        assertEquals(expected, predictor.getCount(), expected * 1e-5);
+        assertEquals(expected,
+                     predictor.getMaximumLocalCount(
+                             MaxCountPredictor.BOX_SIZE),
+                     expected * 1e-5);
+        assertNull(predictor.getDensityMap());
+        assertNull(predictor.predictResult(ip).getDensityMap());
+    }
+
+    /**
+     * Test of predictBatch method, of class MaxCountPredictor.
+     *
+     * The counts match those of single frames and the density map stack is
+     * left unchanged.
+     */
+    @Test
+    public void testPredictBatch() throws Exception {
+        System.out.println("testPredictBatch");
+        ImageStack stack = imp.getImageStack();
+        ImageStack densityMaps = new ImageStack(stack.getWidth(),
+                                                stack.getHeight());
+
+        double[] counts = predictor.predictBatch(stack, 3, densityMaps);
+        assertEquals(stack.getSize(), counts.length);
+        assertEquals(0, densityMaps.getSize());
+        for (int i = 0; i < counts.length; i++) {
+            double expected = expectedCount(stack.getProcessor(i + 1));
+            assertEquals(expected, counts[i], expected * 1e-5);
+        }
+    }
+
+    /**
+     * Test of predictStack method, of class PredictorPool, and run method,
+     * of class FramePipeline, with a maximum local count model.
+     *
+     * Both deliver the counts of the predictor in slice order.
+     */
+    @Test
+    public void testPipeline() throws Exception {
+        System.out.println("testPipeline");
+        ImageStack stack = imp.getImageStack();
+        double[] expected = predictor.predictBatch(stack, 1, null);
+
+        try (PredictorPool pool = new PredictorPool(predictor, 3)) {
+            List<Integer> slices = new ArrayList<>();
+            List<Double> counts = new ArrayList<>();
+            pool.predictStack(stack, null, 2, (slice, result) -> {
+                slices.add(slice);
+                counts.add(result.getCount());
+                assertFalse(result.hasDensityMap());
+            });
+            assertEquals(stack.getSize(), slices.size());
+            for (int i = 0; i < slices.size(); i++) {
+                assertEquals(i + 1, (int) slices.get(i));
+                assertEquals(expected[i], counts.get(i), 1e-4);
+            }
+
+            FramePipeline pipeline = new FramePipeline(pool, 2, 1);
+            double[] pipelineCounts = new double[stack.getSize()];
+            pipeline.run(stack, null, (slice, result) -> {
+                pipelineCounts[slice - 1] = result.getCount();
+                assertNull(result.getDensityMap());
+            });
+            assertArrayEquals(expected, pipelineCounts, 1e-4);
+        }
+    }
+
+}
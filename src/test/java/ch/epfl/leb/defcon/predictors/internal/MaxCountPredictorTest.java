@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.internal.DefaultPredictor.SessionOutput;
+
+import org.tensorflow.Tensor;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the MaxCountPredictor class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class MaxCountPredictorTest {
+
+    /**
+     * Test of readOutput method, of class MaxCountPredictor.
+     *
+     * Each frame of the batch gets its own value of the output and no density
+     * map.
+     */
+    @Test
+    public void testReadOutput() {
+        System.out.println("testReadOutput");
+        MaxCountPredictor predictor = new MaxCountPredictor();
+        try (Tensor<Float> output = Tensor.create(
+                new float[][] {{1.5f}, {2.5f}}, Float.class)) {
+            SessionOutput result = predictor.readOutput(
+                    new long[] {2, 8, 12, 1}, output, true);
+            assertEquals(1.5, result.getCount(0), 0);
+            assertEquals(2.5, result.getCount(1), 0);
+            assertFalse(result.getResult(1).hasDensityMap());
+        }
+    }
+
+    /**
+     * Test of readOutput method, of class MaxCountPredictor, with the output
+     * of a density map model.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testReadOutputDensityMap() {
+        System.out.println("testReadOutputDensityMap");
+        MaxCountPredictor predictor = new MaxCountPredictor();
+        try (Tensor<Float> output = Tensor.create(
+                new float[1][4][4][1], Float.class)) {
+            predictor.readOutput(new long[] {1, 4, 4, 1}, output, false);
+        }
+    }
+
+}
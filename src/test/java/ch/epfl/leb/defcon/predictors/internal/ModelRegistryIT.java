@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the ModelRegistry class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class ModelRegistryIT {
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File("src/test/resources",
+                                              "tf_density_count");
+
+    /**
+     * The test instance.
+     */
+    private ModelRegistry registry;
+
+    /**
+     * Starts every test from an empty registry.
+     */
+    @Before
+    public void setUp() {
+        registry = ModelRegistry.getInstance();
+        registry.setIdleTimeout(ModelRegistry.DEFAULT_IDLE_TIMEOUT_MS,
+                                TimeUnit.MILLISECONDS);
+        registry.evictIdle();
+    }
+
+    /**
+     * Restores the default settings of the registry.
+     */
+    @After
+    public void tearDown() {
+        registry.setIdleTimeout(ModelRegistry.DEFAULT_IDLE_TIMEOUT_MS,
+                                TimeUnit.MILLISECONDS);
+        registry.setMemoryBudget(ModelRegistry.DEFAULT_MEMORY_BUDGET);
+        registry.evictIdle();
+    }
+
+    /**
+     * Handles to the same model share one session and keep it loaded while
+     * they are idle.
+     */
+    @Test
+    public void testAcquireSharesModel() {
+        System.out.println("testAcquireSharesModel");
+        String path = SAVED_MODEL.getAbsolutePath();
+        ModelHandle first = registry.acquire(path, new SessionOptions());
+        ModelHandle second = registry.acquire(
+                new File(SAVED_MODEL, ".").getPath(), new SessionOptions());
+
+        assertSame(first.getSession(), second.getSession());
+        assertEquals(1, registry.size());
+
+        first.close();
+        second.close();
+        second.close();
+        assertEquals(1, registry.size());
+
+        registry.evictIdle();
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Concurrent calls for a model that is not loaded yet share one load.
+     */
+    @Test
+    public void testConcurrentAcquire() throws Exception {
+        System.out.println("testConcurrentAcquire");
+        String path = SAVED_MODEL.getAbsolutePath();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<ModelHandle>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(
+                    () -> registry.acquire(path, new SessionOptions())));
+        }
+        List<ModelHandle> handles = new ArrayList<>();
+        for (Future<ModelHandle> future : futures) {
+            handles.add(future.get());
+        }
+        executor.shutdown();
+
+        assertEquals(1, registry.size());
+        for (ModelHandle handle : handles) {
+            assertSame(handles.get(0).getSession(), handle.getSession());
+        }
+        for (ModelHandle handle : handles) {
+            handle.close();
+        }
+        registry.evictIdle();
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * A zero idle timeout closes a model when its last handle is closed.
+     */
+    @Test
+    public void testCloseLastHandle() {
+        System.out.println("testCloseLastHandle");
+        registry.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+        ModelHandle first = registry.acquire(SAVED_MODEL.getAbsolutePath(),
+                                             new SessionOptions());
+        ModelHandle second = registry.acquire(SAVED_MODEL.getAbsolutePath(),
+                                              new SessionOptions());
+
+        first.close();
+        assertEquals(1, registry.size());
+        second.close();
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Idle models are evicted when the memory budget is exceeded.
+     */
+    @Test
+    public void testMemoryBudget() {
+        System.out.println("testMemoryBudget");
+        ModelHandle handle = registry.acquire(SAVED_MODEL.getAbsolutePath(),
+                                              new SessionOptions());
+        registry.setMemoryBudget(0);
+        assertEquals(1, registry.size());
+
+        handle.close();
+        assertEquals(0, registry.size());
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that long runs do not leak native memory.
+ *
+ * The resident memory of the process is read from /proc, so this test only
+ * runs on Linux. By default it is a short smoke run of 2,000 frames; a long
+ * soak, e.g. of 100,000 frames, is run by setting the
+ * {@code defcon.leakCheckFrames} system property.
+ *
+ * @author Kyle M. Douglass
+ */
+public class NativeMemoryIT {
+
+    /**
+     * The path to the test resources directory.
+     */
+    private final File RESOURCES_DIR = new File("src/test/resources");
+
+    /**
+     * Stack of test images.
+     */
+    private final File TEST_STACK = new File(RESOURCES_DIR, "test_data.tif");
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File(RESOURCES_DIR, "tf_density_count");
+
+    /**
+     * The largest growth of the resident memory that is tolerated after the
+     * warm-up.
+     */
+    private static final long MAX_GROWTH = 64L << 20;
+
+    /**
+     * Reads the resident memory of the process.
+     *
+     * @return The resident memory in bytes.
+     */
+    private static long residentMemory() throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/status"),
+                                              StandardCharsets.US_ASCII)) {
+            if (line.startsWith("VmRSS:")) {
+                String kb = line.substring(6).trim().split("\\s+")[0];
+                return Long.parseLong(kb) << 10;
+            }
+        }
+        throw new IOException("No VmRSS in /proc/self/status.");
+    }
+
+    /**
+     * Predicts the frames a given number of times, alternating between
+     * count-only predictions and results whose density maps are requested.
+     */
+    private static void predict(DefaultPredictor predictor,
+                                List<ImageProcessor> frames, int repeats)
+                                throws Exception {
+        for (int i = 0; i < repeats; i++) {
+            if (i % 2 == 0) {
+                predictor.predictBatch(frames, frames.size(), null);
+            } else {
+                for (PredictionResult result
+                        : predictor.predictBatchResults(frames, 4)) {
+                    assertNotNull(result.getDensityMap());
+                }
+            }
+        }
+    }
+
+    /**
+     * The resident memory stays flat over the run.
+     */
+    @Test
+    public void testResidentMemoryIsFlat() throws Exception {
+        System.out.println("testResidentMemoryIsFlat");
+        Assume.assumeTrue(new File("/proc/self/status").canRead());
+        int numFrames = Integer.getInteger("defcon.leakCheckFrames", 2000);
+
+        ImagePlus imp = IJ.openImage(TEST_STACK.getAbsolutePath());
+        ImageStack stack = imp.getImageStack();
+        List<ImageProcessor> frames = new ArrayList<>();
+        for (int i = 1; i <= stack.getSize(); i++) {
+            frames.add(stack.getProcessor(i));
+        }
+        int repeats = numFrames / frames.size();
+
+        TensorMemoryBudget budget = new TensorMemoryBudget(1 << 20);
+        try (DefaultPredictor predictor = new DefaultPredictor()) {
+            predictor.setup(SAVED_MODEL.getAbsolutePath());
+            predictor.setTensorMemoryBudget(budget);
+
+            // The first tenth of the run lets TensorFlow and the JIT settle.
+            predict(predictor, frames, repeats / 10);
+            System.gc();
+            long before = residentMemory();
+
+            predict(predictor, frames, repeats - repeats / 10);
+            System.gc();
+            long after = residentMemory();
+
+            System.out.println(String.format(
+                    "Resident memory: %.1f MB before, %.1f MB after %d frames",
+                    before / (double) (1 << 20), after / (double) (1 << 20),
+                    repeats * frames.size()));
+            assertTrue("The resident memory grew by "
+                       + ((after - before) >> 20) + " MB",
+                       after - before < MAX_GROWTH);
+            assertEquals(0, predictor.getMetrics().getLiveTensorBytes());
+        }
+        assertEquals(0, budget.getUsed());
+    }
+
+}
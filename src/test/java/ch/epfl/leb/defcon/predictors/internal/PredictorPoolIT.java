@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the PredictorPool class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class PredictorPoolIT {
+
+    /**
+     * The path to the test resources directory.
+     */
+    private final File RESOURCES_DIR = new File("src/test/resources");
+
+    /**
+     * Stack of test images.
+     */
+    private final File TEST_STACK = new File(RESOURCES_DIR, "test_data.tif");
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File(RESOURCES_DIR, "tf_density_count");
+
+    /**
+     * The test images.
+     */
+    private ImagePlus imp;
+
+    /**
+     * The test instance.
+     */
+    private PredictorPool pool;
+
+    /**
+     * Sets up the integration test.
+     */
+    @Before
+    public void setUp() {
+        imp = IJ.openImage(TEST_STACK.getAbsolutePath());
+
+        SessionOptions options = new SessionOptions();
+        options.setIntraOpThreads(2);
+        options.setInterOpThreads(1);
+        pool = new PredictorPool(SAVED_MODEL.getAbsolutePath(), 3, options);
+    }
+
+    /**
+     * Closes the pool and its model.
+     */
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    /**
+     * Test of predictStack method, of class PredictorPool.
+     *
+     * Results must arrive in slice order and match sequential predictions.
+     */
+    @Test
+    public void testPredictStack() throws Exception {
+        System.out.println("testPredictStack");
+        ImageStack stack = imp.getImageStack();
+        double[] expected = pool.getPredictor().predictBatch(stack, 1, null);
+
+        List<Integer> slices = new ArrayList<>();
+        List<Double> counts = new ArrayList<>();
+        pool.predictStack(stack, null, 2, (slice, result) -> {
+            slices.add(slice);
+            counts.add(result.getCount());
+        });
+
+        assertEquals(stack.getSize(), slices.size());
+        for (int i = 0; i < slices.size(); i++) {
+            assertEquals(i + 1, (int) slices.get(i));
+            assertEquals(expected[i], counts.get(i), 1e-4);
+        }
+    }
+
+    /**
+     * Test of run method, of class FramePipeline.
+     *
+     * The pipeline must deliver the same results in the same order as the
+     * pool alone.
+     */
+    @Test
+    public void testFramePipeline() throws Exception {
+        System.out.println("testFramePipeline");
+        ImageStack stack = imp.getImageStack();
+        double[] expected = pool.getPredictor().predictBatch(stack, 1, null);
+
+        FramePipeline pipeline = new FramePipeline(pool, 2, 1);
+        List<Integer> slices = new ArrayList<>();
+        List<Double> counts = new ArrayList<>();
+        pipeline.run(stack, new Rectangle(0, 0, stack.getWidth(),
+                                          stack.getHeight()),
+                     (slice, result) -> {
+            slices.add(slice);
+            counts.add(result.getCount());
+        });
+
+        assertEquals(stack.getSize(), slices.size());
+        for (int i = 0; i < slices.size(); i++) {
+            assertEquals(i + 1, (int) slices.get(i));
+            assertEquals(expected[i], counts.get(i), 1e-4);
+        }
+        assertTrue(pipeline.getReadQueueStatistics().getMaxDepth() <= 1);
+        System.out.println(pipeline.getReport());
+    }
+
+    /**
+     * Test of run method, of class FramePipeline, with a closed pool.
+     *
+     * The rejected batch is reported instead of blocking the caller.
+     */
+    @Test(timeout = 60000, expected = RejectedExecutionException.class)
+    public void testFramePipelineClosedPool() throws Exception {
+        System.out.println("testFramePipelineClosedPool");
+        FramePipeline pipeline = new FramePipeline(pool, 2, 1);
+        pool.close();
+        pipeline.run(imp.getImageStack(), null, (slice, result) -> { });
+    }
+
+    /**
+     * Test of run method, of class FramePipeline, with a consumer that fails.
+     *
+     * The stages are blocked on full queues when the consumer fails; they
+     * must still terminate.
+     */
+    @Test(timeout = 60000)
+    public void testFramePipelineFailingConsumer() throws Exception {
+        System.out.println("testFramePipelineFailingConsumer");
+        FramePipeline pipeline = new FramePipeline(pool, 1, 1);
+        try {
+            pipeline.run(imp.getImageStack(), null, (slice, result) -> {
+                throw new IllegalStateException("Consumer failure");
+            });
+            fail("The failure of the consumer was not raised.");
+        } catch (IllegalStateException ex) {
+            assertEquals("Consumer failure", ex.getMessage());
+        }
+
+        while (pipelineThreadsAlive()) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Returns whether a stage thread of a pipeline is still alive.
+     */
+    private static boolean pipelineThreadsAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("defcon-pipeline")
+                    && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
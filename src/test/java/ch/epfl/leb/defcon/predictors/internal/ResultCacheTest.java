@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ResultCache class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ShortProcessor frame(int seed) {
+        ShortProcessor ip = new ShortProcessor(10, 9);
+        for (int i = 0; i < ip.getPixelCount(); i++) {
+            ip.setf(i, (i * 31 + seed) % 1000);
+        }
+        return ip;
+    }
+
+    private static PredictionResult result(double count) {
+        return new PredictionResult(count, new FloatProcessor(8, 8));
+    }
+
+    /**
+     * Keys depend on the model, the trimmed ROI and the pixels inside it.
+     */
+    @Test
+    public void testKey() {
+        System.out.println("testKey");
+        ShortProcessor ip = frame(0);
+        String key = ResultCache.key("model", ip);
+        assertEquals(key, ResultCache.key("model", frame(0)));
+        assertNotEquals(key, ResultCache.key("other", ip));
+
+        // The ROI is trimmed to 8x8, so the last row and columns are ignored.
+        ShortProcessor edited = frame(0);
+        edited.setf(9, 8, 1);
+        assertEquals(key, ResultCache.key("model", edited));
+        edited.setf(3, 3, 1);
+        assertNotEquals(key, ResultCache.key("model", edited));
+
+        ip.setRoi(new Rectangle(1, 0, 8, 8));
+        assertNotEquals(key, ResultCache.key("model", ip));
+    }
+
+    /**
+     * The least-recently used results are evicted from memory, while the
+     * counts are kept on disk across instances.
+     */
+    @Test
+    public void testTiers() throws Exception {
+        System.out.println("testTiers");
+        File directory = folder.newFolder("cache");
+        // Room for two 8x8 density maps.
+        try (ResultCache cache = new ResultCache(directory, 2 * 256)) {
+            cache.put("a", result(1));
+            cache.put("b", result(2));
+            assertNotNull(cache.get("a", true));
+            cache.put("c", result(3));
+
+            // b was the least-recently used.
+            assertNull(cache.get("b", true));
+            PredictionResult fromDisk = cache.get("b", false);
+            assertEquals(2, fromDisk.getCount(), 0);
+            assertNull(fromDisk.getDensityMap());
+            assertEquals(1, cache.getDiskHits());
+            assertEquals(1, cache.getMisses());
+        }
+
+        try (ResultCache cache = new ResultCache(directory, 2 * 256)) {
+            assertNull(cache.get("a", true));
+            assertEquals(1, cache.get("a", false).getCount(), 0);
+            assertEquals(3, cache.get("c", false).getCount(), 0);
+            assertNull(cache.get("d", false));
+            assertEquals(0.5, cache.getHitRate(), 1e-9);
+        }
+    }
+
+    /**
+     * Cached density maps are handed out as copies, and lazy density maps
+     * are not built when they are added.
+     */
+    @Test
+    public void testCopies() throws Exception {
+        System.out.println("testCopies");
+        final AtomicBoolean built = new AtomicBoolean(false);
+        PredictionResult lazy = new PredictionResult(1, () -> {
+            built.set(true);
+            return new FloatProcessor(8, 8);
+        });
+        try (ResultCache cache = new ResultCache(2 * 256)) {
+            cache.put("a", lazy, 64);
+            assertFalse(built.get());
+
+            FloatProcessor first = cache.get("a", true).getDensityMap();
+            assertTrue(built.get());
+            assertNotSame(lazy.getDensityMap(), first);
+            first.setf(0, 0, 5);
+            assertEquals(0, cache.get("a", true).getDensityMap().getf(0, 0),
+                         0);
+            assertEquals(0, lazy.getDensityMap().getf(0, 0), 0);
+        }
+    }
+
+    /**
+     * Results without a density map are kept in memory but miss the lookups
+     * that require one, and they do not replace results that have one.
+     */
+    @Test
+    public void testCountsInMemory() throws Exception {
+        System.out.println("testCountsInMemory");
+        try (ResultCache cache = new ResultCache(2 * 256)) {
+            cache.put("a", new PredictionResult(1));
+            assertNull(cache.get("a", true));
+            assertEquals(1, cache.get("a", false).getCount(), 0);
+            assertEquals(1, cache.getMemoryHits());
+            assertEquals(1, cache.getMisses());
+
+            cache.put("a", result(2));
+            cache.put("a", new PredictionResult(3));
+            PredictionResult cached = cache.get("a", true);
+            assertEquals(2, cached.getCount(), 0);
+            assertNotNull(cached.getDensityMap());
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the TensorMemoryBudget class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class TensorMemoryBudgetTest {
+
+    /**
+     * Test of reserve method, of class TensorMemoryBudget.
+     *
+     * A reservation that does not fit waits until enough memory is released.
+     */
+    @Test
+    public void testReserveBlocks() throws Exception {
+        System.out.println("testReserveBlocks");
+        TensorMemoryBudget budget = new TensorMemoryBudget(100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            TensorMemoryBudget.Reservation first = budget.reserve(60);
+            Future<TensorMemoryBudget.Reservation> second = executor.submit(
+                    () -> budget.reserve(60));
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                fail("The second reservation should wait.");
+            } catch (TimeoutException ex) {
+                // Expected.
+            }
+            assertEquals(60, budget.getUsed());
+
+            first.close();
+            first.close();
+            second.get(10, TimeUnit.SECONDS).close();
+            assertEquals(0, budget.getUsed());
+            assertEquals(60, budget.getPeak());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test of reserve method, of class TensorMemoryBudget, with a reservation
+     * larger than the budget.
+     */
+    @Test
+    public void testReserveOversized() {
+        System.out.println("testReserveOversized");
+        TensorMemoryBudget budget = new TensorMemoryBudget(100);
+        TensorMemoryBudget.Reservation reservation = budget.reserve(500);
+        assertEquals(500, budget.getUsed());
+        reservation.close();
+        assertEquals(0, budget.getUsed());
+    }
+
+}
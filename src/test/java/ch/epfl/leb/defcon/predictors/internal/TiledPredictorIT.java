@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.predictors.internal;
+
+import ch.epfl.leb.defcon.predictors.InputShape;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the TiledPredictor class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class TiledPredictorIT {
+
+    /**
+     * The path to the test resources directory.
+     */
+    private final File RESOURCES_DIR = new File("src/test/resources");
+
+    /**
+     * Stack of test images.
+     */
+    private final File TEST_STACK = new File(RESOURCES_DIR, "test_data.tif");
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File(RESOURCES_DIR, "tf_density_count");
+
+    /**
+     * A field of view that is larger than the test images.
+     */
+    private ImageProcessor mosaic;
+
+    /**
+     * Predicts on the whole field of view.
+     */
+    private DefaultPredictor reference;
+
+    /**
+     * The test instance.
+     */
+    private TiledPredictor instance;
+
+    /**
+     * Sets up the integration test.
+     *
+     * The mosaic is made of the test images side by side, with a width and
+     * height that are not multiples of the tile size.
+     */
+    @Before
+    public void setUp() {
+        ImageStack stack = IJ.openImage(TEST_STACK.getAbsolutePath())
+                             .getImageStack();
+        mosaic = new ShortProcessor(128, 96);
+        int slice = 1;
+        for (int y = 0; y < 96; y += 32) {
+            for (int x = 0; x < 128; x += 32) {
+                mosaic.insert(stack.getProcessor(slice), x, y);
+                slice = slice % stack.getSize() + 1;
+            }
+        }
+
+        reference = new DefaultPredictor();
+        reference.setup(SAVED_MODEL.getAbsolutePath());
+        instance = new TiledPredictor(24, TiledPredictor.DEFAULT_HALO);
+        instance.setup(SAVED_MODEL.getAbsolutePath());
+    }
+
+    /**
+     * Releases the models.
+     */
+    @After
+    public void tearDown() {
+        reference.close();
+        instance.close();
+    }
+
+    /**
+     * Asserts that a tiled prediction matches the whole-image prediction.
+     */
+    private void assertMatches(PredictionResult expected,
+                               PredictionResult actual) {
+        assertEquals(expected.getCount(), actual.getCount(), 1e-4);
+        assertArrayEquals((float[]) expected.getDensityMap().getPixels(),
+                          (float[]) actual.getDensityMap().getPixels(), 1e-5f);
+    }
+
+    /**
+     * Test of predictResult method, of class TiledPredictor.
+     */
+    @Test
+    public void testPredictResult() throws Exception {
+        System.out.println("testPredictResult");
+        PredictionResult expected = reference.predictResult(mosaic);
+        instance.setTileBatchSize(5);
+
+        assertMatches(expected, instance.predictResult(mosaic));
+        assertEquals(128, mosaic.getRoi().width);
+    }
+
+    /**
+     * Test of predictBatchResults method, of class TiledPredictor, with the
+     * tiles predicted in parallel.
+     */
+    @Test
+    public void testPredictBatchResultsParallel() throws Exception {
+        System.out.println("testPredictBatchResultsParallel");
+        PredictionResult expected = reference.predictResult(mosaic);
+        instance.setTileBatchSize(2);
+        instance.setNumThreads(3);
+
+        List<PredictionResult> results = instance.predictBatchResults(
+                Arrays.asList(mosaic, mosaic), 2);
+        assertEquals(2, results.size());
+        for (PredictionResult result : results) {
+            assertMatches(expected, result);
+        }
+    }
+
+    /**
+     * Images smaller than a tile are predicted as a whole.
+     */
+    @Test
+    public void testSmallImage() throws Exception {
+        System.out.println("testSmallImage");
+        ImagePlus imp = IJ.openImage(TEST_STACK.getAbsolutePath());
+        TiledPredictor large = new TiledPredictor();
+        large.setup(SAVED_MODEL.getAbsolutePath());
+        try {
+            assertMatches(reference.predictResult(imp.getProcessor()),
+                          large.predictResult(imp.getProcessor()));
+        } finally {
+            large.close();
+        }
+    }
+
+    /**
+     * A constant frame gives a finite count instead of dividing by zero.
+     */
+    @Test
+    public void testConstantFrame() throws Exception {
+        System.out.println("testConstantFrame");
+        ShortProcessor blank = new ShortProcessor(128, 96);
+        blank.set(1000);
+        PredictionResult result = instance.predictResult(blank);
+        assertFalse(Double.isNaN(result.getCount()));
+        assertFalse(Double.isInfinite(result.getCount()));
+    }
+
+    /**
+     * Setup fails if the rescaling operation is missing, unless the tiles
+     * are explicitly rescaled independently.
+     */
+    @Test
+    public void testMissingNormalizedInput() throws Exception {
+        System.out.println("testMissingNormalizedInput");
+        TiledPredictor missing = new TiledPredictor(24,
+                TiledPredictor.DEFAULT_HALO);
+        missing.setNormalizedInput("no/such/op");
+        try {
+            missing.setup(SAVED_MODEL.getAbsolutePath());
+            fail("The missing operation was not reported.");
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getMessage().contains("no/such/op"));
+        }
+
+        missing.setNormalizedInput(null);
+        missing.setup(SAVED_MODEL.getAbsolutePath());
+        try {
+            assertTrue(missing.predictResult(mosaic).getCount() > 0);
+        } finally {
+            missing.close();
+        }
+    }
+
+    /**
+     * Test of setup method, of class TiledPredictor, with warm-up shapes.
+     *
+     * The warm-up runs tile windows instead of whole frames.
+     */
+    @Test
+    public void testSetupWarmUp() throws Exception {
+        System.out.println("testSetupWarmUp");
+        TiledPredictor warm = new TiledPredictor(24,
+                TiledPredictor.DEFAULT_HALO);
+        TensorMemoryBudget budget = new TensorMemoryBudget(1L << 30);
+        warm.setTensorMemoryBudget(budget);
+        InputShape frames = new InputShape(128, 96, 3);
+        warm.setup(SAVED_MODEL.getAbsolutePath(), new SessionOptions(),
+                   Collections.singletonList(frames));
+        try {
+            assertTrue(warm.getWarmUpTimes().containsKey(frames));
+            int window = 24 + 2 * TiledPredictor.DEFAULT_HALO;
+            assertTrue(budget.getPeak() > 0);
+            assertTrue(budget.getPeak() <= warm.estimateTensorBytes(
+                    4, window, window));
+            assertTrue(budget.getPeak() < warm.estimateTensorBytes(
+                    3, 128, 96));
+            assertMatches(reference.predictResult(mosaic),
+                          warm.predictResult(mosaic));
+        } finally {
+            warm.close();
+        }
+    }
+
+}
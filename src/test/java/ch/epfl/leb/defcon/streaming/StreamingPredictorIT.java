@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.streaming;
+
+import ch.epfl.leb.defcon.predictors.InputShape;
+import ch.epfl.leb.defcon.predictors.PredictionResult;
+import ch.epfl.leb.defcon.predictors.SessionOptions;
+import ch.epfl.leb.defcon.predictors.internal.DefaultPredictor;
+import ch.epfl.leb.defcon.streaming.StreamingPredictor.OverflowPolicy;
+
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for the StreamingPredictor class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class StreamingPredictorIT {
+
+    /**
+     * Saved TensorFlow model.
+     */
+    private final File SAVED_MODEL = new File("src/test/resources",
+                                              "tf_density_count");
+
+    private DefaultPredictor predictor;
+
+    @Before
+    public void setUp() {
+        predictor = new DefaultPredictor();
+        predictor.setup(SAVED_MODEL.getAbsolutePath(), new SessionOptions(),
+                        Arrays.asList(new InputShape(32, 32, 1),
+                                      new InputShape(32, 32, 2)));
+    }
+
+    @After
+    public void tearDown() {
+        predictor.close();
+    }
+
+    /**
+     * Frames that are pushed by the simulated camera are all counted in
+     * order when the stream blocks, with the same counts as single
+     * predictions.
+     */
+    @Test
+    public void testBlock() throws Exception {
+        System.out.println("testBlock");
+        final List<Long> numbers =
+                Collections.synchronizedList(new ArrayList<>());
+        final List<Double> counts =
+                Collections.synchronizedList(new ArrayList<>());
+        StreamingPredictor stream = new StreamingPredictor(
+                predictor, 2, OverflowPolicy.BLOCK,
+                (frameNumber, result, latency) -> {
+                    numbers.add(frameNumber);
+                    counts.add(result.getCount());
+                });
+        stream.setMaxBatchSize(2);
+        stream.start();
+
+        SimulatedCamera camera = new SimulatedCamera(32, 32, 5, 42);
+        camera.start(stream, 500, 30).join();
+        stream.close();
+
+        assertEquals(30, stream.getCountedFrames());
+        assertEquals(0, stream.getDroppedFrames());
+        assertEquals(30, stream.getLatency().getCount());
+        assertTrue(stream.getLatency().getPercentile(50) > 0);
+
+        // Replays the same frames without streaming.
+        SimulatedCamera replay = new SimulatedCamera(32, 32, 5, 42);
+        for (int i = 0; i < 30; i++) {
+            assertEquals(Long.valueOf(i), numbers.get(i));
+            PredictionResult expected = predictor.predictResult(
+                    replay.nextFrame());
+            assertEquals(expected.getCount(), counts.get(i), 1e-4);
+        }
+    }
+
+    /**
+     * A stream that falls behind drops its oldest frames but always counts
+     * the most recent one.
+     */
+    @Test
+    public void testDropOldest() throws Exception {
+        System.out.println("testDropOldest");
+        final List<Long> dropped =
+                Collections.synchronizedList(new ArrayList<>());
+        final List<Long> counted =
+                Collections.synchronizedList(new ArrayList<>());
+        StreamingPredictor stream = new StreamingPredictor(
+                predictor, 2, OverflowPolicy.DROP_OLDEST,
+                new StreamingPredictor.Listener() {
+                    @Override
+                    public void frameCounted(long frameNumber,
+                                             PredictionResult result,
+                                             long latency) {
+                        counted.add(frameNumber);
+                        try {
+                            // A slow consumer, e.g. a laser controller.
+                            Thread.sleep(20);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+                    @Override
+                    public void frameDropped(long frameNumber) {
+                        dropped.add(frameNumber);
+                    }
+                });
+        stream.start();
+
+        SimulatedCamera camera = new SimulatedCamera(32, 32, 5, 7);
+        List<ImageProcessor> frames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            frames.add(camera.nextFrame());
+        }
+        for (ImageProcessor frame : frames) {
+            stream.push(frame);
+        }
+        stream.close();
+
+        assertTrue(stream.getDroppedFrames() > 0);
+        assertEquals(20, stream.getCountedFrames()
+                         + stream.getDroppedFrames());
+        assertEquals(dropped.size(), stream.getDroppedFrames());
+        assertEquals(Long.valueOf(19), counted.get(counted.size() - 1));
+        for (int i = 1; i < counted.size(); i++) {
+            assertTrue(counted.get(i) > counted.get(i - 1));
+        }
+    }
+
+    /**
+     * A listener that throws does not stop the prediction thread, so a
+     * blocking stream keeps accepting frames.
+     */
+    @Test(timeout = 60000)
+    public void testFailingListener() throws Exception {
+        System.out.println("testFailingListener");
+        StreamingPredictor stream = new StreamingPredictor(
+                predictor, 2, OverflowPolicy.BLOCK,
+                (frameNumber, result, latency) -> {
+                    throw new IllegalStateException("Listener failure");
+                });
+        stream.start();
+
+        SimulatedCamera camera = new SimulatedCamera(32, 32, 5, 3);
+        try (StreamingPredictor closing = stream) {
+            for (int i = 0; i < 10; i++) {
+                closing.push(camera.nextFrame());
+            }
+        }
+        assertEquals(10, stream.getCountedFrames());
+    }
+
+}
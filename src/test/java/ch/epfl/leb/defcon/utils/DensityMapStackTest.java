@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the DensityMapWriter and DensityMapStack classes.
+ *
+ * @author Kyle M. Douglass
+ */
+public class DensityMapStackTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Creates density maps with random pixels.
+     */
+    private List<FloatProcessor> randomMaps(int n, int width, int height) {
+        Random random = new Random(42);
+        List<FloatProcessor> maps = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            float[] pixels = new float[width * height];
+            for (int j = 0; j < pixels.length; j++) {
+                // Mostly empty, like a real density map.
+                pixels[j] = random.nextInt(10) == 0 ? random.nextFloat() : 0f;
+            }
+            maps.add(new FloatProcessor(width, height, pixels));
+        }
+        return maps;
+    }
+
+    /**
+     * Writes density maps to a store and reads them back.
+     */
+    private void roundTrip(boolean compress) throws Exception {
+        File directory = new File(folder.getRoot(), "maps");
+        List<FloatProcessor> maps = randomMaps(5, 12, 8);
+        try (DensityMapWriter writer = new DensityMapWriter(directory, 12, 8,
+                                                            compress)) {
+            for (FloatProcessor map : maps) {
+                writer.append(map);
+            }
+            assertEquals(maps.size(), writer.getSize());
+        }
+
+        DensityMapStack stack = DensityMapStack.open(directory);
+        assertTrue(stack.isVirtual());
+        assertEquals(maps.size(), stack.getSize());
+        assertEquals(12, stack.getWidth());
+        assertEquals(8, stack.getHeight());
+        assertEquals(32, stack.getBitDepth());
+
+        // Read the slices out of order.
+        for (int n = maps.size(); n >= 1; n--) {
+            float[] expected = (float[]) maps.get(n - 1).getPixels();
+            float[] actual = (float[]) stack.getProcessor(n).getPixels();
+            assertArrayEquals(expected, actual, 0f);
+        }
+    }
+
+    /**
+     * Raw chunks are read back exactly.
+     */
+    @Test
+    public void testRawRoundTrip() throws Exception {
+        System.out.println("testRawRoundTrip");
+        roundTrip(false);
+    }
+
+    /**
+     * Compressed chunks are read back exactly and take less space.
+     */
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        System.out.println("testCompressedRoundTrip");
+        roundTrip(true);
+
+        File data = new File(new File(folder.getRoot(), "maps"),
+                             DensityMapWriter.DATA_FILE);
+        assertTrue(data.length() < 5 * 12 * 8 * 4);
+    }
+
+    /**
+     * Density maps of the wrong size are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongSize() throws Exception {
+        System.out.println("testWrongSize");
+        try (DensityMapWriter writer = new DensityMapWriter(
+                folder.getRoot(), 12, 8, false)) {
+            writer.append(new FloatProcessor(8, 8));
+        }
+    }
+
+}
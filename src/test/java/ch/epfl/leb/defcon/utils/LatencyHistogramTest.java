@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the LatencyHistogram class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Every value falls in a bucket whose middle is within the error bound.
+     */
+    @Test
+    public void testBuckets() {
+        System.out.println("testBuckets");
+        long[] values = {0, 1, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            long middle = LatencyHistogram.valueOf(
+                    LatencyHistogram.indexOf(value));
+            assertEquals(value, middle, value / 32.0 + 0.5);
+        }
+        assertTrue(LatencyHistogram.indexOf(1000)
+                   < LatencyHistogram.indexOf(1100));
+    }
+
+    /**
+     * Percentiles of a uniform distribution are within the error bound.
+     */
+    @Test
+    public void testPercentiles() {
+        System.out.println("testPercentiles");
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000500.0, histogram.getMean(), 1e-6);
+        assertEquals(10000000, histogram.getMax());
+        assertEquals(5e6, histogram.getPercentile(50), 5e6 / 32);
+        assertEquals(9.9e6, histogram.getPercentile(99), 9.9e6 / 32);
+        assertEquals(10000000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+}
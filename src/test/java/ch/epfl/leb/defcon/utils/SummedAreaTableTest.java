@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import ij.gui.Roi;
+import ij.plugin.filter.Convolver;
+import ij.process.FloatProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the SummedAreaTable class.
+ * 
+ * @author Kyle M. Douglass
+ */
+public class SummedAreaTableTest {
+    
+    /**
+     * A random density map.
+     */
+    private FloatProcessor densityMap;
+    
+    /**
+     * Creates a random density map.
+     */
+    @Before
+    public void setUp() {
+        Random random = new Random(42);
+        densityMap = new FloatProcessor(37, 29);
+        for (int i = 0; i < 37 * 29; i++) {
+            densityMap.setf(i, 0.01f * random.nextFloat());
+        }
+    }
+    
+    /**
+     * Computes a local count map by convolution with a kernel of ones.
+     */
+    private FloatProcessor convolve(int boxSize) {
+        Convolver convolver = new Convolver();
+        convolver.setNormalize(false);
+        FloatProcessor map = (FloatProcessor) densityMap.duplicate();
+        float kernel[] = new float[boxSize * boxSize];
+        Arrays.fill(kernel, 1.0f);
+        
+        convolver.convolveFloat(map, kernel, boxSize, boxSize);
+        int halfBoxSize = boxSize / 2;
+        map.setRoi(new Roi(halfBoxSize, halfBoxSize,
+                           map.getWidth() - boxSize + 1,
+                           map.getHeight() - boxSize + 1));
+        return map.crop().convertToFloatProcessor();
+    }
+
+    /**
+     * Test of localCountMap method, of class SummedAreaTable.
+     * 
+     * The local count maps must match the convolution. ImageJ's Convolver
+     * only accepts odd kernel sizes.
+     */
+    @Test
+    public void testLocalCountMap() {
+        SummedAreaTable table = new SummedAreaTable(densityMap);
+        for (int boxSize : new int[] {1, 3, 5, 7, 13}) {
+            FloatProcessor expected = convolve(boxSize);
+            FloatProcessor actual = table.localCountMap(boxSize);
+            
+            assertEquals(expected.getWidth(), actual.getWidth());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            for (int i = 0; i < expected.getPixelCount(); i++) {
+                assertEquals(expected.getf(i), actual.getf(i), 1e-5);
+            }
+        }
+    }
+    
+    /**
+     * Test of boxSum method, of class SummedAreaTable.
+     * 
+     * Box sums must match a direct summation, including for even box sizes.
+     */
+    @Test
+    public void testBoxSum() {
+        SummedAreaTable table = new SummedAreaTable(densityMap);
+        int[][] boxes = {{0, 0, 4, 4}, {3, 5, 6, 2}, {30, 20, 7, 9}};
+        for (int[] box : boxes) {
+            double expected = 0.0;
+            for (int y = box[1]; y < box[1] + box[3]; y++) {
+                for (int x = box[0]; x < box[0] + box[2]; x++) {
+                    expected += densityMap.getf(x, y);
+                }
+            }
+            assertEquals(expected,
+                         table.boxSum(box[0], box[1], box[2], box[3]), 1e-9);
+        }
+    }
+    
+    /**
+     * Test of findMaximum method, of class SummedAreaTable.
+     */
+    @Test
+    public void testFindMaximum() {
+        SummedAreaTable table = new SummedAreaTable(densityMap);
+        int boxSize = 7;
+        FloatProcessor expected = convolve(boxSize);
+        expected.resetMinAndMax();
+        
+        SummedAreaTable.Maximum maximum = table.findMaximum(boxSize);
+        assertEquals(expected.getMax(), maximum.getValue(), 1e-5);
+        assertEquals(maximum.getValue(),
+                     table.boxSum(maximum.getX(), maximum.getY(), boxSize),
+                     0.0);
+    }
+    
+    /**
+     * Test of total method, of class SummedAreaTable.
+     */
+    @Test
+    public void testTotal() {
+        SummedAreaTable table = new SummedAreaTable(densityMap);
+        double sum = 0.0;
+        for (int i = 0; i < densityMap.getPixelCount(); i++) {
+            sum += densityMap.getf(i);
+        }
+        assertEquals(sum, table.total(), 1e-9);
+        assertEquals(sum, table.boxSum(0, 0, 37, 29), 1e-9);
+    }
+    
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics, Ecole
+ * Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.defcon.utils;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.tensorflow.Tensor;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the TensorFactory class.
+ *
+ * @author Kyle M. Douglass
+ */
+public class TensorFactoryTest {
+
+    private static final Rectangle ROI = new Rectangle(3, 2, 8, 4);
+
+    /**
+     * Reads the pixels of a region with getf(), like a cropped copy would.
+     */
+    private static float[] expected(ImageProcessor ip, Rectangle region) {
+        float[] pixels = new float[region.width * region.height];
+        int i = 0;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            for (int x = region.x; x < region.x + region.width; x++) {
+                pixels[i++] = ip.getf(x, y);
+            }
+        }
+        return pixels;
+    }
+
+    private static float[] read(Tensor<Float> tensor) {
+        float[] data = new float[(int) (tensor.numBytes() / 4)];
+        tensor.writeTo(FloatBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * The ROI of 8, 16 and 32-bit images is read without cropping them.
+     */
+    @Test
+    public void testImageToTensorRoi() {
+        System.out.println("testImageToTensorRoi");
+        ImageProcessor[] ips = {new ByteProcessor(13, 7),
+                                new ShortProcessor(13, 7),
+                                new FloatProcessor(13, 7)};
+        for (ImageProcessor ip : ips) {
+            for (int i = 0; i < ip.getPixelCount(); i++) {
+                // Values above the signed range of bytes and shorts.
+                ip.setf(i, ip.getBitDepth() == 8 ? 200 + i % 50 : 40000 + i);
+            }
+            ip.setRoi(ROI);
+            try (Tensor<Float> tensor = TensorFactory.imageToTensor(ip)) {
+                assertArrayEquals(new long[] {1, 4, 8, 1}, tensor.shape());
+                assertArrayEquals(expected(ip, ROI), read(tensor), 0f);
+            }
+            assertEquals(ROI, ip.getRoi());
+        }
+    }
+
+    /**
+     * Regions of one image are read and rescaled into one batch.
+     */
+    @Test
+    public void testRegionsToTensor() {
+        System.out.println("testRegionsToTensor");
+        ShortProcessor ip = new ShortProcessor(13, 7);
+        for (int i = 0; i < ip.getPixelCount(); i++) {
+            ip.setf(i, i);
+        }
+        Rectangle other = new Rectangle(0, 0, 8, 4);
+        try (Tensor<Float> tensor = TensorFactory.regionsToTensor(
+                ip, Arrays.asList(ROI, other), 10f, 0.5f)) {
+            assertArrayEquals(new long[] {2, 4, 8, 1}, tensor.shape());
+            float[] data = read(tensor);
+            float[] first = expected(ip, ROI);
+            float[] second = expected(ip, other);
+            for (int i = 0; i < first.length; i++) {
+                assertEquals((first[i] - 10f) * 0.5f, data[i], 0f);
+                assertEquals((second[i] - 10f) * 0.5f,
+                             data[first.length + i], 0f);
+            }
+        }
+    }
+
+    /**
+     * A smaller tensor created after a larger one on the same thread only
+     * contains its own pixels.
+     */
+    @Test
+    public void testStagingBufferReuse() {
+        System.out.println("testStagingBufferReuse");
+        FloatProcessor ip = new FloatProcessor(13, 7);
+        for (int i = 0; i < ip.getPixelCount(); i++) {
+            ip.setf(i, -i - 0.5f);
+        }
+        Rectangle other = new Rectangle(0, 0, 8, 4);
+        TensorFactory.regionsToTensor(ip, Arrays.asList(ROI, other), 0f, 1f)
+                     .close();
+        try (Tensor<Float> tensor = TensorFactory.regionsToTensor(
+                ip, Arrays.asList(other), 0f, 1f)) {
+            assertArrayEquals(new long[] {1, 4, 8, 1}, tensor.shape());
+            assertArrayEquals(expected(ip, other), read(tensor), 0f);
+        }
+    }
+
+    /**
+     * The ROIs of a batch must have the same size.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDifferentRoiSizes() {
+        System.out.println("testDifferentRoiSizes");
+        ShortProcessor a = new ShortProcessor(13, 7);
+        ShortProcessor b = new ShortProcessor(13, 7);
+        a.setRoi(ROI);
+        TensorFactory.imagesToTensor(Arrays.asList(a, b)).close();
+    }
+
+}